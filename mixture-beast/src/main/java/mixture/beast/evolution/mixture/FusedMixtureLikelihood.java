@@ -0,0 +1,695 @@
+package mixture.beast.evolution.mixture;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.sitemodel.SiteModelInterface;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CalculationNode;
+import mixture.beast.evolution.util.FlatTreeView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+@Description("Tree likelihood engine for mixture components that share one alignment, tree and site model and differ "
+        + "only in their branch rate model. The tree is walked once per evaluation and the partials of all dirty "
+        + "components are updated in the same pass; tip partials and pattern weights are shared by all components. "
+        + "The partials can be computed in pattern blocks on a pool owned by MixtureTreeLikelihood.")
+public class FusedMixtureLikelihood extends CalculationNode {
+
+    public final Input<Alignment> dataInput = new Input<>(
+            "data",
+            "sequence data shared by all components",
+            Validate.REQUIRED);
+
+    public final Input<Tree> treeInput = new Input<>(
+            "tree",
+            "tree shared by all components",
+            Validate.REQUIRED);
+
+    public final Input<SiteModelInterface> siteModelInput = new Input<>(
+            "siteModel",
+            "site model shared by all components",
+            Validate.REQUIRED);
+
+    public final Input<List<BranchRateModel>> branchRateModelsInput = new Input<>(
+            "branchRateModel",
+            "one branch rate model per mixture component, in component order",
+            new ArrayList<>());
+
+    public final Input<Boolean> useAmbiguitiesInput = new Input<>(
+            "useAmbiguities",
+            "if true, ambiguous tip states contribute their compatible states; otherwise they are treated as "
+                    + "missing data (default false)",
+            false);
+
+    /** Per-pattern partials below this value are rescaled; the log scale factors accumulate towards the root. */
+    private static final double SCALING_THRESHOLD = 1.0e-100;
+
+    private Alignment data;
+    private Tree tree;
+    private SiteModelInterface.Base siteModel;
+    private SubstitutionModel substModel;
+    private List<BranchRateModel> clocks;
+
+    private int K;
+    private int nodeCount;
+    private int nStates;
+    private int nPatterns;
+    private int nCategories;
+    private int matrixSize;
+    private int partialsSize;
+
+    // shared by all components: one tip partial vector per leaf, pattern weights, and for each (pattern, state)
+    // whether every tip is compatible with that state (used for the invariant-sites mass)
+    private double[][] tipPartials;
+    private double[] patternWeights;
+    private double[] constantPattern;
+
+    // per node, both buffers of all K components side by side: [buffer][component][category][...]
+    private double[][] matrices;
+    private double[][] partials;
+    private double[][] scales;
+
+    // per (component, node), indexed k * nodeCount + nodeNr
+    private int[] matrixBuffer;
+    private int[] partialsBuffer;
+    private double[] branchLengths;
+    private int[] storedMatrixBuffer;
+    private int[] storedPartialsBuffer;
+    private double[] storedBranchLengths;
+
+    private double[] logL;
+    private boolean[] needsUpdate;
+    private boolean[] componentDirty;
+    private double[] storedLogL;
+    private boolean[] storedNeedsUpdate;
+
+    // components whose every transition matrix must be recomputed on their next evaluation: the site model
+    // changed, or a tree or clock change went by while the component was not evaluated
+    private long fullUpdate;
+    private long storedFullUpdate;
+    private double[] matrixScratch;
+
+    // partials updates recorded by the traversal, in post-order, and the per-evaluation root quantities
+    private Node[] updateNodes;
+    private long[] updateMasks;
+    private int updateCount;
+    // per node nr: the components whose partials above the node must be recomputed
+    private long[] nodeUpdates;
+    private double[] rootProportions;
+    private double[] rootFrequencies;
+    private double rootInvariantMass;
+
+    // pattern blocks: contiguous pattern ranges evaluated independently, optionally on a borrowed pool
+    private ExecutorService blockExec;
+    private int blockCount;
+    private int[] blockStart;
+    private double[] blockLogL;
+    private Future<?>[] blockFutures;
+
+    @Override
+    public void initAndValidate() {
+        data = dataInput.get();
+        tree = treeInput.get();
+        clocks = branchRateModelsInput.get();
+        K = clocks.size();
+
+        if (K < 1) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: need at least one branchRateModel.");
+        }
+        if (K > Long.SIZE) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: at most " + Long.SIZE
+                    + " components are supported, found " + K + ".");
+        }
+        if (!(siteModelInput.get() instanceof SiteModelInterface.Base)) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: siteModel must be a SiteModelInterface.Base.");
+        }
+        if (data.isAscertained) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: ascertained alignments are not supported.");
+        }
+        siteModel = (SiteModelInterface.Base) siteModelInput.get();
+        siteModel.setDataType(data.getDataType());
+        substModel = siteModel.getSubstitutionModel();
+
+        nodeCount = tree.getNodeCount();
+        nStates = data.getMaxStateCount();
+        nPatterns = data.getPatternCount();
+        nCategories = siteModel.getCategoryCount();
+        matrixSize = nStates * nStates;
+        partialsSize = nPatterns * nStates;
+
+        if (substModel.getStateCount() != nStates) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: substitution model has "
+                    + substModel.getStateCount() + " states but the alignment has " + nStates + ".");
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = tree.getNode(i);
+            if (!node.isLeaf() && node.getChildCount() != 2) {
+                throw new IllegalArgumentException("FusedMixtureLikelihood: tree must be binary (node " + i
+                        + " has " + node.getChildCount() + " children).");
+            }
+        }
+
+        initTipPartials();
+
+        patternWeights = new double[nPatterns];
+        for (int p = 0; p < nPatterns; p++) {
+            patternWeights[p] = data.getPatternWeight(p);
+        }
+
+        matrices = new double[nodeCount][2 * K * nCategories * matrixSize];
+        partials = new double[nodeCount][];
+        scales = new double[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            if (!tree.getNode(i).isLeaf()) {
+                partials[i] = new double[2 * K * nCategories * partialsSize];
+                scales[i] = new double[2 * K * nPatterns];
+            }
+        }
+
+        matrixBuffer = new int[K * nodeCount];
+        partialsBuffer = new int[K * nodeCount];
+        branchLengths = new double[K * nodeCount];
+        storedMatrixBuffer = new int[K * nodeCount];
+        storedPartialsBuffer = new int[K * nodeCount];
+        storedBranchLengths = new double[K * nodeCount];
+        Arrays.fill(branchLengths, Double.NaN);
+        Arrays.fill(storedBranchLengths, Double.NaN);
+
+        logL = new double[K];
+        needsUpdate = new boolean[K];
+        componentDirty = new boolean[K];
+        storedLogL = new double[K];
+        storedNeedsUpdate = new boolean[K];
+        Arrays.fill(needsUpdate, true);
+        Arrays.fill(storedNeedsUpdate, true);
+
+        matrixScratch = new double[matrixSize];
+        updateNodes = new Node[nodeCount];
+        updateMasks = new long[nodeCount];
+        nodeUpdates = new long[nodeCount];
+        rootProportions = new double[nCategories];
+        rootFrequencies = new double[nStates];
+        setBlockCount(1);
+    }
+
+    private void initTipPartials() {
+        final boolean useAmbiguities = useAmbiguitiesInput.get();
+        tipPartials = new double[nodeCount][];
+        constantPattern = new double[partialsSize];
+        Arrays.fill(constantPattern, 1.0);
+
+        for (final Node leaf : tree.getExternalNodes()) {
+            final int taxon = data.getTaxonIndex(leaf.getID());
+            if (taxon < 0) {
+                throw new IllegalArgumentException("FusedMixtureLikelihood: taxon " + leaf.getID()
+                        + " is not in the alignment.");
+            }
+            final double[] tip = new double[partialsSize];
+            for (int p = 0; p < nPatterns; p++) {
+                final int code = data.getPattern(taxon, p);
+                final int o = p * nStates;
+                if (useAmbiguities) {
+                    final boolean[] stateSet = data.getStateSet(code);
+                    for (int s = 0; s < nStates; s++) {
+                        tip[o + s] = stateSet[s] ? 1.0 : 0.0;
+                    }
+                } else if (code >= 0 && code < nStates) {
+                    tip[o + code] = 1.0;
+                } else {
+                    Arrays.fill(tip, o, o + nStates, 1.0);
+                }
+                for (int s = 0; s < nStates; s++) {
+                    constantPattern[o + s] *= tip[o + s];
+                }
+            }
+            tipPartials[leaf.getNr()] = tip;
+        }
+    }
+
+    public int getComponentCount() {
+        return branchRateModelsInput.get().size();
+    }
+
+    /** True if component k has to be recomputed in the current step (it never was, or one of its inputs changed). */
+    public boolean isComponentDirty(final int k) {
+        return needsUpdate[k] || (isDirtyCalculation() && componentDirty[k]);
+    }
+
+    /** Log-likelihood of component k; a stale value triggers one fused pass over every stale component. */
+    public double getComponentLogL(final int k) {
+        if (needsUpdate[k]) {
+            calculateComponents();
+        }
+        return logL[k];
+    }
+
+    /**
+     * Log-likelihood of component k, leaving the other components stale; for a latent allocation where only one
+     * component is needed per step.
+     */
+    public double getSingleComponentLogL(final int k) {
+        if (needsUpdate[k]) {
+            calculateComponents(1L << k);
+        }
+        return logL[k];
+    }
+
+    private void calculateComponents() {
+        long active = 0L;
+        for (int k = 0; k < K; k++) {
+            if (needsUpdate[k]) {
+                active |= 1L << k;
+            }
+        }
+        calculateComponents(active);
+    }
+
+    private void calculateComponents(final long active) {
+
+        // sequential part: transition matrices, buffer selection and the post-order list of partials to update
+        final Node root = tree.getRoot();
+        updateCount = 0;
+        final long rootUpdate = traverse(active);
+        if (rootUpdate != 0L) {
+            prepareRoot(root);
+            evaluatePatternBlocks(rootUpdate);
+            for (int k = 0; k < K; k++) {
+                if ((rootUpdate & (1L << k)) == 0L) {
+                    continue;
+                }
+                double sum = 0.0;
+                for (int b = 0; b < blockCount; b++) {
+                    sum += blockLogL[b * K + k];
+                }
+                logL[k] = sum;
+            }
+        }
+        for (int k = 0; k < K; k++) {
+            if ((active & (1L << k)) != 0L) {
+                needsUpdate[k] = false;
+            }
+        }
+        fullUpdate &= ~active;
+    }
+
+    /**
+     * Post-order pass shared by all active components, driven by the tree's flat postorder so that deep trees need
+     * no stack. Returns the components whose partials at the root must be recomputed because a transition matrix or
+     * partials vector below it changed. Partials updates are only recorded here and computed per pattern block
+     * afterwards.
+     */
+    private long traverse(final long active) {
+        final FlatTreeView view = FlatTreeView.of(tree);
+        for (int p = 0; p < nodeCount; p++) {
+            final int nr = view.getPostorderNr(p);
+            final Node node = tree.getNode(nr);
+            final boolean nodeDirty = node.isDirty() != Tree.IS_CLEAN;
+            long update = 0L;
+
+            final int parentNr = view.getParentNr(nr);
+            if (parentNr >= 0) {
+                final Node parent = tree.getNode(parentNr);
+                final double branchTime = parent.getHeight() - node.getHeight();
+                for (int k = 0; k < K; k++) {
+                    if ((active & (1L << k)) == 0L) {
+                        continue;
+                    }
+                    final double clockRate = clocks.get(k).getRateForBranch(node);
+                    final double branchLength = clockRate * branchTime;
+                    final int i = k * nodeCount + nr;
+                    if (nodeDirty || (fullUpdate & (1L << k)) != 0L || branchLength != branchLengths[i]) {
+                        branchLengths[i] = branchLength;
+                        updateMatrices(node, parent, k, clockRate);
+                        update |= 1L << k;
+                    }
+                }
+            }
+
+            final int childCount = view.getChildCount(nr);
+            if (childCount > 0) {
+                // children come earlier in the postorder, so their masks are complete
+                long childUpdate = 0L;
+                for (int c = 0; c < childCount; c++) {
+                    childUpdate |= nodeUpdates[view.getChildNr(nr, c)];
+                }
+                if (childUpdate != 0L) {
+                    for (int k = 0; k < K; k++) {
+                        if ((childUpdate & (1L << k)) != 0L) {
+                            final int i = k * nodeCount + nr;
+                            partialsBuffer[i] = 1 - storedPartialsBuffer[i];
+                        }
+                    }
+                    updateNodes[updateCount] = node;
+                    updateMasks[updateCount] = childUpdate;
+                    updateCount++;
+                }
+                update |= childUpdate;
+            }
+            nodeUpdates[nr] = update;
+        }
+        return nodeUpdates[view.getRootNr()];
+    }
+
+    private void updateMatrices(final Node node, final Node parent, final int k, final double clockRate) {
+        final int i = k * nodeCount + node.getNr();
+        final int buffer = 1 - storedMatrixBuffer[i];
+        matrixBuffer[i] = buffer;
+
+        final double[] m = matrices[node.getNr()];
+        for (int c = 0; c < nCategories; c++) {
+            final double jointRate = siteModel.getRateForCategory(c, node) * clockRate;
+            substModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointRate, matrixScratch);
+            System.arraycopy(matrixScratch, 0, m, matrixOffset(buffer, k, c), matrixSize);
+        }
+    }
+
+    /** Root quantities are read once here so that the pattern-block tasks do not call into the site model. */
+    private void prepareRoot(final Node root) {
+        final double[] proportions = siteModel.getCategoryProportions(root);
+        System.arraycopy(proportions, 0, rootProportions, 0, nCategories);
+        System.arraycopy(substModel.getFrequencies(), 0, rootFrequencies, 0, nStates);
+
+        // when the invariant class is not one of the site model categories its mass is added at the root
+        double invariantMass = 1.0;
+        for (int c = 0; c < nCategories; c++) {
+            invariantMass -= rootProportions[c];
+        }
+        rootInvariantMass = invariantMass < 1.0e-12 ? 0.0 : invariantMass;
+    }
+
+    /**
+     * Set the pool used to evaluate pattern blocks. The patterns are split into the given number of contiguous
+     * blocks and each task updates every recorded partials vector of every component for its block.
+     */
+    public void setExecutor(final ExecutorService exec, final int blocks) {
+        if (exec == null) {
+            throw new IllegalArgumentException("FusedMixtureLikelihood: executor is null.");
+        }
+        blockExec = exec;
+        setBlockCount(blocks);
+    }
+
+    private void setBlockCount(final int blocks) {
+        blockCount = Math.max(1, Math.min(blocks, nPatterns));
+        blockStart = new int[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++) {
+            blockStart[b] = (int) ((long) b * nPatterns / blockCount);
+        }
+        blockLogL = new double[blockCount * K];
+        blockFutures = new Future<?>[blockCount];
+    }
+
+    private void evaluatePatternBlocks(final long rootUpdate) {
+        if (blockExec == null || blockCount < 2) {
+            for (int b = 0; b < blockCount; b++) {
+                evaluateBlock(b, rootUpdate);
+            }
+            return;
+        }
+        try {
+            for (int b = 1; b < blockCount; b++) {
+                final int block = b;
+                blockFutures[b] = blockExec.submit(() -> evaluateBlock(block, rootUpdate));
+            }
+            evaluateBlock(0, rootUpdate);
+            for (int b = 1; b < blockCount; b++) {
+                blockFutures[b].get();
+                blockFutures[b] = null;
+            }
+        } catch (RejectedExecutionException | InterruptedException e) {
+            Log.err.println("FusedMixtureLikelihood: stop using threads: " + e.getMessage());
+            awaitOutstanding();
+            blockExec = null;
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // blocks are independent and idempotent, so simply redo all of them on this thread
+            for (int b = 0; b < blockCount; b++) {
+                evaluateBlock(b, rootUpdate);
+            }
+        } catch (ExecutionException e) {
+            awaitOutstanding();
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("FusedMixtureLikelihood: pattern block evaluation failed", cause);
+        }
+    }
+
+    private void awaitOutstanding() {
+        for (int b = 0; b < blockCount; b++) {
+            final Future<?> f = blockFutures[b];
+            blockFutures[b] = null;
+            if (f == null) {
+                continue;
+            }
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // already failing; the first error is reported by the caller
+            }
+        }
+    }
+
+    /** Patterns [blockStart[b], blockStart[b+1]) of every recorded update, then the root terms of that block. */
+    private void evaluateBlock(final int b, final long rootUpdate) {
+        final int from = blockStart[b];
+        final int to = blockStart[b + 1];
+        for (int u = 0; u < updateCount; u++) {
+            final Node node = updateNodes[u];
+            final long mask = updateMasks[u];
+            for (int k = 0; k < K; k++) {
+                if ((mask & (1L << k)) != 0L) {
+                    updatePartials(node, k, from, to);
+                }
+            }
+        }
+        final Node root = tree.getRoot();
+        for (int k = 0; k < K; k++) {
+            if ((rootUpdate & (1L << k)) != 0L) {
+                blockLogL[b * K + k] = rootLogL(root, k, from, to);
+            }
+        }
+    }
+
+    private void updatePartials(final Node node, final int k, final int from, final int to) {
+        final int nr = node.getNr();
+        final int buffer = partialsBuffer[k * nodeCount + nr];
+
+        final Node left = node.getLeft();
+        final Node right = node.getRight();
+        final int leftNr = left.getNr();
+        final int rightNr = right.getNr();
+        final double[] mLeft = matrices[leftNr];
+        final double[] mRight = matrices[rightNr];
+        final int mLeftBuffer = matrixBuffer[k * nodeCount + leftNr];
+        final int mRightBuffer = matrixBuffer[k * nodeCount + rightNr];
+        final double[] pLeft = left.isLeaf() ? tipPartials[leftNr] : partials[leftNr];
+        final double[] pRight = right.isLeaf() ? tipPartials[rightNr] : partials[rightNr];
+        final double[] out = partials[nr];
+
+        for (int c = 0; c < nCategories; c++) {
+            final int mlo = matrixOffset(mLeftBuffer, k, c);
+            final int mro = matrixOffset(mRightBuffer, k, c);
+            final int plo = left.isLeaf() ? 0 : partialsOffset(partialsBuffer[k * nodeCount + leftNr], k, c);
+            final int pro = right.isLeaf() ? 0 : partialsOffset(partialsBuffer[k * nodeCount + rightNr], k, c);
+            final int oo = partialsOffset(buffer, k, c);
+
+            for (int p = from; p < to; p++) {
+                final int po = p * nStates;
+                for (int s = 0; s < nStates; s++) {
+                    final int row = s * nStates;
+                    double sumLeft = 0.0;
+                    double sumRight = 0.0;
+                    for (int j = 0; j < nStates; j++) {
+                        sumLeft += mLeft[mlo + row + j] * pLeft[plo + po + j];
+                        sumRight += mRight[mro + row + j] * pRight[pro + po + j];
+                    }
+                    out[oo + po + s] = sumLeft * sumRight;
+                }
+            }
+        }
+
+        rescale(node, k, buffer, from, to);
+    }
+
+    /** Carries the children's log scale factors up and rescales patterns whose partials became too small. */
+    private void rescale(final Node node, final int k, final int buffer, final int from, final int to) {
+        final double[] out = partials[node.getNr()];
+        final double[] scale = scales[node.getNr()];
+        final int so = scaleOffset(buffer, k);
+        final double[] leftScale = scales[node.getLeft().getNr()];
+        final int lso = leftScale == null ? 0 : childScaleOffset(node.getLeft(), k);
+        final double[] rightScale = scales[node.getRight().getNr()];
+        final int rso = rightScale == null ? 0 : childScaleOffset(node.getRight(), k);
+
+        for (int p = from; p < to; p++) {
+            double cumulative = 0.0;
+            if (leftScale != null) {
+                cumulative += leftScale[lso + p];
+            }
+            if (rightScale != null) {
+                cumulative += rightScale[rso + p];
+            }
+
+            double max = 0.0;
+            for (int c = 0; c < nCategories; c++) {
+                final int o = partialsOffset(buffer, k, c) + p * nStates;
+                for (int s = 0; s < nStates; s++) {
+                    if (out[o + s] > max) {
+                        max = out[o + s];
+                    }
+                }
+            }
+            if (max > 0.0 && max < SCALING_THRESHOLD) {
+                for (int c = 0; c < nCategories; c++) {
+                    final int o = partialsOffset(buffer, k, c) + p * nStates;
+                    for (int s = 0; s < nStates; s++) {
+                        out[o + s] /= max;
+                    }
+                }
+                cumulative += Math.log(max);
+            }
+            scale[so + p] = cumulative;
+        }
+    }
+
+    private int childScaleOffset(final Node child, final int k) {
+        return scaleOffset(partialsBuffer[k * nodeCount + child.getNr()], k);
+    }
+
+    private double rootLogL(final Node root, final int k, final int from, final int to) {
+        final int nr = root.getNr();
+        final int buffer = partialsBuffer[k * nodeCount + nr];
+        final double[] rootPartials = partials[nr];
+        final double[] rootScales = scales[nr];
+        final int so = scaleOffset(buffer, k);
+
+        double sum = 0.0;
+        for (int p = from; p < to; p++) {
+            double site = 0.0;
+            for (int c = 0; c < nCategories; c++) {
+                final int o = partialsOffset(buffer, k, c) + p * nStates;
+                double v = 0.0;
+                for (int s = 0; s < nStates; s++) {
+                    v += rootFrequencies[s] * rootPartials[o + s];
+                }
+                site += rootProportions[c] * v;
+            }
+
+            double logSite = Math.log(site) + rootScales[so + p];
+            if (rootInvariantMass > 0.0) {
+                double constant = 0.0;
+                for (int s = 0; s < nStates; s++) {
+                    constant += rootFrequencies[s] * constantPattern[p * nStates + s];
+                }
+                if (constant > 0.0) {
+                    logSite = logSumExp(logSite, Math.log(rootInvariantMass * constant));
+                }
+            }
+            sum += patternWeights[p] * logSite;
+        }
+        return sum;
+    }
+
+    private static double logSumExp(final double a, final double b) {
+        if (a == Double.NEGATIVE_INFINITY) {
+            return b;
+        }
+        return a > b ? a + Math.log1p(Math.exp(b - a)) : b + Math.log1p(Math.exp(a - b));
+    }
+
+    private int matrixOffset(final int buffer, final int k, final int c) {
+        return ((buffer * K + k) * nCategories + c) * matrixSize;
+    }
+
+    private int partialsOffset(final int buffer, final int k, final int c) {
+        return ((buffer * K + k) * nCategories + c) * partialsSize;
+    }
+
+    private int scaleOffset(final int buffer, final int k) {
+        return (buffer * K + k) * nPatterns;
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        final boolean treeDirty = tree.somethingIsDirty();
+        if (treeDirty) {
+            FlatTreeView.treeChanged(tree);
+        }
+        final boolean siteModelDirty = siteModel.isDirtyCalculation();
+        if (siteModelDirty) {
+            fullUpdate = K == Long.SIZE ? -1L : (1L << K) - 1L;
+        }
+
+        boolean dirty = false;
+        for (int k = 0; k < K; k++) {
+            componentDirty[k] = treeDirty || siteModelDirty || clockDirty(k);
+            if (componentDirty[k]) {
+                needsUpdate[k] = true;
+                dirty = true;
+            }
+        }
+        return dirty;
+    }
+
+    private boolean clockDirty(final int k) {
+        final BranchRateModel clock = clocks.get(k);
+        return !(clock instanceof CalculationNode) || ((CalculationNode) clock).isDirtyCalculation();
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(matrixBuffer, 0, storedMatrixBuffer, 0, matrixBuffer.length);
+        System.arraycopy(partialsBuffer, 0, storedPartialsBuffer, 0, partialsBuffer.length);
+        System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
+        System.arraycopy(logL, 0, storedLogL, 0, K);
+        System.arraycopy(needsUpdate, 0, storedNeedsUpdate, 0, K);
+        storedFullUpdate = fullUpdate;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        System.arraycopy(storedMatrixBuffer, 0, matrixBuffer, 0, matrixBuffer.length);
+        System.arraycopy(storedPartialsBuffer, 0, partialsBuffer, 0, partialsBuffer.length);
+        System.arraycopy(storedBranchLengths, 0, branchLengths, 0, branchLengths.length);
+        System.arraycopy(storedLogL, 0, logL, 0, K);
+        System.arraycopy(storedNeedsUpdate, 0, needsUpdate, 0, K);
+        fullUpdate = storedFullUpdate;
+        super.restore();
+    }
+
+    /**
+     * A component that was marked dirty but not evaluated in an accepted step (e.g. an inactive component under
+     * latent allocation) loses the tree's dirty flags once the step is accepted, so its next pass must be full.
+     */
+    @Override
+    protected void accept() {
+        for (int k = 0; k < K; k++) {
+            if (needsUpdate[k]) {
+                fullUpdate |= 1L << k;
+            }
+        }
+        super.accept();
+    }
+}
@@ -4,7 +4,6 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
-import beast.base.inference.Distribution;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
@@ -12,8 +11,6 @@ import beast.base.spec.type.RealVector;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 
 public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
@@ -44,7 +41,11 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
     public final Input<Boolean> printRBStatsInput =
             new Input<>("printRBStats", "print Rao-Blackwell numerator/denominator columns for ucldStdev and sigma2", false);
 
-    private List<Distribution> topSubLiks;
+    public final Input<Boolean> completeAllocationInput =
+            new Input<>("completeAllocation", "under latent allocation of the top mixture, evaluate the components the "
+                    + "last step skipped before logging; otherwise the top mixture is only read back", false);
+
+    private MixtureTreeLikelihood top;
     private RealParameter legacyTopWeights;
     private RealVector typedTopWeights;
     private RealParameter legacyInnerWeights;
@@ -55,6 +56,7 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
     private boolean printInner;
     private boolean printThree;
     private boolean printRB;
+    private boolean completeAllocation;
 
     private static final ThreadLocal<DecimalFormat> DF = ThreadLocal.withInitial(() -> {
         DecimalFormatSymbols sym = DecimalFormatSymbols.getInstance(Locale.US);
@@ -65,12 +67,11 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
 
     @Override
     public void initAndValidate() {
-        MixtureTreeLikelihood top = topMixtureInput.get();
-        this.topSubLiks = new ArrayList<>(top.subLikelihoodsInput.get());
+        this.top = topMixtureInput.get();
         this.legacyTopWeights = top.weightsInput.get();
         this.typedTopWeights = top.weightsVectorInput.get();
 
-        if (topSubLiks.size() != 2) {
+        if (top.getComponentCount() != 2) {
             throw new IllegalArgumentException(getClass().getSimpleName() + ": currently expects K=2 at the top level.");
         }
         if (legacyTopWeights == null && typedTopWeights == null) {
@@ -98,6 +99,7 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
         this.printInner = printInnerInput.get();
         this.printThree = printThreeModelWeightsInput.get();
         this.printRB = printRBStatsInput.get();
+        this.completeAllocation = completeAllocationInput.get();
     }
 
     @Override
@@ -138,14 +140,19 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(final long sample, final PrintStream out) {
+        // both the top mixture and the SVS prior are read back from their last evaluation
+        if (completeAllocation) {
+            top.completeLastEvaluation();
+        }
+
         final double wStrict = topWeightValue(0);
         final double wRelax = topWeightValue(1);
 
-        final double logLStrict = topSubLiks.get(0).calculateLogP();
-        final double logLRelax = topSubLiks.get(1).calculateLogP();
+        final double logLStrict = top.getLastComponentLogL(0);
+        final double logLRelax = top.getLastComponentLogL(1);
 
-        final double sStrict = (wStrict > 0.0 && Double.isFinite(logLStrict)) ? (Math.log(wStrict) + logLStrict) : Double.NEGATIVE_INFINITY;
-        final double sRelax  = (wRelax  > 0.0 && Double.isFinite(logLRelax))  ? (Math.log(wRelax)  + logLRelax)  : Double.NEGATIVE_INFINITY;
+        final double sStrict = top.getLastComponentLogS(0);
+        final double sRelax = top.getLastComponentLogS(1);
 
         final double m = Math.max(sStrict, sRelax);
         final double denom = (Double.isFinite(m)) ? (Math.exp(sStrict - m) + Math.exp(sRelax - m)) : 0.0;
@@ -156,8 +163,8 @@ public class HierarchicalSVSLogger extends BEASTObject implements Loggable {
         final double wu = innerWeightValue(0);
         final double wa = innerWeightValue(1);
 
-        final double logPUC = svs.logPriorUCOnly();
-        final double logPAC = svs.logPriorACOnly();
+        final double logPUC = svs.getLastLogPriorUC();
+        final double logPAC = svs.getLastLogPriorAC();
 
         final double tUC = (wu > 0.0 && Double.isFinite(logPUC)) ? (Math.log(wu) + logPUC) : Double.NEGATIVE_INFINITY;
         final double tAC = (wa > 0.0 && Double.isFinite(logPAC)) ? (Math.log(wa) + logPAC) : Double.NEGATIVE_INFINITY;
@@ -0,0 +1,231 @@
+package mixture.beast.evolution.mixture;
+
+import beast.base.core.Description;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+import mixture.beast.evolution.util.JournaledRates;
+
+/**
+ * RealParameter for the shared branch rates whose store/restore cost O(changed) instead of O(dimension):
+ *
+ *   store()                  copies only the journaled entries into the stored values and forgets the journal
+ *   setValue / swap / scale  journal (index, old value) the first time an index changes after store()
+ *   restore()                writes the journaled old values back
+ *   setEverythingDirty(false) clears only the dirty flags it set
+ *
+ * The indices with their dirty flag set are also kept as a list, so the clocks and RelaxedRatesPriorSVS can visit
+ * the changed rates without scanning every isDirty(i). The list is incomplete after setEverythingDirty(true), until
+ * the flags are cleared again; readers then fall back to the scan.
+ *
+ * setValues writes a range or an index set with one startEditing for the batch, journaled and listed as above.
+ *
+ * scale(), which RealParameter implements by writing the values directly, journals and flags every index, and
+ * assignFromFragile journals every index before copying. getStoredValue/getStoredValues read the values at the last
+ * store(), as for RealParameter. Changing the dimension or assignFrom between store() and restore() is not
+ * supported, which matches how BEAST uses them (initialisation and resuming a chain): both start a new journal.
+ */
+@Description("Real parameter for the shared branch rates with an undo journal: store and restore only touch the "
+        + "entries changed by the proposal, and the changed indices can be read directly.")
+public class JournaledRealParameter extends RealParameter implements JournaledRates {
+
+    // undo journal since store(): index and value before the first change
+    private int[] journalIdx;
+    private double[] journalOld;
+    private boolean[] isJournaled;
+    private int journalSize;
+
+    // indices whose dirty flag was set through setValue/swap since the flags were last cleared
+    private int[] dirtyIdx;
+    private int dirtyCount;
+    private boolean allDirty;
+
+    public JournaledRealParameter() {
+    }
+
+    public JournaledRealParameter(final String value) {
+        super(value);
+    }
+
+    private void ensureJournalCapacity() {
+        final int dim = getDimension();
+        if (isJournaled == null || isJournaled.length != dim) {
+            journalIdx = new int[dim];
+            journalOld = new double[dim];
+            isJournaled = new boolean[dim];
+            journalSize = 0;
+            dirtyIdx = new int[dim];
+            dirtyCount = 0;
+            // flags set before the arrays existed are not on the list
+            allDirty = false;
+            for (int i = 0; i < dim; i++) {
+                allDirty |= m_bIsDirty[i];
+            }
+            storedValues = values.clone();
+        }
+    }
+
+    private void resetJournal() {
+        if (isJournaled != null && isJournaled.length == getDimension()) {
+            for (int k = 0; k < journalSize; k++) {
+                isJournaled[journalIdx[k]] = false;
+            }
+            journalSize = 0;
+            dirtyCount = 0;
+            allDirty = true;
+        }
+        ensureJournalCapacity();
+        storedValues = values.clone();
+    }
+
+    private void record(final int i) {
+        ensureJournalCapacity();
+        if (!isJournaled[i]) {
+            isJournaled[i] = true;
+            journalIdx[journalSize] = i;
+            journalOld[journalSize] = values[i];
+            journalSize++;
+        }
+        if (!isDirty(i)) {
+            dirtyIdx[dirtyCount++] = i;
+        }
+    }
+
+    @Override
+    public void setValue(final Double value) {
+        setValue(0, value);
+    }
+
+    @Override
+    public void setValue(final int i, final Double value) {
+        startEditing(null);
+        record(i);
+        super.setValue(i, value);
+    }
+
+    @Override
+    public void setValues(final int from, final int to, final double[] source) {
+        if (from < 0 || to > getDimension() || from > to) {
+            throw new IllegalArgumentException("JournaledRealParameter: bad range [" + from + ", " + to
+                    + ") for dimension " + getDimension());
+        }
+        startEditing(null);
+        for (int i = from; i < to; i++) {
+            write(i, source[i]);
+        }
+    }
+
+    @Override
+    public void setValues(final int[] indices, final int count, final double[] source) {
+        startEditing(null);
+        for (int k = 0; k < count; k++) {
+            write(indices[k], source[indices[k]]);
+        }
+    }
+
+    private void write(final int i, final double value) {
+        record(i);
+        values[i] = value;
+        m_bIsDirty[i] = true;
+        m_nLastDirty = i;
+    }
+
+    @Override
+    public int scale(final double scale) {
+        startEditing(null);
+        for (int i = 0; i < values.length; i++) {
+            record(i);
+            m_bIsDirty[i] = true;
+        }
+        return super.scale(scale);
+    }
+
+    @Override
+    public void assignFromFragile(final StateNode other) {
+        final int dim = ((RealParameter) other).getDimension();
+        if (dim != getDimension()) {
+            super.assignFromFragile(other);
+            resetJournal();
+            return;
+        }
+        for (int i = 0; i < dim; i++) {
+            record(i);
+        }
+        super.assignFromFragile(other);
+        // RealParameter clears the dirty flags here
+        dirtyCount = 0;
+        allDirty = false;
+    }
+
+    @Override
+    public void assignFrom(final StateNode other) {
+        super.assignFrom(other);
+        resetJournal();
+    }
+
+    @Override
+    public void swap(final int left, final int right) {
+        final Double tmp = getValue(left);
+        setValue(left, getValue(right));
+        setValue(right, tmp);
+    }
+
+    @Override
+    public void store() {
+        ensureJournalCapacity();
+        // only the journaled entries differ from the stored values
+        for (int k = 0; k < journalSize; k++) {
+            final int i = journalIdx[k];
+            storedValues[i] = values[i];
+            isJournaled[i] = false;
+        }
+        journalSize = 0;
+    }
+
+    @Override
+    public void restore() {
+        // each index is journaled once, with its value at store()
+        for (int k = 0; k < journalSize; k++) {
+            values[journalIdx[k]] = journalOld[k];
+        }
+        // the dirty flags stay set until the step ends, as for RealParameter; only somethingIsDirty is reset
+        hasStartedEditing = false;
+    }
+
+    @Override
+    public void setEverythingDirty(final boolean isDirty) {
+        ensureJournalCapacity();
+        if (isDirty || allDirty) {
+            super.setEverythingDirty(isDirty);
+            allDirty = isDirty;
+            dirtyCount = 0;
+            return;
+        }
+        setSomethingIsDirty(false);
+        for (int k = 0; k < dirtyCount; k++) {
+            m_bIsDirty[dirtyIdx[k]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    @Override
+    public void setDimension(final int dimension) {
+        super.setDimension(dimension);
+        ensureJournalCapacity();
+    }
+
+    @Override
+    public boolean hasCompleteChangeList() {
+        ensureJournalCapacity();
+        return !allDirty;
+    }
+
+    @Override
+    public int getChangedCount() {
+        return dirtyCount;
+    }
+
+    @Override
+    public int getChangedIndex(final int k) {
+        return dirtyIdx[k];
+    }
+}
@@ -4,7 +4,6 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Loggable;
-import beast.base.inference.Distribution;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
@@ -12,8 +11,6 @@ import beast.base.spec.type.RealVector;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 
 public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
@@ -63,8 +60,13 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
     public final Input<Boolean> printViolationFlagInput =
             new Input<>("printViolationFlag", "print 1 if logMix > maxLogL + 1e-10, else 0", false);
 
+    public final Input<Boolean> completeAllocationInput =
+            new Input<>("completeAllocation", "under latent allocation, evaluate the components the last step skipped "
+                    + "before logging, so responsibilities are Rao-Blackwellised; otherwise the logger only reads the "
+                    + "mixture's last evaluation", false);
+
     private int K;
-    private List<Distribution> subLiks;
+    private MixtureTreeLikelihood mix;
     private RealParameter legacyWeights;
     private RealVector typedWeights;
     private RealParameter legacyAlpha;
@@ -83,6 +85,7 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
     private boolean printMaxLogS;
     private boolean printMixMinusMaxLogL;
     private boolean printMixMinusMaxLogS;
+    private boolean completeAllocation;
     private boolean printViolationFlag;
 
     private double[] logL;
@@ -98,14 +101,13 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
 
     @Override
     public void initAndValidate() {
-        final MixtureTreeLikelihood mix = mixtureInput.get();
+        this.mix = mixtureInput.get();
 
-        this.subLiks = new ArrayList<>(mix.subLikelihoodsInput.get());
         this.legacyWeights = mix.weightsInput.get();
         this.typedWeights = mix.weightsVectorInput.get();
         this.legacyAlpha = mix.alphaInput.get();
         this.typedAlpha = mix.alphaScalarInput.get();
-        this.K = subLiks.size();
+        this.K = mix.getComponentCount();
 
         if (K < 2) {
             throw new IllegalArgumentException(getClass().getSimpleName() + ": need K >= 2");
@@ -140,6 +142,7 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
         this.printMixMinusMaxLogL = printMixMinusMaxLogLInput.get();
         this.printMixMinusMaxLogS = printMixMinusMaxLogSInput.get();
         this.printViolationFlag = printViolationFlagInput.get();
+        this.completeAllocation = completeAllocationInput.get();
 
         this.logL = new double[K];
         this.wk = new double[K];
@@ -178,20 +181,19 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
 
     @Override
     public void log(final long sample, final PrintStream out) {
-        final double a = alphaValue();
-
-        final boolean needWeights = printWeights || printTotalLogP || printLogMix || printResp || printLogS
-                || printSumWeights || printMaxLogS || printMixMinusMaxLogS;
-        final boolean needLogL = printLogL || printTotalLogP || printLogMix || printResp || printLogS
-                || printMaxLogL || printMaxLogS || printMixMinusMaxLogL || printMixMinusMaxLogS || printViolationFlag
-                || (a != 0.0) || printCouplingTerm;
-
-        if (needWeights) {
-            for (int k = 0; k < K; k++) wk[k] = weightValue(k);
+        // read back the mixture's last evaluation, never re-entering the component likelihoods;
+        // the MCMC evaluates the posterior before the first sample is logged
+        if (completeAllocation) {
+            mix.completeLastEvaluation();
         }
 
-        if (needLogL) {
-            for (int k = 0; k < K; k++) logL[k] = subLiks.get(k).calculateLogP();
+        final double a = alphaValue();
+
+        for (int k = 0; k < K; k++) {
+            wk[k] = weightValue(k);
+            // NaN for components the last evaluation skipped
+            logL[k] = mix.getLastComponentLogL(k);
+            logS[k] = mix.getLastComponentLogS(k);
         }
 
         double sumW = 0.0;
@@ -201,47 +203,15 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
 
         double maxLogL = Double.NEGATIVE_INFINITY;
         double maxLogS = Double.NEGATIVE_INFINITY;
-
-        double m = Double.NEGATIVE_INFINITY;
-        double denomExp = 0.0;
-
-        double sumLogL = 0.0;
-        if (a != 0.0) {
-            for (int k = 0; k < K; k++) {
-                final double li = logL[k];
-                if (!Double.isFinite(li)) {
-                    sumLogL = Double.NEGATIVE_INFINITY;
-                    break;
-                }
-                sumLogL += li;
-            }
-        }
-
         for (int k = 0; k < K; k++) {
-            final double w = wk[k];
-            final double li = logL[k];
-
-            if (w > 0.0 && Double.isFinite(li)) {
-                if (li > maxLogL) maxLogL = li;
-                final double v = Math.log(w) + li;
-                logS[k] = v;
-                if (v > maxLogS) maxLogS = v;
-                if (v > m) m = v;
-            } else {
-                logS[k] = Double.NEGATIVE_INFINITY;
+            if (Double.isFinite(logS[k])) {
+                if (logL[k] > maxLogL) maxLogL = logL[k];
+                if (logS[k] > maxLogS) maxLogS = logS[k];
             }
         }
 
-        double logMix = Double.NEGATIVE_INFINITY;
-        if (Double.isFinite(m)) {
-            for (int k = 0; k < K; k++) {
-                final double v = logS[k];
-                if (Double.isFinite(v)) denomExp += Math.exp(v - m);
-            }
-            if (denomExp > 0.0) logMix = m + Math.log(denomExp);
-        }
-
-        final double couplingTerm = (a == 0.0 ? 0.0 : (Double.isFinite(sumLogL) ? a * sumLogL : Double.NEGATIVE_INFINITY));
+        final double logMix = mix.getLastLogMix();
+        final double couplingTerm = mix.getLastCouplingTerm();
         final double totalLogP = (Double.isFinite(logMix) && Double.isFinite(couplingTerm)) ? (logMix + couplingTerm) : Double.NEGATIVE_INFINITY;
 
         if (printTotalLogP) { out.print(fmt(totalLogP)); out.print('\t'); }
@@ -260,16 +230,7 @@ public class MixtureLikelihoodLogger extends BEASTObject implements Loggable {
             for (int k = 0; k < K; k++) { out.print(fmt(logS[k])); out.print('\t'); }
         }
         if (printResp) {
-            if (denomExp > 0.0 && Double.isFinite(m)) {
-                for (int k = 0; k < K; k++) {
-                    final double v = logS[k];
-                    final double rk = Double.isFinite(v) ? (Math.exp(v - m) / denomExp) : 0.0;
-                    out.print(fmt(rk));
-                    out.print('\t');
-                }
-            } else {
-                for (int k = 0; k < K; k++) out.print("NaN\t");
-            }
+            for (int k = 0; k < K; k++) { out.print(fmt(mix.getLastResponsibility(k))); out.print('\t'); }
         }
 
         if (printMaxLogL) { out.print(fmt(maxLogL)); out.print('\t'); }
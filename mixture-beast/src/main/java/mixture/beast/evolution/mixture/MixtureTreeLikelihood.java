@@ -1,26 +1,46 @@
 package mixture.beast.evolution.mixture;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.Distribution;
 import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.spec.type.IntScalar;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
 
 public class MixtureTreeLikelihood extends GenericTreeLikelihood {
 
+    private static final long IDLE_THREAD_SECONDS = 30L;
+
     public final Input<List<Distribution>> subLikelihoodsInput = new Input<>(
             "subLikelihood",
             "Component likelihoods L_i = P(D|T,theta_i). Each can be TreeLikelihood, ThreadedTreeLikelihood, or CompoundDistribution.",
             new ArrayList<>());
 
+    public final Input<FusedMixtureLikelihood> fusedLikelihoodInput = new Input<>(
+            "fusedLikelihood",
+            "Alternative to subLikelihood when all components share alignment, tree and site model: one engine "
+                    + "that evaluates the K components in a single pass. Component i uses its i-th branchRateModel.",
+            Validate.OPTIONAL);
+
     public final Input<RealParameter> weightsInput = new Input<>(
             "weights",
             "Legacy mixture weights w (dimension K). Usually sum to 1.",
@@ -41,22 +61,92 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
             "BEAST3 typed coupling exponent alpha. If provided, total logP = logMix + alpha * sum_i logL_i.",
             Validate.OPTIONAL);
 
+    public final Input<IntegerParameter> allocationInput = new Input<>(
+            "allocation",
+            "Legacy latent component allocation z in [0..K-1] (dimension 1). If provided, logP = logL_z and only "
+                    + "component z is evaluated; put CategoricalDistribution(z | weights) in the prior and sample z "
+                    + "with MixtureAllocationOperator. Requires fusedLikelihood and no alpha.",
+            Validate.OPTIONAL);
+
+    public final Input<IntScalar> allocationScalarInput = new Input<>(
+            "allocationScalar",
+            "BEAST3 typed latent component allocation z in [0..K-1]; see allocation.",
+            Validate.OPTIONAL);
+
+    public final Input<Boolean> parallelComponentsInput = new Input<>(
+            "parallelComponents",
+            "If true, evaluate the component likelihoods concurrently before the log-sum-exp reduction. "
+                    + "With fusedLikelihood the alignment patterns are split into blocks instead, and each task "
+                    + "evaluates all components for its block (default false).",
+            false);
+
+    public final Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Maximum number of threads used when parallelComponents=true. "
+                    + "If less than 1, min(K, BEAST thread count) is used, or the BEAST thread count with "
+                    + "fusedLikelihood (default -1).",
+            -1);
+
+    public final Input<Integer> patternBlocksInput = new Input<>(
+            "patternBlocks",
+            "Number of pattern blocks used with fusedLikelihood and parallelComponents=true. "
+                    + "If less than 1, one block per thread is used (default -1).",
+            -1);
+
     private List<Distribution> subLikelihoods;
+    private FusedMixtureLikelihood fused;
     private RealParameter legacyWeights;
     private RealVector typedWeights;
     private RealParameter legacyAlpha;
     private RealScalar typedAlpha;
+    private IntegerParameter legacyAllocation;
+    private IntScalar typedAllocation;
     private int K;
 
+    private boolean parallelComponents;
+    private int workerThreads;
+    private ExecutorService componentExec;
+    private boolean ownsComponentExec;
+    private Future<?>[] componentFutures;
+    // components evaluated by the current parallel round, and whether the round's result is already -Inf
+    private boolean[] evaluatedInRound;
+    private volatile boolean roundFailed;
+
+    // per-component cache: logL_i and term_i = log(w_i) + logL_i from the last evaluation,
+    // plus the weights the log-weights were taken from
+    private double[] componentLogL;
+    private boolean[] hasComponentLogL;
+    private double[] term;
+    private double[] cachedWeights;
+    private double[] logWeights;
+
+    private double[] storedComponentLogL;
+    private boolean[] storedHasComponentLogL;
+    private double[] storedTerm;
+
+    // pieces of the last evaluation that loggers read back instead of recomputing
+    private boolean evaluated;
+    private double lastLogMix = Double.NaN;
+    private double lastCouplingTerm = Double.NaN;
+    private boolean storedEvaluated;
+    private double storedLastLogMix = Double.NaN;
+    private double storedLastCouplingTerm = Double.NaN;
+
     @Override
     public void initAndValidate() {
         subLikelihoods = subLikelihoodsInput.get();
+        fused = fusedLikelihoodInput.get();
         legacyWeights = weightsInput.get();
         typedWeights = weightsVectorInput.get();
         legacyAlpha = alphaInput.get();
         typedAlpha = alphaScalarInput.get();
-        K = subLikelihoods.size();
+        legacyAllocation = allocationInput.get();
+        typedAllocation = allocationScalarInput.get();
+        K = getComponentCount();
 
+        if (fused != null && !subLikelihoods.isEmpty()) {
+            throw new IllegalArgumentException("MixtureTreeLikelihood: specify only one of subLikelihood or fusedLikelihood.");
+        }
         if (K < 2) {
             throw new IllegalArgumentException("MixtureTreeLikelihood: need at least two subLikelihoods.");
         }
@@ -69,6 +159,22 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
         if (legacyAlpha != null && typedAlpha != null) {
             throw new IllegalArgumentException("MixtureTreeLikelihood: specify only one of alpha or alphaScalar.");
         }
+        if (legacyAllocation != null && typedAllocation != null) {
+            throw new IllegalArgumentException("MixtureTreeLikelihood: specify only one of allocation or allocationScalar.");
+        }
+        if (isAllocationMode()) {
+            // a skipped TreeLikelihood would miss the dirty flags of the steps it sat out; the fused engine
+            // tracks those per component
+            if (fused == null) {
+                throw new IllegalArgumentException("MixtureTreeLikelihood: allocation requires fusedLikelihood.");
+            }
+            if (legacyAlpha != null || typedAlpha != null) {
+                throw new IllegalArgumentException("MixtureTreeLikelihood: allocation cannot be combined with alpha.");
+            }
+            if (legacyAllocation != null && legacyAllocation.getDimension() != 1) {
+                throw new IllegalArgumentException("MixtureTreeLikelihood: allocation must have dimension 1.");
+            }
+        }
         if (weightsDimension() != K) {
             throw new IllegalArgumentException("MixtureTreeLikelihood: weights dimension ("
                     + weightsDimension() + ") != number of subLikelihoods (" + K + ").");
@@ -89,10 +195,101 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
             Log.warning("MixtureTreeLikelihood: weights do not sum to 1 (sum=" + wsum
                     + "). If you expect a true mixture, make sure sum(weights)=1.");
         }
+
+        componentLogL = new double[K];
+        hasComponentLogL = new boolean[K];
+        term = new double[K];
+        cachedWeights = new double[K];
+        logWeights = new double[K];
+        storedComponentLogL = new double[K];
+        storedHasComponentLogL = new boolean[K];
+        storedTerm = new double[K];
+        Arrays.fill(cachedWeights, Double.NaN);
+        componentFutures = new Future<?>[K];
+        evaluatedInRound = new boolean[K];
+        releaseComponentExecutor();
+        parallelComponents = parallelComponentsInput.get();
+        if (parallelComponents && fused != null) {
+            // one shared pool over pattern blocks; every task evaluates all K components for its block
+            parallelComponents = false;
+            workerThreads = threadsInput.get() < 1 ? Math.max(1, ProgramStatus.m_nThreads) : threadsInput.get();
+            if (workerThreads >= 2) {
+                setExecutor(newComponentExecutor(workerThreads));
+                ownsComponentExec = true;
+            }
+        } else if (parallelComponents) {
+            int nThreads = threadsInput.get();
+            if (nThreads < 1) {
+                nThreads = Math.min(K, Math.max(1, ProgramStatus.m_nThreads));
+            }
+            nThreads = Math.min(nThreads, K);
+            if (nThreads < 2) {
+                parallelComponents = false;
+            } else {
+                setExecutor(newComponentExecutor(nThreads));
+                ownsComponentExec = true;
+            }
+        }
+    }
+
+    /**
+     * Use the given executor for parallel component evaluation. The executor must not be the pool used by the
+     * component likelihoods themselves (e.g. ProgramStatus.g_exec for ThreadedTreeLikelihood), otherwise nested
+     * tasks can starve. With fusedLikelihood the executor runs the engine's pattern blocks instead. The caller keeps
+     * ownership of the executor; a pool this likelihood created itself is shut down when it is replaced.
+     */
+    public void setExecutor(final ExecutorService exec) {
+        if (exec == null) {
+            throw new IllegalArgumentException("MixtureTreeLikelihood: executor is null.");
+        }
+        if (exec != componentExec) {
+            releaseComponentExecutor();
+        }
+        componentExec = exec;
+        if (fused != null) {
+            fused.setExecutor(exec, patternBlockCount());
+            return;
+        }
+        parallelComponents = true;
+    }
+
+    private int patternBlockCount() {
+        if (patternBlocksInput.get() > 0) {
+            return patternBlocksInput.get();
+        }
+        return workerThreads >= 2 ? workerThreads : Math.max(2, ProgramStatus.m_nThreads);
+    }
+
+    /** Shut down the pool this likelihood created, if any; an executor handed in through setExecutor is left alone. */
+    private void releaseComponentExecutor() {
+        if (ownsComponentExec && componentExec != null) {
+            componentExec.shutdown();
+        }
+        ownsComponentExec = false;
+        componentExec = null;
+    }
+
+    /**
+     * A private pool rather than ProgramStatus.g_exec: component likelihoods and nested mixtures may already be
+     * running on the shared pool, and waiting on it from inside one of its tasks can starve. Idle threads time out,
+     * so a likelihood that is dropped without re-initialisation leaves no threads behind.
+     */
+    private static ExecutorService newComponentExecutor(final int nThreads) {
+        final ThreadPoolExecutor exec = new ThreadPoolExecutor(nThreads, nThreads,
+                IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread t = new Thread(r, "MixtureTreeLikelihood-component");
+            t.setDaemon(true);
+            return t;
+        });
+        exec.allowCoreThreadTimeOut(true);
+        return exec;
     }
 
     @Override
     public double calculateLogP() {
+        if (isAllocationMode()) {
+            return calculateAllocatedLogP();
+        }
 
         final double a = alphaValue();
 
@@ -100,23 +297,40 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
         double sumLogL = 0.0;
         boolean needCoupling = (a > 0.0);
 
-        final double[] term = new double[K];
+        updateLogWeights();
+
+        Arrays.fill(evaluatedInRound, false);
+        if (parallelComponents) {
+            evaluateComponentsInParallel(needCoupling);
+        }
 
         for (int i = 0; i < K; i++) {
 
-            final double wi = weightValue(i);
+            final double wi = cachedWeights[i];
             final boolean needThisLi = needCoupling || (wi > 0.0);
 
             if (!needThisLi) {
+                invalidateIfDirty(i);
                 term[i] = Double.NEGATIVE_INFINITY;
                 continue;
             }
 
-            final double li = subLikelihoods.get(i).calculateLogP();
+            final double li = parallelComponents ? componentLogL[i] : componentLogL(i);
 
 
             if (needCoupling) {
                 if (!Double.isFinite(li)) {
+                    term[i] = Double.NEGATIVE_INFINITY;
+                    for (int j = i + 1; j < K; j++) {
+                        // as if the sequential pass had stopped here: a component past i has no value this round
+                        if (evaluatedInRound[j]) {
+                            hasComponentLogL[j] = false;
+                        } else {
+                            invalidateIfDirty(j);
+                        }
+                        term[j] = Double.NEGATIVE_INFINITY;
+                    }
+                    recordEvaluation(Double.NaN, Double.NEGATIVE_INFINITY);
                     logP = Double.NEGATIVE_INFINITY;
                     Log.warning("MixtureTreeLikelihood: component " + i + " logL is -Inf/NaN while alpha>0 -> total -Inf");
                     return logP;
@@ -129,14 +343,17 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
                 continue;
             }
 
-            final double ti = Math.log(wi) + li;
+            final double ti = logWeights[i] + li;
             term[i] = ti;
             if (ti > maxTerm) {
                 maxTerm = ti;
             }
         }
 
+        final double logCouple = (a == 0.0 ? 0.0 : a * sumLogL);
+
         if (!Double.isFinite(maxTerm)) {
+            recordEvaluation(Double.NEGATIVE_INFINITY, logCouple);
             logP = Double.NEGATIVE_INFINITY;
             Log.warning("MixtureTreeLikelihood: all positive-weight components are -Inf/NaN -> returning -Inf");
             return logP;
@@ -149,18 +366,295 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
             }
         }
         if (!(sumExp > 0.0)) {
+            recordEvaluation(Double.NEGATIVE_INFINITY, logCouple);
             logP = Double.NEGATIVE_INFINITY;
             Log.warning("MixtureTreeLikelihood: terms underflowed/NaN -> returning -Inf");
             return logP;
         }
 
         final double logMix = Math.log(sumExp) + maxTerm;
-        final double logCouple = (a == 0.0 ? 0.0 : a * sumLogL);
+        recordEvaluation(logMix, logCouple);
 
         logP = logMix + logCouple;
         return logP;
     }
 
+    /**
+     * Latent allocation: only component z is evaluated. The other components keep their cached value while it is
+     * valid; their terms are left out of the snapshot until completeLastEvaluation is called.
+     */
+    private double calculateAllocatedLogP() {
+        updateLogWeights();
+        final int z = allocationValue();
+        for (int i = 0; i < K; i++) {
+            if (i != z) {
+                invalidateIfDirty(i);
+                term[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        if (z < 0 || z >= K) {
+            recordEvaluation(Double.NaN, 0.0);
+            logP = Double.NEGATIVE_INFINITY;
+            return logP;
+        }
+
+        final double lz = componentLogL(z);
+        term[z] = (cachedWeights[z] > 0.0 && Double.isFinite(lz)) ? logWeights[z] + lz : Double.NEGATIVE_INFINITY;
+        recordEvaluation(Double.NaN, 0.0);
+
+        logP = lz;
+        return logP;
+    }
+
+    /**
+     * Under latent allocation, evaluate the components that were not needed by the last step at the current state
+     * and fill in their terms and logMix, so that getLastResponsibility returns the Rao-Blackwellised
+     * p(z = i | rest) = w_i L_i / sum_j w_j L_j. logP is unchanged. Meant to be called between MCMC steps, by a
+     * logger that opts in; without allocation it does nothing.
+     */
+    public void completeLastEvaluation() {
+        if (!isAllocationMode()) {
+            return;
+        }
+        if (!evaluated) {
+            calculateLogP();
+        }
+
+        // one fused pass over every stale component
+        for (int i = 0; i < K; i++) {
+            if (componentNeedsUpdate(i)) {
+                fused.getComponentLogL(i);
+                break;
+            }
+        }
+
+        double maxTerm = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < K; i++) {
+            final double li = componentLogL(i);
+            term[i] = (cachedWeights[i] > 0.0 && Double.isFinite(li)) ? logWeights[i] + li : Double.NEGATIVE_INFINITY;
+            if (term[i] > maxTerm) {
+                maxTerm = term[i];
+            }
+        }
+        if (!Double.isFinite(maxTerm)) {
+            lastLogMix = Double.NEGATIVE_INFINITY;
+            return;
+        }
+        double sumExp = 0.0;
+        for (int i = 0; i < K; i++) {
+            if (Double.isFinite(term[i])) {
+                sumExp += Math.exp(term[i] - maxTerm);
+            }
+        }
+        lastLogMix = Math.log(sumExp) + maxTerm;
+    }
+
+    /** True if a latent allocation is given, in which case logP is the likelihood of the allocated component only. */
+    public boolean isAllocationMode() {
+        return allocationInput.get() != null || allocationScalarInput.get() != null;
+    }
+
+    private void recordEvaluation(final double logMix, final double logCouple) {
+        lastLogMix = logMix;
+        lastCouplingTerm = logCouple;
+        evaluated = true;
+    }
+
+    /**
+     * True once calculateLogP has run. The getLast* accessors are a read-only view of that evaluation; they are
+     * stored and restored with the rest of the cache, so between MCMC steps they describe the accepted state and
+     * loggers can read them without re-entering the component likelihoods.
+     */
+    public boolean hasLastEvaluation() {
+        return evaluated;
+    }
+
+    public int getComponentCount() {
+        final FusedMixtureLikelihood f = fusedLikelihoodInput.get();
+        return f != null ? f.getComponentCount() : subLikelihoodsInput.get().size();
+    }
+
+    /** logL_i from the last evaluation, or NaN if component i was skipped and has no valid cached value. */
+    public double getLastComponentLogL(final int i) {
+        return hasComponentLogL[i] ? componentLogL[i] : Double.NaN;
+    }
+
+    /**
+     * logS_i = log(w_i) + logL_i from the last evaluation; -Inf for zero-weight or non-finite components, NaN before
+     * the first evaluation.
+     */
+    public double getLastComponentLogS(final int i) {
+        return evaluated ? term[i] : Double.NaN;
+    }
+
+    /** Responsibility r_i = exp(logS_i - logMix), or NaN if the last logMix was not finite. */
+    public double getLastResponsibility(final int i) {
+        if (!Double.isFinite(lastLogMix)) {
+            return Double.NaN;
+        }
+        return Double.isFinite(term[i]) ? Math.exp(term[i] - lastLogMix) : 0.0;
+    }
+
+    /**
+     * log sum_i w_i L_i from the last evaluation; NaN if the evaluation stopped early on the coupling term, or under
+     * latent allocation until completeLastEvaluation has run.
+     */
+    public double getLastLogMix() {
+        return lastLogMix;
+    }
+
+    /** alpha * sum_i logL_i from the last evaluation (0 when alpha is absent or not positive). */
+    public double getLastCouplingTerm() {
+        return lastCouplingTerm;
+    }
+
+    /** Component i must be re-entered if it has no cached value or its own subgraph is dirty. */
+    private boolean componentNeedsUpdate(final int i) {
+        return !hasComponentLogL[i] || componentDirty(i);
+    }
+
+    private boolean componentDirty(final int i) {
+        return fused != null ? fused.isComponentDirty(i) : subLikelihoods.get(i).isDirtyCalculation();
+    }
+
+    private double evaluateComponent(final int i) {
+        if (fused != null) {
+            return isAllocationMode() ? fused.getSingleComponentLogL(i) : fused.getComponentLogL(i);
+        }
+        return subLikelihoods.get(i).calculateLogP();
+    }
+
+    private double componentLogL(final int i) {
+        if (componentNeedsUpdate(i)) {
+            componentLogL[i] = evaluateComponent(i);
+            hasComponentLogL[i] = true;
+        }
+        return componentLogL[i];
+    }
+
+    /** A dirty component that is skipped this round no longer has a valid cached value. */
+    private void invalidateIfDirty(final int i) {
+        if (componentDirty(i)) {
+            hasComponentLogL[i] = false;
+        }
+    }
+
+    private int allocationValue() {
+        return legacyAllocation != null ? legacyAllocation.getValue(0) : typedAllocation.get();
+    }
+
+    private boolean allocationDirty() {
+        if (legacyAllocation != null) {
+            return legacyAllocation.somethingIsDirty();
+        }
+        return typedAllocation instanceof CalculationNode && ((CalculationNode) typedAllocation).somethingIsDirty();
+    }
+
+    private void updateLogWeights() {
+        for (int i = 0; i < K; i++) {
+            final double wi = weightValue(i);
+            if (Double.compare(wi, cachedWeights[i]) != 0) {
+                cachedWeights[i] = wi;
+                logWeights[i] = (wi > 0.0) ? Math.log(wi) : Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Refresh componentLogL[i] for every component that the reduction will read and whose cache is stale. All such
+     * components but the first are submitted to the executor; the first is evaluated on the calling thread. The
+     * reduction itself stays sequential in component order, so results are identical to the sequential path.
+     *
+     * With alpha > 0 the sequential pass stops at the first -Inf/NaN component, and so does this one: nothing past a
+     * cached non-finite value is submitted, and once a component in order turns out non-finite, tasks that have not
+     * started yet return without evaluating. Components past it that were evaluated anyway are dropped by the
+     * reduction, so the cache ends up as the sequential pass would leave it.
+     */
+    private void evaluateComponentsInParallel(final boolean needCoupling) {
+        int first = -1;
+        roundFailed = false;
+        try {
+            for (int i = 0; i < K; i++) {
+                componentFutures[i] = null;
+            }
+            for (int i = 0; i < K; i++) {
+                if (!needCoupling && !(cachedWeights[i] > 0.0)) {
+                    continue;
+                }
+                if (!componentNeedsUpdate(i)) {
+                    if (needCoupling && !Double.isFinite(componentLogL[i])) {
+                        break;
+                    }
+                    continue;
+                }
+                if (first < 0) {
+                    first = i;
+                    continue;
+                }
+                final int idx = i;
+                componentFutures[i] = componentExec.submit(() -> {
+                    if (roundFailed) {
+                        return;
+                    }
+                    componentLogL[idx] = evaluateComponent(idx);
+                    hasComponentLogL[idx] = true;
+                    evaluatedInRound[idx] = true;
+                });
+            }
+            if (first >= 0) {
+                evaluatedInRound[first] = true;
+                if (needCoupling && !Double.isFinite(componentLogL(first))) {
+                    roundFailed = true;
+                }
+            }
+            for (int i = 0; i < K; i++) {
+                if (componentFutures[i] != null) {
+                    componentFutures[i].get();
+                    componentFutures[i] = null;
+                    if (needCoupling && evaluatedInRound[i] && !Double.isFinite(componentLogL[i])) {
+                        roundFailed = true;
+                    }
+                }
+            }
+        } catch (RejectedExecutionException | InterruptedException e) {
+            Log.err.println("MixtureTreeLikelihood: stop using threads: " + e.getMessage());
+            awaitOutstanding();
+            parallelComponents = false;
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (ExecutionException e) {
+            awaitOutstanding();
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("MixtureTreeLikelihood: component evaluation failed", cause);
+        }
+    }
+
+    /** Wait for submitted component tasks so that no worker is still touching a component after we return. */
+    private void awaitOutstanding() {
+        for (int i = 0; i < K; i++) {
+            final Future<?> f = componentFutures[i];
+            componentFutures[i] = null;
+            if (f == null) {
+                continue;
+            }
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // already failing; the first error is reported by the caller
+            }
+        }
+    }
+
     @Override
     public List<String> getArguments() { return List.of(); }
 
@@ -171,7 +665,60 @@ public class MixtureTreeLikelihood extends GenericTreeLikelihood {
     public void sample(State state, Random random) { }
 
     @Override
-    protected boolean requiresRecalculation() { return true; }
+    protected boolean requiresRecalculation() {
+        for (int i = 0; i < K; i++) {
+            if (componentNeedsUpdate(i)) {
+                return true;
+            }
+        }
+        return weightsDirty() || alphaDirty() || (isAllocationMode() && allocationDirty());
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(componentLogL, 0, storedComponentLogL, 0, K);
+        System.arraycopy(hasComponentLogL, 0, storedHasComponentLogL, 0, K);
+        System.arraycopy(term, 0, storedTerm, 0, K);
+        storedEvaluated = evaluated;
+        storedLastLogMix = lastLogMix;
+        storedLastCouplingTerm = lastCouplingTerm;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = componentLogL;
+        componentLogL = storedComponentLogL;
+        storedComponentLogL = tmp;
+
+        final boolean[] tmpHas = hasComponentLogL;
+        hasComponentLogL = storedHasComponentLogL;
+        storedHasComponentLogL = tmpHas;
+
+        tmp = term;
+        term = storedTerm;
+        storedTerm = tmp;
+
+        evaluated = storedEvaluated;
+        lastLogMix = storedLastLogMix;
+        lastCouplingTerm = storedLastCouplingTerm;
+
+        super.restore();
+    }
+
+    private boolean weightsDirty() {
+        if (legacyWeights != null) {
+            return legacyWeights.somethingIsDirty();
+        }
+        return typedWeights instanceof CalculationNode && ((CalculationNode) typedWeights).somethingIsDirty();
+    }
+
+    private boolean alphaDirty() {
+        if (legacyAlpha != null) {
+            return legacyAlpha.somethingIsDirty();
+        }
+        return typedAlpha instanceof CalculationNode && ((CalculationNode) typedAlpha).somethingIsDirty();
+    }
 
     private int weightsDimension() {
         return legacyWeights != null ? legacyWeights.getDimension() : typedWeights.size();
@@ -16,6 +16,9 @@ import beast.base.spec.type.IntScalar;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.LogRateKernels;
+import mixture.beast.evolution.util.RateAccessor;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -24,7 +27,8 @@ import java.util.Random;
 
 @Description("SVS-style relaxed-clock rate prior on a shared vector of positive branch rates. "
         + "indicator=0: UC i.i.d. LogNormal on rates (E[r]=1). "
-        + "indicator=1: AC lognormal increments along the tree with mean-correction so E[r_child|r_parent]=r_parent.")
+        + "indicator=1: AC lognormal increments along the tree with mean-correction so E[r_child|r_parent]=r_parent. "
+        + "indicator=2: strict clock; the clock ignores the rates, which keep the UC density as a pseudo-prior.")
 public class RelaxedRatesPriorSVS extends Distribution {
 
     public final Input<Tree> treeInput = new Input<>("tree", "tree", Input.Validate.REQUIRED);
@@ -42,12 +46,12 @@ public class RelaxedRatesPriorSVS extends Distribution {
 
     public final Input<IntegerParameter> indicatorInput = new Input<>(
             "indicator",
-            "Legacy integer parameter, dimension=1; 0=uncorrelated, 1=autocorrelated.",
+            "Legacy integer parameter, dimension=1; 0=uncorrelated, 1=autocorrelated, 2=strict.",
             Input.Validate.OPTIONAL);
 
     public final Input<IntScalar> indicatorScalarInput = new Input<>(
             "indicatorScalar",
-            "BEAST3 typed integer scalar; 0=uncorrelated, 1=autocorrelated.",
+            "BEAST3 typed integer scalar; 0=uncorrelated, 1=autocorrelated, 2=strict.",
             Input.Validate.OPTIONAL);
 
     public final Input<RealParameter> ucldStdevInput = new Input<>(
@@ -83,11 +87,33 @@ public class RelaxedRatesPriorSVS extends Distribution {
     public final Input<Double> minBranchLengthInput = new Input<>(
             "minBranchLength", "minimum branch length (time) allowed in AC; if shorter, logP=-inf.", 1e-12);
 
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the shared rates hold log-rates x = log r (no lower bound of 0 then) and the prior is the same "
+                    + "model expressed as a density on x; every component on the rates must use the same setting.",
+            false);
+
+    public final Input<String> rateLayoutInput = new Input<>(
+            "rateLayout",
+            "Order of the branches in the shared rates: nodeNr (default, by child node nr) or preorder (by the "
+                    + "preorder of the starting tree, so that every subtree is one contiguous index range). "
+                    + "Applies to every component on the same tree; components that set it must agree.",
+            Input.Validate.OPTIONAL);
+
+    /** Indicator values. */
+    public static final int UC = 0;
+    public static final int AC = 1;
+    public static final int STRICT = 2;
+
     private static final double LOG_2PI = Math.log(2.0 * Math.PI);
 
+    /** Incremental UC updates between full recomputations, to bound floating-point drift in the running sum. */
+    private static final int REBUILD_INTERVAL = 1000;
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVector typedRates;
+    private RateAccessor rates;
     private IntegerParameter legacyIndicator;
     private IntScalar typedIndicator;
     private RealParameter legacyUcldStdev;
@@ -97,8 +123,84 @@ public class RelaxedRatesPriorSVS extends Distribution {
     private RealParameter legacySigma2;
     private RealScalar typedSigma2;
 
+    private boolean logRates;
     private BranchRateIndexHelper.Mapping mapping;
 
+    // UC/AC prior values, each tagged with the version of the rates, tree and hyperparameters it was computed for.
+    // The indicator does not enter either value, so switching it keeps both valid.
+    private long inputsVersion;
+    private long lastInputsVersion;
+    private long storedInputsVersion;
+    private double lastLogPriorUC;
+    private double lastLogPriorAC;
+    private long lastLogPriorUCVersion = -1;
+    private long lastLogPriorACVersion = -1;
+    private double storedLastLogPriorUC;
+    private double storedLastLogPriorAC;
+    private long storedLastLogPriorUCVersion = -1;
+    private long storedLastLogPriorACVersion = -1;
+
+    // UC sufficient statistics: x_i = log r_i per rate index (NaN if r_i <= 0), with sum x, sum x^2 and the number
+    // of invalid rates. Kept in step with legacy rates through their dirty indices; ucldStdev enters only when
+    // the prior is evaluated, so a ucldStdev move costs O(1).
+    private double[] ucLogRates;
+    private double ucSumLog;
+    private double ucSumLogSq;
+    private int ucInvalidRates;
+    private boolean ucValid;
+    private int updatesSinceRebuild;
+    private boolean ratesChangedSinceStore;
+
+    // AC sufficient statistics per edge (node nr, root excluded), with x = log rate of the node, p = log rate of the
+    // parent (rootLogRate at the root) and d = x - p: sums of x, d, d^2/dt, log dt and dt, plus the number of
+    // invalid edges (non-positive rate or dt <= minBranchLength). sigma2 enters only when the prior is evaluated.
+    // Nodes whose rate, parent rate or branch length changed are queued and their edges refreshed when the AC
+    // value is next needed; rootLogRate, minBranchLength and topology changes trigger a full recomputation.
+    private double[] acLogRates;
+    private double[] acEdgeLogRate;
+    private double[] acEdgeDelta;
+    private double[] acEdgeDeltaSqOverDt;
+    private double[] acEdgeLogDt;
+    private double[] acEdgeDt;
+    private boolean[] isACEdgeInvalid;
+    private double acSumLogRate;
+    private double acSumDelta;
+    private double acSumDeltaSqOverDt;
+    private double acSumLogDt;
+    private double acSumDt;
+    private int acInvalidEdges;
+    private double acRootLogRate;
+    private double acMinBranchLength;
+    private BranchRateIndexHelper.Mapping acMapping;
+    private boolean acValid;
+    private int acUpdatesSinceRebuild;
+    private int[] acPending;
+    private boolean[] isACPending;
+    private int acPendingCount;
+    // nodes queued since store(); restore() queues them again once their inputs are back at the stored values
+    private int[] acChanged;
+    private boolean[] isACChanged;
+    private int acChangedCount;
+    private boolean acRebuiltSinceStore;
+
+    // subtree scale announced by an operator for the current proposal, consumed by requiresRecalculation; restore()
+    // copies back the statistics the applied scale touched instead of re-reading the dirty rates
+    private int scaledSubtreeNr = -1;
+    private double scaledSubtreeLogScale;
+    private int appliedSubtreeNr = -1;
+    private boolean shiftedUC;
+    private boolean shiftedAC;
+    private double[] shiftSavedUCLogRates;
+    private double[] shiftSavedACLogRates;
+    private double[] shiftSavedACEdgeLogRates;
+    private double shiftSavedUCSumLog;
+    private double shiftSavedUCSumLogSq;
+    private double shiftSavedACSumLogRate;
+    private double shiftSavedACSumDelta;
+    private double shiftSavedACSumDeltaSqOverDt;
+    private double shiftSavedACEdgeDelta;
+    private double shiftSavedACEdgeDeltaSqOverDt;
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -132,8 +234,17 @@ public class RelaxedRatesPriorSVS extends Distribution {
             throw new IllegalArgumentException("rootLogRate must have dimension=1.");
         }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(ratesObject(), logRates, "RelaxedRatesPriorSVS");
+
         validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        rates = legacyRates != null
+                ? RateAccessor.of(legacyRates)
+                : RateAccessor.of(typedRates, expectedRateDimension());
+        final BranchRateIndexHelper.Layout layout =
+                BranchRateIndexHelper.Layout.parse(rateLayoutInput.get(), "RelaxedRatesPriorSVS");
+        FlatTreeView.useRateLayout(tree, layout, "RelaxedRatesPriorSVS");
+        mapping = FlatTreeView.of(tree).getMapping();
     }
 
     private static void requireExactlyOne(final Object legacy,
@@ -158,7 +269,7 @@ public class RelaxedRatesPriorSVS extends Distribution {
     private void ensureMappingUpToDate() {
         validateOrExpandRatesDimension();
         if (mapping == null || !mapping.matches(tree)) {
-            mapping = BranchRateIndexHelper.buildDeterministic(tree);
+            mapping = FlatTreeView.of(tree).getMapping();
         }
     }
 
@@ -167,23 +278,19 @@ public class RelaxedRatesPriorSVS extends Distribution {
     }
 
     private int rateDimension() {
-        if (legacyRates != null) {
-            return legacyRates.getDimension();
-        }
-        if (typedRates.size() == 1 && expectedRateDimension() > 1) {
-            return expectedRateDimension();
-        }
-        return typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        if (legacyRates != null) {
-            return legacyRates.getValue(i);
-        }
-        if (typedRates.size() == 1) {
-            return typedRates.get(0);
+        return rates.get(i);
+    }
+
+    /** log r of a stored value, NaN for a non-positive or non-finite rate. */
+    private double logRateOf(final double value) {
+        if (logRates) {
+            return Double.isFinite(value) ? value : Double.NaN;
         }
-        return typedRates.get(i);
+        return value > 0.0 && value < Double.POSITIVE_INFINITY ? Math.log(value) : Double.NaN;
     }
 
     private int indicatorValue() {
@@ -305,32 +412,44 @@ public class RelaxedRatesPriorSVS extends Distribution {
                 + ". Scalar typed rates can be expanded or broadcast across all non-root branches.");
     }
 
-    /** log pdf of LogNormal in RATE space: r>0, log(r) ~ Normal(meanLog, var). */
-    private static double logLogNormalRate(final double r, final double meanLog, final double var) {
-        if (!(r > 0.0) || !(var > 0.0)) {
-            return Double.NEGATIVE_INFINITY;
-        }
-
-        final double x = Math.log(r);
-        final double z = x - meanLog;
-        return -x - 0.5 * (LOG_2PI + Math.log(var) + (z * z) / var);
-    }
-
     @Override
     public double calculateLogP() {
         ensureMappingUpToDate();
 
         final int k = indicatorValue();
-        if (k == 0) {
-            logP = logPriorUCOnly();
-        } else if (k == 1) {
-            logP = logPriorACOnly();
+        if (k == UC || k == STRICT) {
+            // under STRICT the rates are not used by the clock; the UC density keeps them proper
+            logP = getLastLogPriorUC();
+        } else if (k == AC) {
+            logP = getLastLogPriorAC();
         } else {
             logP = Double.NEGATIVE_INFINITY;
         }
         return logP;
     }
 
+    /**
+     * UC log-prior of the current state, computed at most once per version of the rates, tree and hyperparameters.
+     * calculateLogP, the indicator Gibbs step and the loggers all read it from here, so the inactive mode is only
+     * evaluated when one of them asks for it.
+     */
+    public double getLastLogPriorUC() {
+        if (lastLogPriorUCVersion != inputsVersion) {
+            lastLogPriorUC = logPriorUCOnly();
+            lastLogPriorUCVersion = inputsVersion;
+        }
+        return lastLogPriorUC;
+    }
+
+    /** AC log-prior of the current state; cached like {@link #getLastLogPriorUC()}. */
+    public double getLastLogPriorAC() {
+        if (lastLogPriorACVersion != inputsVersion) {
+            lastLogPriorAC = logPriorACOnly();
+            lastLogPriorACVersion = inputsVersion;
+        }
+        return lastLogPriorAC;
+    }
+
     /** UC: r_i iid LogNormal with E[r]=1. */
     public double logPriorUCOnly() {
         final double s = ucldStdevValue();
@@ -338,17 +457,100 @@ public class RelaxedRatesPriorSVS extends Distribution {
             return Double.NEGATIVE_INFINITY;
         }
 
+        final int dim = rateDimension();
+        if (!ucValid || legacyRates == null || ucLogRates.length != dim || updatesSinceRebuild >= REBUILD_INTERVAL) {
+            rebuildUCStatistics(dim);
+        }
+        if (ucInvalidRates > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // LogNormal(-var/2, var) in rate space: sum of -x - (log(2 pi var) + (x + var/2)^2 / var) / 2; the -x is the
+        // Jacobian of r = exp(x) and is left out when the state holds x itself
         final double var = s * s;
-        final double meanLog = -0.5 * var;
+        return (logRates ? -0.5 : -1.5) * ucSumLog - 0.5 * dim * (LOG_2PI + Math.log(var)) - 0.5 * ucSumLogSq / var - 0.125 * dim * var;
+    }
 
-        double lp = 0.0;
-        for (int i = 0; i < rateDimension(); i++) {
-            lp += logLogNormalRate(rateValue(i), meanLog, var);
-            if (Double.isInfinite(lp)) {
-                return Double.NEGATIVE_INFINITY;
+    private void rebuildUCStatistics(final int dim) {
+        if (ucLogRates == null || ucLogRates.length != dim) {
+            ucLogRates = new double[dim];
+        }
+
+        for (int i = 0; i < dim; i++) {
+            ucLogRates[i] = rateValue(i);
+        }
+        ucInvalidRates = LogRateKernels.toLogRates(ucLogRates, ucLogRates, dim, logRates);
+        ucSumLog = LogRateKernels.sumIgnoringNaN(ucLogRates, dim);
+        ucSumLogSq = LogRateKernels.sumSquaresIgnoringNaN(ucLogRates, dim);
+        ucValid = true;
+        updatesSinceRebuild = 0;
+    }
+
+    private void addUCRate(final double x, final double sign) {
+        if (Double.isNaN(x)) {
+            ucInvalidRates += (int) sign;
+        } else {
+            ucSumLog += sign * x;
+            ucSumLogSq += sign * x * x;
+        }
+    }
+
+    /**
+     * Refresh the UC statistics of the legacy rates flagged dirty; re-applying the same flags is harmless. A change
+     * that sets no index flag (RealParameter.scale(), assignFromFragile) invalidates the statistics instead.
+     */
+    private void updateDirtyUCStatistics() {
+        int covered = 0;
+        final JournaledRealParameter journaled = journaledRates();
+        if (journaled != null) {
+            covered = journaled.getChangedCount();
+            for (int k = 0; k < covered; k++) {
+                updateUCRate(journaled.getChangedIndex(k));
             }
+        } else {
+            for (int i = 0; i < ucLogRates.length; i++) {
+                if (legacyRates.isDirty(i)) {
+                    updateUCRate(i);
+                    covered++;
+                }
+            }
+        }
+        if (covered == 0) {
+            ucValid = false;
+            return;
+        }
+        updatesSinceRebuild++;
+    }
+
+    private void updateUCRate(final int i) {
+        final double x = logRateOf(rates.get(i));
+        addUCRate(ucLogRates[i], -1.0);
+        addUCRate(x, 1.0);
+        ucLogRates[i] = x;
+    }
+
+    /** The legacy rates as a JournaledRealParameter whose changed indices can be listed, or null. */
+    private JournaledRealParameter journaledRates() {
+        if (legacyRates instanceof JournaledRealParameter
+                && ((JournaledRealParameter) legacyRates).hasCompleteChangeList()) {
+            return (JournaledRealParameter) legacyRates;
+        }
+        return null;
+    }
+
+    /**
+     * Follow a rate change into the UC statistics while the dirty flags are still set, also when the active mode is
+     * AC and calculateLogP will not ask for the UC value in this step.
+     */
+    private void syncUCStatisticsWithRates() {
+        if (!ucValid) {
+            return;
+        }
+        if (legacyRates == null || ucLogRates.length != legacyRates.getDimension()) {
+            ucValid = false;
+        } else {
+            updateDirtyUCStatistics();
         }
-        return lp;
     }
 
     /** AC: per-branch lognormal increments with mean-correction (martingale): E[r_child|r_parent]=r_parent. */
@@ -367,58 +569,208 @@ public class RelaxedRatesPriorSVS extends Distribution {
 
         final double rootLog = rootLogRateValue();
 
-        double lp = 0.0;
+        if (!acValid || legacyRates == null || acMapping != mapping || acLogRates.length != mapping.getNodeCount()
+                || rootLog != acRootLogRate || minDt != acMinBranchLength
+                || acUpdatesSinceRebuild >= REBUILD_INTERVAL) {
+            rebuildACStatistics(rootLog, minDt);
+        } else if (acPendingCount > 0) {
+            updatePendingACStatistics();
+        }
+        if (acInvalidEdges > 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // sum over edges of -x - (log 2pi s2 dt + (d + s2 dt/2)^2/(s2 dt))/2, expanded in the per-edge statistics;
+        // without the Jacobian term -x when the state holds log-rates
+        final int nEdges = acLogRates.length - 1;
+        return (logRates ? 0.0 : -acSumLogRate) - 0.5 * nEdges * (LOG_2PI + Math.log(s2)) - 0.5 * acSumLogDt
+                - 0.5 * acSumDeltaSqOverDt / s2 - 0.5 * acSumDelta - 0.125 * s2 * acSumDt;
+    }
+
+    private void rebuildACStatistics(final double rootLog, final double minDt) {
         final int nNodes = mapping.getNodeCount();
+        if (acLogRates == null || acLogRates.length != nNodes) {
+            acLogRates = new double[nNodes];
+            acEdgeLogRate = new double[nNodes];
+            acEdgeDelta = new double[nNodes];
+            acEdgeDeltaSqOverDt = new double[nNodes];
+            acEdgeLogDt = new double[nNodes];
+            acEdgeDt = new double[nNodes];
+            isACEdgeInvalid = new boolean[nNodes];
+            acPending = new int[nNodes];
+            isACPending = new boolean[nNodes];
+            acChanged = new int[nNodes];
+            isACChanged = new boolean[nNodes];
+            acChangedCount = 0;
+        }
+        acRootLogRate = rootLog;
+        acMinBranchLength = minDt;
+        acMapping = mapping;
 
+        final FlatTreeView view = FlatTreeView.of(tree);
         for (int i = 0; i < nNodes; i++) {
-            final Node node = tree.getNode(i);
+            acLogRates[i] = logRateOfNode(i);
+        }
+        acSumLogRate = 0.0;
+        acSumDelta = 0.0;
+        acSumDeltaSqOverDt = 0.0;
+        acSumLogDt = 0.0;
+        acSumDt = 0.0;
+        acInvalidEdges = 0;
+        for (int nr = 0; nr < nNodes; nr++) {
+            final int parentNr = view.getParentNr(nr);
+            if (parentNr >= 0) {
+                setACEdge(nr, parentNr, view.getBranchLength(nr), view.getLogBranchLength(nr));
+                addACEdge(nr, 1.0);
+            }
+        }
+
+        for (int i = 0; i < acPendingCount; i++) {
+            isACPending[acPending[i]] = false;
+        }
+        acPendingCount = 0;
+        acValid = true;
+        acRebuiltSinceStore = true;
+        acUpdatesSinceRebuild = 0;
+    }
+
+    /** Refresh the log rates of all queued nodes first, so a queued child sees its parent's new log rate. */
+    private void updatePendingACStatistics() {
+        for (int i = 0; i < acPendingCount; i++) {
+            final int nr = acPending[i];
+            acLogRates[nr] = logRateOfNode(nr);
+        }
+        for (int i = 0; i < acPendingCount; i++) {
+            final int nr = acPending[i];
+            isACPending[nr] = false;
+            final Node node = tree.getNode(nr);
             if (node.isRoot()) {
                 continue;
             }
+            addACEdge(nr, -1.0);
+            setACEdge(node);
+            addACEdge(nr, 1.0);
+        }
+        acPendingCount = 0;
+        acUpdatesSinceRebuild++;
+    }
 
-            final double dt = node.getLength();
-            if (!(dt > minDt)) {
-                return Double.NEGATIVE_INFINITY;
-            }
+    /** log of the node's rate, NaN for the root, unmapped branches and non-positive rates. */
+    private double logRateOfNode(final int nr) {
+        final int idx = mapping.idxForNodeNr(nr);
+        if (idx < 0) {
+            return Double.NaN;
+        }
+        return logRateOf(rateValue(idx));
+    }
 
-            final double var = s2 * dt;
+    /** Statistics of the edge above a non-root node from the cached log rates. */
+    private void setACEdge(final Node node) {
+        final double dt = node.getLength();
+        setACEdge(node.getNr(), node.getParent().getNr(), dt, Math.log(dt));
+    }
 
-            final int idxChi = mapping.idxForNode(node);
-            if (idxChi < 0) {
-                return Double.NEGATIVE_INFINITY;
-            }
+    private void setACEdge(final int nr, final int parentNr, final double dt, final double logDt) {
+        final double x = acLogRates[nr];
+        final double logPar = parentNr == acMapping.getRootNr() ? acRootLogRate : acLogRates[parentNr];
+        if (!(dt > acMinBranchLength) || dt == Double.POSITIVE_INFINITY || Double.isNaN(x) || Double.isNaN(logPar)) {
+            isACEdgeInvalid[nr] = true;
+            return;
+        }
 
-            final double rChi = rateValue(idxChi);
-            if (!(rChi > 0.0)) {
-                return Double.NEGATIVE_INFINITY;
-            }
+        final double d = x - logPar;
+        isACEdgeInvalid[nr] = false;
+        acEdgeLogRate[nr] = x;
+        acEdgeDelta[nr] = d;
+        acEdgeDeltaSqOverDt[nr] = d * d / dt;
+        acEdgeLogDt[nr] = logDt;
+        acEdgeDt[nr] = dt;
+    }
 
-            final Node parent = node.getParent();
-            final double logPar;
-            if (parent.isRoot()) {
-                logPar = rootLog;
-            } else {
-                final int idxPar = mapping.idxForNode(parent);
-                if (idxPar < 0) {
-                    return Double.NEGATIVE_INFINITY;
-                }
+    private void addACEdge(final int nr, final double sign) {
+        if (isACEdgeInvalid[nr]) {
+            acInvalidEdges += (int) sign;
+            return;
+        }
+        acSumLogRate += sign * acEdgeLogRate[nr];
+        acSumDelta += sign * acEdgeDelta[nr];
+        acSumDeltaSqOverDt += sign * acEdgeDeltaSqOverDt[nr];
+        acSumLogDt += sign * acEdgeLogDt[nr];
+        acSumDt += sign * acEdgeDt[nr];
+    }
 
-                final double rPar = rateValue(idxPar);
-                if (!(rPar > 0.0)) {
-                    return Double.NEGATIVE_INFINITY;
-                }
+    private void queueACNode(final int nr) {
+        if (!isACPending[nr]) {
+            isACPending[nr] = true;
+            acPending[acPendingCount++] = nr;
+        }
+        if (!isACChanged[nr]) {
+            isACChanged[nr] = true;
+            acChanged[acChangedCount++] = nr;
+        }
+    }
 
-                logPar = Math.log(rPar);
+    /**
+     * Queue the nodes whose AC term depends on a changed branch length or rate: a height move flags the node and
+     * its children dirty, a rate change affects the branch itself and its child branches.
+     */
+    private void queueACChanges(final boolean treeDirty, final boolean ratesDirty) {
+        if (!acValid) {
+            return;
+        }
+        if (legacyRates == null || acMapping != mapping || acLogRates.length != tree.getNodeCount()) {
+            acValid = false;
+            return;
+        }
+
+        final JournaledRealParameter journaled = ratesDirty ? journaledRates() : null;
+        if (journaled != null) {
+            if (journaled.getChangedCount() == 0) {
+                // changed without index flags, e.g. RealParameter.scale()
+                acValid = false;
+                return;
+            }
+            for (int k = 0; k < journaled.getChangedCount(); k++) {
+                queueACRateChange(tree.getNode(mapping.nodeNrForIdx(journaled.getChangedIndex(k))));
+            }
+            if (!treeDirty) {
+                return;
             }
+        }
 
-            final double meanLog = logPar - 0.5 * var;
-            lp += logLogNormalRate(rChi, meanLog, var);
-            if (Double.isInfinite(lp)) {
-                return Double.NEGATIVE_INFINITY;
+        int ratesCovered = 0;
+        final int nNodes = tree.getNodeCount();
+        for (int i = 0; i < nNodes; i++) {
+            final Node node = tree.getNode(i);
+            if (treeDirty) {
+                final int state = node.isDirty();
+                if (state == Tree.IS_FILTHY) {
+                    acValid = false;
+                    return;
+                }
+                if (state != Tree.IS_CLEAN && !node.isRoot()) {
+                    queueACNode(node.getNr());
+                }
+            }
+            if (ratesDirty && journaled == null && !node.isRoot()) {
+                final int idx = mapping.idxForNode(node);
+                if (idx >= 0 && legacyRates.isDirty(idx)) {
+                    queueACRateChange(node);
+                    ratesCovered++;
+                }
             }
         }
+        if (ratesDirty && journaled == null && ratesCovered == 0) {
+            // changed without index flags, e.g. RealParameter.scale()
+            acValid = false;
+        }
+    }
 
-        return lp;
+    private void queueACRateChange(final Node node) {
+        queueACNode(node.getNr());
+        for (final Node child : node.getChildren()) {
+            queueACNode(child.getNr());
+        }
     }
 
     @Override
@@ -444,15 +796,26 @@ public class RelaxedRatesPriorSVS extends Distribution {
     protected boolean requiresRecalculation() {
         boolean dirty = false;
 
-        if (tree != null && ((StateNode) tree).somethingIsDirty()) {
-            dirty = true;
-            ensureMappingUpToDate();
+        final boolean treeDirty = tree != null && ((StateNode) tree).somethingIsDirty();
+        if (treeDirty) {
+            FlatTreeView.treeChanged(tree);
         }
-        if (ratesDirty()) {
+        // unconditionally, so that a mapping retired by a rate-layout change is never used to read dirty rates
+        ensureMappingUpToDate();
+        if (treeDirty) {
             dirty = true;
         }
-        if (indicatorDirty()) {
+        final boolean ratesDirty = ratesDirty();
+        final boolean ratesScaled = ratesDirty && consumeSubtreeScale(treeDirty);
+        if (ratesDirty) {
             dirty = true;
+            if (!ratesScaled) {
+                ratesChangedSinceStore = true;
+                syncUCStatisticsWithRates();
+            }
+        }
+        if (treeDirty || (ratesDirty && !ratesScaled)) {
+            queueACChanges(treeDirty, ratesDirty && !ratesScaled);
         }
         if (ucldStdevDirty()) {
             dirty = true;
@@ -463,7 +826,234 @@ public class RelaxedRatesPriorSVS extends Distribution {
         if (rootLogRateDirty()) {
             dirty = true;
         }
+        if (dirty) {
+            inputsVersion = ++lastInputsVersion;
+        }
 
+        if (indicatorDirty()) {
+            dirty = true;
+        }
         return dirty;
     }
+
+    /**
+     * Called by an operator that has multiplied the rate of every branch in the subtree below subRoot by
+     * exp(logScale). Under AC only the increment on the subtree's root edge changes; under UC the sums move by
+     * k*logScale and 2*logScale*sum(x) + k*logScale^2. requiresRecalculation applies this instead of re-reading
+     * the dirty rates, which saves a log per rate and the scans over all branches.
+     */
+    public void subtreeRatesScaled(final Node subRoot, final double logScale) {
+        scaledSubtreeNr = subRoot.getNr();
+        scaledSubtreeLogScale = logScale;
+    }
+
+    /** Apply the announced subtree scale to the cached statistics; false if the dirty rates must be read instead. */
+    private boolean consumeSubtreeScale(final boolean treeDirty) {
+        final int nr = scaledSubtreeNr;
+        scaledSubtreeNr = -1;
+        if (nr < 0 || treeDirty || legacyRates == null || nr >= tree.getNodeCount()) {
+            return false;
+        }
+        final Node subRoot = tree.getNode(nr);
+        final int idx = subRoot.isRoot() ? -1 : mapping.idxForNode(subRoot);
+        // an announcement that does not belong to this proposal
+        if (idx < 0 || !legacyRates.isDirty(idx)) {
+            return false;
+        }
+
+        shiftSubtree(subRoot, scaledSubtreeLogScale);
+        appliedSubtreeNr = nr;
+        if (!shiftedAC) {
+            // AC statistics the shift could not take; follow the dirty rates instead
+            queueACChanges(false, true);
+        }
+        return true;
+    }
+
+    /**
+     * Add logScale to the log rate of every branch below and including subRoot in the UC and AC statistics, saving
+     * what it overwrites for undoSubtreeShift. The subtree is a preorder range of the tree view; under the preorder
+     * rate layout its UC entries are one slice. AC is left to the pending queue while that holds nodes, as their
+     * refresh would move the sums after they were saved.
+     */
+    private void shiftSubtree(final Node subRoot, final double logScale) {
+        shiftedUC = ucValid && ucLogRates.length == legacyRates.getDimension();
+        shiftedAC = acValid && acMapping == mapping && acLogRates.length == tree.getNodeCount() && acPendingCount == 0;
+        final boolean uc = shiftedUC;
+        final boolean ac = shiftedAC;
+
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final int subRootNr = subRoot.getNr();
+        final int from = view.getPreorderIndex(subRootNr);
+        final int k = view.getSubtreeSize(subRootNr);
+        final int sliceStart = view.getMapping() == mapping ? view.getRateSliceStart(subRootNr) : -1;
+        ensureShiftBuffers(k);
+
+        double sumX = 0.0;
+        if (uc) {
+            shiftSavedUCSumLog = ucSumLog;
+            shiftSavedUCSumLogSq = ucSumLogSq;
+            if (sliceStart >= 0) {
+                System.arraycopy(ucLogRates, sliceStart, shiftSavedUCLogRates, 0, k);
+                for (int idx = sliceStart; idx < sliceStart + k; idx++) {
+                    sumX += ucLogRates[idx];
+                    ucLogRates[idx] += logScale;
+                }
+            }
+        }
+        if (ac) {
+            shiftSavedACSumLogRate = acSumLogRate;
+            shiftSavedACSumDelta = acSumDelta;
+            shiftSavedACSumDeltaSqOverDt = acSumDeltaSqOverDt;
+            shiftSavedACEdgeDelta = acEdgeDelta[subRootNr];
+            shiftSavedACEdgeDeltaSqOverDt = acEdgeDeltaSqOverDt[subRootNr];
+        }
+        if ((uc && sliceStart < 0) || ac) {
+            for (int j = 0; j < k; j++) {
+                final int nr = view.getPreorderNr(from + j);
+                if (uc && sliceStart < 0) {
+                    final int idx = mapping.idxForNodeNr(nr);
+                    shiftSavedUCLogRates[j] = ucLogRates[idx];
+                    sumX += ucLogRates[idx];
+                    ucLogRates[idx] += logScale;
+                }
+                if (ac) {
+                    shiftSavedACLogRates[j] = acLogRates[nr];
+                    shiftSavedACEdgeLogRates[j] = acEdgeLogRate[nr];
+                    acLogRates[nr] += logScale;
+                    if (!isACEdgeInvalid[nr]) {
+                        acEdgeLogRate[nr] += logScale;
+                        acSumLogRate += logScale;
+                    }
+                }
+            }
+        }
+
+        if (uc) {
+            if (Double.isNaN(sumX)) {
+                // a non-positive rate in the subtree; only reachable if the statistics lag behind the rates
+                ucValid = false;
+                shiftedUC = false;
+            } else {
+                ucSumLogSq += 2.0 * logScale * sumX + k * logScale * logScale;
+                ucSumLog += k * logScale;
+            }
+            // the sums drift like any other incremental update
+            updatesSinceRebuild++;
+        }
+        if (ac) {
+            if (!isACEdgeInvalid[subRootNr]) {
+                // edges inside the subtree keep their increment; only the edge into the subtree changes
+                final double d = acEdgeDelta[subRootNr] + logScale;
+                final double dSqOverDt = d * d / acEdgeDt[subRootNr];
+                acSumDelta += logScale;
+                acSumDeltaSqOverDt += dSqOverDt - acEdgeDeltaSqOverDt[subRootNr];
+                acEdgeDelta[subRootNr] = d;
+                acEdgeDeltaSqOverDt[subRootNr] = dSqOverDt;
+            }
+            acUpdatesSinceRebuild++;
+        }
+    }
+
+    private void ensureShiftBuffers(final int k) {
+        if (shiftSavedUCLogRates == null || shiftSavedUCLogRates.length < k) {
+            final int n = Math.max(k, tree.getNodeCount());
+            shiftSavedUCLogRates = new double[n];
+            shiftSavedACLogRates = new double[n];
+            shiftSavedACEdgeLogRates = new double[n];
+        }
+    }
+
+    /**
+     * Put back the statistics shiftSubtree overwrote, bit for bit. The tree did not change in the step, so the
+     * subtree covers the same nodes and rate indices. A cache rebuilt during the step from the rejected rates, or
+     * one that was invalid when the shift was applied, is dropped instead.
+     */
+    private void undoSubtreeShift(final Node subRoot) {
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final int subRootNr = subRoot.getNr();
+        final int from = view.getPreorderIndex(subRootNr);
+        final int k = view.getSubtreeSize(subRootNr);
+        final int sliceStart = view.getMapping() == mapping ? view.getRateSliceStart(subRootNr) : -1;
+
+        if (shiftedUC && ucValid && ucLogRates.length == legacyRates.getDimension()) {
+            if (sliceStart >= 0) {
+                System.arraycopy(shiftSavedUCLogRates, 0, ucLogRates, sliceStart, k);
+            } else {
+                for (int j = 0; j < k; j++) {
+                    ucLogRates[mapping.idxForNodeNr(view.getPreorderNr(from + j))] = shiftSavedUCLogRates[j];
+                }
+            }
+            ucSumLog = shiftSavedUCSumLog;
+            ucSumLogSq = shiftSavedUCSumLogSq;
+        } else {
+            ucValid = false;
+        }
+
+        if (shiftedAC && acValid) {
+            for (int j = 0; j < k; j++) {
+                final int nr = view.getPreorderNr(from + j);
+                acLogRates[nr] = shiftSavedACLogRates[j];
+                acEdgeLogRate[nr] = shiftSavedACEdgeLogRates[j];
+            }
+            acSumLogRate = shiftSavedACSumLogRate;
+            acSumDelta = shiftSavedACSumDelta;
+            acSumDeltaSqOverDt = shiftSavedACSumDeltaSqOverDt;
+            acEdgeDelta[subRootNr] = shiftSavedACEdgeDelta;
+            acEdgeDeltaSqOverDt[subRootNr] = shiftSavedACEdgeDeltaSqOverDt;
+        }
+    }
+
+    private void clearACChanged() {
+        for (int i = 0; i < acChangedCount; i++) {
+            isACChanged[acChanged[i]] = false;
+        }
+        acChangedCount = 0;
+    }
+
+    @Override
+    public void store() {
+        storedInputsVersion = inputsVersion;
+        storedLastLogPriorUC = lastLogPriorUC;
+        storedLastLogPriorAC = lastLogPriorAC;
+        storedLastLogPriorUCVersion = lastLogPriorUCVersion;
+        storedLastLogPriorACVersion = lastLogPriorACVersion;
+        ratesChangedSinceStore = false;
+        appliedSubtreeNr = -1;
+        clearACChanged();
+        acRebuiltSinceStore = false;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        inputsVersion = storedInputsVersion;
+        lastLogPriorUC = storedLastLogPriorUC;
+        lastLogPriorAC = storedLastLogPriorAC;
+        lastLogPriorUCVersion = storedLastLogPriorUCVersion;
+        lastLogPriorACVersion = storedLastLogPriorACVersion;
+        // the rates are back at their stored values and keep their per-index dirty flags (but not
+        // somethingIsDirty) until the step ends: recompute just those terms
+        if (ratesChangedSinceStore) {
+            syncUCStatisticsWithRates();
+        }
+        if (acRebuiltSinceStore) {
+            // the cache was rebuilt from the rejected state
+            acValid = false;
+        } else if (acValid) {
+            for (int i = 0; i < acChangedCount; i++) {
+                final int nr = acChanged[i];
+                if (!isACPending[nr]) {
+                    isACPending[nr] = true;
+                    acPending[acPendingCount++] = nr;
+                }
+            }
+        }
+        clearACChanged();
+        if (appliedSubtreeNr >= 0) {
+            undoSubtreeShift(tree.getNode(appliedSubtreeNr));
+            appliedSubtreeNr = -1;
+        }
+        super.restore();
+    }
 }
@@ -7,11 +7,18 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
 import beast.base.inference.StateNode;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.spec.type.IntScalar;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.RateAccessor;
+import mixture.beast.evolution.util.RateSnapshot;
+
+import java.util.Arrays;
 
 public class SharedRatesClockModel extends BranchRateModel.Base {
 
@@ -55,18 +62,89 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
             Input.Validate.OPTIONAL
     );
 
+    public final Input<IntegerParameter> indicatorInput = new Input<>(
+            "indicator",
+            "Legacy optional SVS indicator shared with RelaxedRatesPriorSVS; when it is 2 (strict) the rates are "
+                    + "ignored and every branch gets the mean rate.",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<IntScalar> indicatorScalarInput = new Input<>(
+            "indicatorScalar",
+            "BEAST3 typed optional SVS indicator; see indicator.",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the shared rates hold log-rates and are exponentiated into the branch rates; every component "
+                    + "on the rates must use the same setting.",
+            false
+    );
+
+    public final Input<String> rateLayoutInput = new Input<>(
+            "rateLayout",
+            "Order of the branches in the shared rates: nodeNr (default, by child node nr) or preorder (by the "
+                    + "preorder of the starting tree, so that every subtree is one contiguous index range). "
+                    + "Applies to every component on the same tree; components that set it must agree.",
+            Input.Validate.OPTIONAL
+    );
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVector typedRates;
+    private RateAccessor rates;
     private RealParameter legacyMeanRate;
     private RealScalar typedMeanRate;
+    private IntegerParameter legacyIndicator;
+    private IntScalar typedIndicator;
     private boolean doNormalize;
+    private boolean logRates;
 
     private BranchRateIndexHelper.Mapping mapping;
 
+    /** Incremental updates of the normalisation totals between two full rebuilds, to bound rounding drift. */
+    private static final int REBUILD_INTERVAL = 1000;
+
     private double scaleFactor = 1.0;
     private double storedScaleFactor = 1.0;
 
+    // per node number: the validated rate of its branch (exponentiated once here if the vector holds log-rates) and
+    // the branch time it adds to the normalisation totals (0 for the root and for branches that normalisation skips);
+    // the rate is branchRates * rateFactor
+    private double[] branchRates;
+    private double[] branchTimes;
+    private double sumRateTime;
+    private double sumTime;
+    private int rootNr;
+    private int updatesSinceRebuild;
+    private double rateFactor;
+    private boolean strict;
+
+    // undo journal since store(): node nr and its branch entries before the first change; a rebuild copies the whole
+    // arrays once instead (storedBranchRates/Times) and restore() swaps them back
+    private int[] journalNr;
+    private double[] journalRate;
+    private double[] journalTime;
+    private boolean[] isJournaled;
+    private int journalSize;
+    private boolean branchesCopied;
+    private int[] dirtyNrs;
+
+    private double[] storedBranchRates;
+    private double[] storedBranchTimes;
+    private double storedSumRateTime;
+    private double storedSumTime;
+    private int storedRootNr;
+    private int storedUpdatesSinceRebuild;
+    private double storedRateFactor;
+    private boolean storedStrict;
+
+    // effective rates of the current state, published once per state change; getRateForBranch reads only this
+    private long lastVersion;
+    private volatile RateSnapshot snapshot;
+    private RateSnapshot storedSnapshot;
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -90,15 +168,29 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
             throw new IllegalArgumentException("meanRate must have dimension=1.");
         }
 
-        validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
-
-        if (doNormalize) {
-            computeScaleFactor();
-        } else {
-            scaleFactor = 1.0;
+        legacyIndicator = indicatorInput.get();
+        typedIndicator = indicatorScalarInput.get();
+        if (legacyIndicator != null && typedIndicator != null) {
+            throw new IllegalArgumentException("Specify only one of indicator or indicatorScalar.");
         }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "SharedRatesClockModel");
+
+        validateOrExpandRatesDimension();
+        rates = legacyRates != null
+                ? RateAccessor.of(legacyRates)
+                : RateAccessor.of(typedRates, tree.getNodeCount() - 1);
+        final BranchRateIndexHelper.Layout layout =
+                BranchRateIndexHelper.Layout.parse(rateLayoutInput.get(), "SharedRatesClockModel");
+        FlatTreeView.useRateLayout(tree, layout, "SharedRatesClockModel");
+        mapping = FlatTreeView.of(tree).getMapping();
+
+        rebuildBranches();
+        updateRateFactor();
+        publishSnapshot();
+
         Log.info.println("SharedRatesClockModel init: nNodes=" + mapping.getNodeCount()
                 + ", normalize=" + doNormalize);
     }
@@ -106,7 +198,7 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
     private void ensureMappingUpToDate() {
         validateOrExpandRatesDimension();
         if (mapping == null || !mapping.matches(tree)) {
-            mapping = BranchRateIndexHelper.buildDeterministic(tree);
+            mapping = FlatTreeView.of(tree).getMapping();
         }
     }
 
@@ -118,13 +210,13 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
     }
 
     private double rawRateValue(final int i) {
-        if (legacyRates != null) {
-            return legacyRates.getValue(i);
-        }
-        if (typedRates.size() == 1) {
-            return typedRates.get(0);
-        }
-        return typedRates.get(i);
+        return rates.get(i);
+    }
+
+    /** Rate stored at index i, exponentiated if the vector holds log-rates. */
+    private double rateValue(final int i) {
+        final double value = rawRateValue(i);
+        return logRates ? Math.exp(value) : value;
     }
 
     private double meanRateValue() {
@@ -144,6 +236,20 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
         return typedRates instanceof CalculationNode && ((CalculationNode) typedRates).somethingIsDirty();
     }
 
+    private boolean isStrict() {
+        if (legacyIndicator != null) {
+            return legacyIndicator.getValue(0) == RelaxedRatesPriorSVS.STRICT;
+        }
+        return typedIndicator != null && typedIndicator.get() == RelaxedRatesPriorSVS.STRICT;
+    }
+
+    private boolean indicatorDirty() {
+        if (legacyIndicator != null) {
+            return legacyIndicator.somethingIsDirty();
+        }
+        return typedIndicator instanceof CalculationNode && ((CalculationNode) typedIndicator).somethingIsDirty();
+    }
+
     private boolean meanRateDirty() {
         if (legacyMeanRate != null) {
             return legacyMeanRate.somethingIsDirty();
@@ -180,102 +286,252 @@ public class SharedRatesClockModel extends BranchRateModel.Base {
                 + ". Scalar typed rates can be expanded or broadcast across all non-root branches.");
     }
 
+    /** Reads the published snapshot, so it is safe from likelihood threads while the state is not changing. */
     @Override
     public double getRateForBranch(final Node node) {
-        if (node.isRoot()) {
-            return 1.0;
-        }
+        return snapshot.getRate(node.getNr());
+    }
 
-        ensureMappingUpToDate();
+    /** Effective rates of the current state, for readers on other threads; replaced by each state change. */
+    public RateSnapshot getRateSnapshot() {
+        return snapshot;
+    }
 
-        final double mr = meanRateValue();
-        if (!(mr > 0.0)) {
-            return 0.0;
+    private void publishSnapshot() {
+        final int nNodes = branchRates.length;
+        // a new array per state change: readers may still hold the snapshots it replaces
+        final double[] out = new double[nNodes];
+        if (strict) {
+            Arrays.fill(out, rateFactor);
+        } else {
+            for (int nr = 0; nr < nNodes; nr++) {
+                out[nr] = branchRates[nr] * rateFactor;
+            }
         }
+        out[rootNr] = 1.0;
+        snapshot = new RateSnapshot(++lastVersion, out);
+    }
 
-        final int idx = mapping.idxForNode(node);
-        if (idx < 0) {
-            return 0.0;
+    /** Recompute every per-branch entry and both normalisation totals from scratch. */
+    private void rebuildBranches() {
+        ensureMappingUpToDate();
+        final int nNodes = tree.getNodeCount();
+        if (branchRates == null || branchRates.length != nNodes) {
+            branchRates = new double[nNodes];
+            branchTimes = new double[nNodes];
+            storedBranchRates = new double[nNodes];
+            storedBranchTimes = new double[nNodes];
+            journalNr = new int[nNodes];
+            journalRate = new double[nNodes];
+            journalTime = new double[nNodes];
+            isJournaled = new boolean[nNodes];
+            journalSize = 0;
+            dirtyNrs = new int[nNodes];
         }
-
-        final double r = rawRateValue(idx);
-        if (!(r > 0.0)) {
-            return 0.0;
+        if (!branchesCopied) {
+            // stored state = current arrays with this step's journaled entries undone
+            System.arraycopy(branchRates, 0, storedBranchRates, 0, nNodes);
+            System.arraycopy(branchTimes, 0, storedBranchTimes, 0, nNodes);
+            for (int k = 0; k < journalSize; k++) {
+                storedBranchRates[journalNr[k]] = journalRate[k];
+                storedBranchTimes[journalNr[k]] = journalTime[k];
+            }
+            clearJournal();
+            branchesCopied = true;
         }
+        final FlatTreeView view = FlatTreeView.of(tree);
+        rootNr = view.getRootNr();
+
+        sumRateTime = 0.0;
+        sumTime = 0.0;
+        for (int nr = 0; nr < nNodes; nr++) {
+            branchRates[nr] = 0.0;
+            branchTimes[nr] = 0.0;
+            if (nr != rootNr) {
+                setBranch(nr, view.getBranchLength(nr));
+            }
+        }
+        updatesSinceRebuild = 0;
+    }
 
-        return r * scaleFactor * mr;
+    /** Branch of a non-root node: its validated rate and its share of the time-weighted totals. */
+    private void setBranch(final Node node) {
+        setBranch(node.getNr(), node.getLength());
     }
 
-    private void computeScaleFactor() {
-        ensureMappingUpToDate();
+    private void setBranch(final int nr, final double dt) {
+        if (!branchesCopied && !isJournaled[nr]) {
+            isJournaled[nr] = true;
+            journalNr[journalSize] = nr;
+            journalRate[journalSize] = branchRates[nr];
+            journalTime[journalSize] = branchTimes[nr];
+            journalSize++;
+        }
+        sumTime -= branchTimes[nr];
+        sumRateTime -= branchRates[nr] * branchTimes[nr];
 
-        double sumRateTime = 0.0;
-        double sumTime = 0.0;
+        final int idx = mapping.idxForNodeNr(nr);
+        final double r = idx < 0 ? 0.0 : rateValue(idx);
+        branchRates[nr] = r > 0.0 ? r : 0.0;
+        branchTimes[nr] = (r > 0.0 && dt > 0.0) ? dt : 0.0;
 
-        final int nNodes = mapping.getNodeCount();
-        for (int i = 0; i < nNodes; i++) {
-            final Node node = tree.getNode(i);
-            if (node.isRoot()) {
-                continue;
-            }
+        sumTime += branchTimes[nr];
+        sumRateTime += branchRates[nr] * branchTimes[nr];
+    }
 
-            final double dt = node.getLength();
-            if (!(dt > 0.0)) {
-                continue;
-            }
+    /**
+     * Bring the branches up to date with the current state, touching only the branches whose length or rate
+     * changed. A topology change, typed rates (which do not report changed indices), a rates change with no index
+     * flag set or a long run of incremental updates trigger a full rebuild instead.
+     */
+    private void updateBranches(final boolean treeDirty, final boolean ratesDirty) {
+        // also catches a mapping retired by a rate-layout change, which comes without a tree change
+        if (!mapping.matches(tree)) {
+            rebuildBranches();
+            return;
+        }
+        if ((ratesDirty && legacyRates == null) || updatesSinceRebuild >= REBUILD_INTERVAL) {
+            rebuildBranches();
+            return;
+        }
 
-            final int idx = mapping.idxForNode(node);
-            final double r = rawRateValue(idx);
-            if (!(r > 0.0)) {
-                continue;
+        final int nNodes = tree.getNodeCount();
+        if (treeDirty) {
+            // Tree lists no changed nodes, so one pass collects them; Node.setHeight marks the node and its children,
+            // i.e. exactly the branches whose length changed
+            int dirtyCount = 0;
+            for (int i = 0; i < nNodes; i++) {
+                final Node node = tree.getNode(i);
+                final int dirty = node.isDirty();
+                if (dirty == Tree.IS_FILTHY) {
+                    rebuildBranches();
+                    return;
+                }
+                if (dirty != Tree.IS_CLEAN && !node.isRoot()) {
+                    dirtyNrs[dirtyCount++] = node.getNr();
+                }
+            }
+            for (int k = 0; k < dirtyCount; k++) {
+                setBranch(tree.getNode(dirtyNrs[k]));
+            }
+        }
+        if (ratesDirty) {
+            int covered = 0;
+            if (legacyRates instanceof JournaledRealParameter
+                    && ((JournaledRealParameter) legacyRates).hasCompleteChangeList()) {
+                final JournaledRealParameter journaled = (JournaledRealParameter) legacyRates;
+                covered = journaled.getChangedCount();
+                for (int k = 0; k < covered; k++) {
+                    setBranch(tree.getNode(mapping.nodeNrForIdx(journaled.getChangedIndex(k))));
+                }
+            } else {
+                for (int i = 0; i < nNodes; i++) {
+                    final Node node = tree.getNode(i);
+                    final int idx = mapping.idxForNode(node);
+                    if (idx >= 0 && legacyRates.isDirty(idx)) {
+                        setBranch(node);
+                        covered++;
+                    }
+                }
+            }
+            // RealParameter.scale() and assignFromFragile change the values without setting any index flag
+            if (covered == 0) {
+                rebuildBranches();
+                return;
             }
-
-            sumRateTime += r * dt;
-            sumTime += dt;
         }
+        updatesSinceRebuild++;
+    }
 
-        if (!(sumRateTime > 0.0) || !(sumTime > 0.0)) {
+    private void updateRateFactor() {
+        if (doNormalize && sumRateTime > 0.0 && sumTime > 0.0) {
+            scaleFactor = sumTime / sumRateTime;
+        } else {
             scaleFactor = 1.0;
+        }
+
+        strict = isStrict();
+        final double mr = meanRateValue();
+        if (!(mr > 0.0)) {
+            rateFactor = 0.0;
         } else {
-            scaleFactor = sumTime / sumRateTime;
+            rateFactor = strict ? mr : scaleFactor * mr;
         }
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        boolean dirty = false;
-
-        if (tree != null && ((StateNode) tree).somethingIsDirty()) {
-            dirty = true;
-            ensureMappingUpToDate();
-        }
-        if (ratesDirty()) {
-            dirty = true;
-        }
-        if (meanRateDirty()) {
-            dirty = true;
-        }
+        final boolean treeDirty = tree != null && ((StateNode) tree).somethingIsDirty();
+        final boolean ratesDirty = ratesDirty();
+        final boolean dirty = treeDirty || ratesDirty || meanRateDirty() || indicatorDirty();
 
         if (dirty) {
-            if (doNormalize) {
-                computeScaleFactor();
-            } else {
-                scaleFactor = 1.0;
+            if (treeDirty) {
+                FlatTreeView.treeChanged(tree);
+                ensureMappingUpToDate();
             }
+            if (treeDirty || ratesDirty) {
+                updateBranches(treeDirty, ratesDirty);
+            }
+            updateRateFactor();
+            publishSnapshot();
         }
 
         return dirty;
     }
 
+    private void clearJournal() {
+        for (int k = 0; k < journalSize; k++) {
+            isJournaled[journalNr[k]] = false;
+        }
+        journalSize = 0;
+    }
+
+    /**
+     * Forgets the branch journal instead of copying the per-branch arrays; the next proposal journals the entries it
+     * changes. Rate moves on a plain RealParameter still scan its index flags in updateBranches, a
+     * JournaledRealParameter lists the changed indices directly.
+     */
     @Override
     public void store() {
+        clearJournal();
+        branchesCopied = false;
+        storedSumRateTime = sumRateTime;
+        storedSumTime = sumTime;
+        storedRootNr = rootNr;
+        storedUpdatesSinceRebuild = updatesSinceRebuild;
         storedScaleFactor = scaleFactor;
+        storedRateFactor = rateFactor;
+        storedStrict = strict;
+        storedSnapshot = snapshot;
         super.store();
     }
 
     @Override
     public void restore() {
+        if (branchesCopied) {
+            double[] tmp = branchRates;
+            branchRates = storedBranchRates;
+            storedBranchRates = tmp;
+            tmp = branchTimes;
+            branchTimes = storedBranchTimes;
+            storedBranchTimes = tmp;
+            branchesCopied = false;
+        } else {
+            for (int k = 0; k < journalSize; k++) {
+                branchRates[journalNr[k]] = journalRate[k];
+                branchTimes[journalNr[k]] = journalTime[k];
+            }
+        }
+        clearJournal();
+        sumRateTime = storedSumRateTime;
+        sumTime = storedSumTime;
+        rootNr = storedRootNr;
+        updatesSinceRebuild = storedUpdatesSinceRebuild;
         scaleFactor = storedScaleFactor;
+        rateFactor = storedRateFactor;
+        strict = storedStrict;
+        snapshot = storedSnapshot;
         super.restore();
     }
 }
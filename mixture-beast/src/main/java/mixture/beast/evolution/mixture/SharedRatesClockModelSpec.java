@@ -5,13 +5,20 @@ import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.evolution.branchratemodel.Base;
 import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.spec.type.IntScalar;
 import beast.base.spec.type.RealScalar;
 import beast.base.spec.type.RealVector;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.RateAccessor;
+import mixture.beast.evolution.util.RateSnapshot;
+
+import java.util.Arrays;
 
 public class SharedRatesClockModelSpec extends Base {
 
@@ -51,18 +58,63 @@ public class SharedRatesClockModelSpec extends Base {
             Input.Validate.OPTIONAL
     );
 
+    public final Input<IntegerParameter> indicatorInput = new Input<>(
+            "indicator",
+            "Legacy optional SVS indicator shared with RelaxedRatesPriorSVS; when it is 2 (strict) the rates are "
+                    + "ignored and every branch gets the mean rate.",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<IntScalar> indicatorScalarInput = new Input<>(
+            "indicatorScalar",
+            "BEAST3 typed optional SVS indicator; see indicator.",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the shared rates hold log-rates and are exponentiated into the branch rates; every component "
+                    + "on the rates must use the same setting.",
+            false
+    );
+
+    public final Input<String> rateLayoutInput = new Input<>(
+            "rateLayout",
+            "Order of the branches in the shared rates: nodeNr (default, by child node nr) or preorder (by the "
+                    + "preorder of the starting tree, so that every subtree is one contiguous index range). "
+                    + "Applies to every component on the same tree; components that set it must agree.",
+            Input.Validate.OPTIONAL
+    );
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVector typedRates;
+    private RateAccessor rates;
     private RealParameter legacyMeanRate;
     private RealScalar typedMeanRate;
+    private IntegerParameter legacyIndicator;
+    private IntScalar typedIndicator;
     private boolean doNormalize;
+    private boolean logRates;
 
     private BranchRateIndexHelper.Mapping mapping;
 
     private double scaleFactor = 1.0;
     private double storedScaleFactor = 1.0;
 
+    // validated rate r per node number (0 for the root and invalid rates); only the entries of changed rates are
+    // re-read, and restore() re-reads them again from the restored rates instead of keeping a stored copy
+    private double[] branchRates;
+    private BranchRateIndexHelper.Mapping branchRatesMapping;
+    private boolean refreshedSinceStore;
+    private boolean refreshedAllSinceStore;
+
+    // r * scaleFactor * meanRate per node number, published once per state change so likelihood threads can read it
+    // without locks
+    private volatile RateSnapshot snapshot;
+    private RateSnapshot storedSnapshot;
+    private long lastVersion;
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -89,14 +141,32 @@ public class SharedRatesClockModelSpec extends Base {
             throw new IllegalArgumentException("meanRate must have dimension=1.");
         }
 
-        validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        legacyIndicator = indicatorInput.get();
+        typedIndicator = indicatorScalarInput.get();
+        if (legacyIndicator != null && typedIndicator != null) {
+            throw new IllegalArgumentException("Specify only one of indicator or indicatorScalar.");
+        }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "SharedRatesClockModelSpec");
+
+        validateOrExpandRatesDimension();
+        rates = legacyRates != null
+                ? RateAccessor.of(legacyRates)
+                : RateAccessor.of(typedRates, tree.getNodeCount() - 1);
+        final BranchRateIndexHelper.Layout layout =
+                BranchRateIndexHelper.Layout.parse(rateLayoutInput.get(), "SharedRatesClockModelSpec");
+        FlatTreeView.useRateLayout(tree, layout, "SharedRatesClockModelSpec");
+        mapping = FlatTreeView.of(tree).getMapping();
+
+        refreshAllBranchRates();
         if (doNormalize) {
             computeScaleFactor();
         } else {
             scaleFactor = 1.0;
         }
+        publishSnapshot();
 
         Log.info.println("SharedRatesClockModelSpec init: nNodes=" + mapping.getNodeCount()
                 + ", normalize=" + doNormalize);
@@ -105,7 +175,7 @@ public class SharedRatesClockModelSpec extends Base {
     private void ensureMappingUpToDate() {
         validateOrExpandRatesDimension();
         if (mapping == null || !mapping.matches(tree)) {
-            mapping = BranchRateIndexHelper.buildDeterministic(tree);
+            mapping = FlatTreeView.of(tree).getMapping();
         }
     }
 
@@ -117,13 +187,13 @@ public class SharedRatesClockModelSpec extends Base {
     }
 
     private double rawRateValue(final int i) {
-        if (legacyRates != null) {
-            return legacyRates.getValue(i);
-        }
-        if (typedRates.size() == 1) {
-            return typedRates.get(0);
-        }
-        return typedRates.get(i);
+        return rates.get(i);
+    }
+
+    /** Rate stored at index i, exponentiated if the vector holds log-rates. */
+    private double rateValue(final int i) {
+        final double value = rawRateValue(i);
+        return logRates ? Math.exp(value) : value;
     }
 
     private double meanRateValue() {
@@ -147,6 +217,20 @@ public class SharedRatesClockModelSpec extends Base {
         return typedRates instanceof CalculationNode && ((CalculationNode) typedRates).somethingIsDirty();
     }
 
+    private boolean isStrict() {
+        if (legacyIndicator != null) {
+            return legacyIndicator.getValue(0) == RelaxedRatesPriorSVS.STRICT;
+        }
+        return typedIndicator != null && typedIndicator.get() == RelaxedRatesPriorSVS.STRICT;
+    }
+
+    private boolean indicatorDirty() {
+        if (legacyIndicator != null) {
+            return legacyIndicator.somethingIsDirty();
+        }
+        return typedIndicator instanceof CalculationNode && ((CalculationNode) typedIndicator).somethingIsDirty();
+    }
+
     private boolean meanRateDirty() {
         if (legacyMeanRate != null) {
             return legacyMeanRate.somethingIsDirty();
@@ -189,28 +273,88 @@ public class SharedRatesClockModelSpec extends Base {
 
     @Override
     public double getRateForBranch(final Node node) {
-        if (node.isRoot()) {
-            return 1.0;
-        }
+        return snapshot.getRate(node.getNr());
+    }
 
-        ensureMappingUpToDate();
+    /** Effective rates of the current state; replaced rather than modified on the next change. */
+    public RateSnapshot getRateSnapshot() {
+        return snapshot;
+    }
 
+    private void publishSnapshot() {
+        final int nNodes = branchRates.length;
         final double mr = meanRateValue();
-        if (!(mr > 0.0)) {
-            return 0.0;
+        final boolean strict = isStrict();
+        final double factor = !(mr > 0.0) ? 0.0 : (strict ? mr : scaleFactor * mr);
+
+        // a new array per state change: readers may still hold the snapshots it replaces
+        final double[] out = new double[nNodes];
+        if (strict || factor == 0.0) {
+            Arrays.fill(out, factor);
+        } else {
+            for (int nr = 0; nr < nNodes; nr++) {
+                out[nr] = branchRates[nr] * factor;
+            }
         }
+        out[mapping.getRootNr()] = 1.0;
+        snapshot = new RateSnapshot(++lastVersion, out);
+    }
 
-        final int idx = mapping.idxForNode(node);
+    /** Validated rate of rate index idx: 0 for no index and for a non-positive or invalid rate. */
+    private double branchRate(final int idx) {
         if (idx < 0) {
             return 0.0;
         }
+        final double r = rateValue(idx);
+        return r > 0.0 ? r : 0.0;
+    }
 
-        final double r = rawRateValue(idx);
-        if (!(r > 0.0)) {
-            return 0.0;
+    private void refreshAllBranchRates() {
+        ensureMappingUpToDate();
+        final int nNodes = tree.getNodeCount();
+        if (branchRates == null || branchRates.length != nNodes) {
+            branchRates = new double[nNodes];
+        }
+        for (int nr = 0; nr < nNodes; nr++) {
+            branchRates[nr] = branchRate(mapping.idxForNodeNr(nr));
         }
+        branchRatesMapping = mapping;
+        refreshedAllSinceStore = true;
+    }
 
-        return r * scaleFactor * mr;
+    /**
+     * Re-read the legacy rates flagged dirty. Typed rates, a new mapping or a change that sets no index flag
+     * (RealParameter.scale()) re-read all of them.
+     */
+    private void refreshDirtyBranchRates() {
+        ensureMappingUpToDate();
+        if (legacyRates == null || branchRatesMapping != mapping) {
+            refreshAllBranchRates();
+            return;
+        }
+        int covered = 0;
+        if (legacyRates instanceof JournaledRealParameter
+                && ((JournaledRealParameter) legacyRates).hasCompleteChangeList()) {
+            final JournaledRealParameter journaled = (JournaledRealParameter) legacyRates;
+            covered = journaled.getChangedCount();
+            for (int k = 0; k < covered; k++) {
+                final int idx = journaled.getChangedIndex(k);
+                branchRates[mapping.nodeNrForIdx(idx)] = branchRate(idx);
+            }
+        } else {
+            final int dim = legacyRates.getDimension();
+            for (int idx = 0; idx < dim; idx++) {
+                if (legacyRates.isDirty(idx)) {
+                    branchRates[mapping.nodeNrForIdx(idx)] = branchRate(idx);
+                    covered++;
+                }
+            }
+        }
+        if (covered == 0) {
+            refreshAllBranchRates();
+            return;
+        }
+        refreshedSinceStore = true;
     }
 
     private void computeScaleFactor() {
@@ -219,20 +363,19 @@ public class SharedRatesClockModelSpec extends Base {
         double sumRateTime = 0.0;
         double sumTime = 0.0;
 
+        final FlatTreeView view = FlatTreeView.of(tree);
         final int nNodes = mapping.getNodeCount();
-        for (int i = 0; i < nNodes; i++) {
-            final Node node = tree.getNode(i);
-            if (node.isRoot()) {
+        for (int nr = 0; nr < nNodes; nr++) {
+            if (view.getParentNr(nr) < 0) {
                 continue;
             }
 
-            final double dt = node.getLength();
+            final double dt = view.getBranchLength(nr);
             if (!(dt > 0.0)) {
                 continue;
             }
 
-            final int idx = mapping.idxForNode(node);
-            final double r = rawRateValue(idx);
+            final double r = branchRates[nr];
             if (!(r > 0.0)) {
                 continue;
             }
@@ -254,15 +397,25 @@ public class SharedRatesClockModelSpec extends Base {
 
         if (tree != null && tree.somethingIsDirty()) {
             dirty = true;
+            FlatTreeView.treeChanged(tree);
             ensureMappingUpToDate();
         }
 
-        if (ratesDirty() || meanRateDirty()) {
+        final boolean ratesDirty = ratesDirty();
+        if (ratesDirty || meanRateDirty() || indicatorDirty()) {
             dirty = true;
         }
 
-        if (dirty && doNormalize) {
-            computeScaleFactor();
+        if (dirty) {
+            if (ratesDirty) {
+                refreshDirtyBranchRates();
+            } else if (branchRatesMapping != mapping) {
+                refreshAllBranchRates();
+            }
+            if (doNormalize) {
+                computeScaleFactor();
+            }
+            publishSnapshot();
         }
 
         return dirty;
@@ -271,12 +424,24 @@ public class SharedRatesClockModelSpec extends Base {
     @Override
     protected void store() {
         storedScaleFactor = scaleFactor;
+        storedSnapshot = snapshot;
+        refreshedSinceStore = false;
+        refreshedAllSinceStore = false;
         super.store();
     }
 
     @Override
     protected void restore() {
         scaleFactor = storedScaleFactor;
+        snapshot = storedSnapshot;
+        // the inputs are restored first; the dirty flags of the rates survive restore until the step ends
+        if (refreshedAllSinceStore) {
+            refreshAllBranchRates();
+        } else if (refreshedSinceStore) {
+            refreshDirtyBranchRates();
+        }
+        refreshedSinceStore = false;
+        refreshedAllSinceStore = false;
         super.restore();
     }
 }
@@ -2,7 +2,6 @@ package mixture.beast.evolution.operator;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.IntegerParameter;
@@ -11,7 +10,11 @@ import beast.base.spec.inference.parameter.IntScalarParam;
 import beast.base.spec.inference.parameter.RealScalarParam;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.util.ACIncrementKernels;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.LogRateKernels;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("AC-only non-centered hyper move: changes sigma2 while keeping the latent AC increments fixed, "
         + "and reconstructs the entire shared rate vector accordingly. "
@@ -87,9 +90,16 @@ public class ACSigma2NonCenteredOperator extends Operator {
             true
     );
 
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false);
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
     private IntegerParameter legacyIndicator;
     private IntScalarParam<?> typedIndicator;
     private RealParameter legacySigma2;
@@ -99,6 +109,11 @@ public class ACSigma2NonCenteredOperator extends Operator {
 
     private BranchRateIndexHelper.Mapping mapping;
 
+    // proposal scratch indexed by rate index, grown on demand and reused across proposals
+    private double[] xOldScratch = new double[0];
+    private double[] uScratch = new double[0];
+    private double[] xNewScratch = new double[0];
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -126,8 +141,12 @@ public class ACSigma2NonCenteredOperator extends Operator {
             throw new IllegalArgumentException("ACSigma2NonCenteredOperator: rootLogRate dimension must be 1");
         }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "ACSigma2NonCenteredOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        mapping = FlatTreeView.of(tree).getMapping();
     }
 
     private static void requireExactlyOne(final Object legacy,
@@ -168,19 +187,20 @@ public class ACSigma2NonCenteredOperator extends Operator {
     }
 
     private int rateDimension() {
-        return legacyRates != null ? legacyRates.getDimension() : typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
-    private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
+    /** log r at index i, NaN for a non-positive rate. */
+    private double logRateValue(final int i) {
+        final double value = rateValue(i);
+        if (logRates) {
+            return value;
         }
+        return value > 0.0 ? Math.log(value) : Double.NaN;
     }
 
     private int indicatorValue() {
@@ -209,6 +229,14 @@ public class ACSigma2NonCenteredOperator extends Operator {
         return 0.0;
     }
 
+    private void ensureScratch(final int n) {
+        if (xOldScratch.length < n) {
+            xOldScratch = new double[n];
+            uScratch = new double[n];
+            xNewScratch = new double[n];
+        }
+    }
+
     @Override
     public double proposal() {
         ensureMappingUpToDate();
@@ -236,21 +264,22 @@ public class ACSigma2NonCenteredOperator extends Operator {
         }
 
         final int nEdges = rateDimension();
-        final double[] xOld = new double[nEdges];
-        final double[] u = new double[nEdges];
-        final double[] xNew = new double[nEdges];
+        ensureScratch(nEdges);
+        final double[] xOld = xOldScratch;
+        final double[] u = uScratch;
+        final double[] xNew = xNewScratch;
 
         for (int i = 0; i < nEdges; i++) {
-            final double r = rateValue(i);
-            if (!(r > 0.0)) {
+            xOld[i] = logRateValue(i);
+            if (Double.isNaN(xOld[i])) {
                 return Double.NEGATIVE_INFINITY;
             }
-            xOld[i] = Math.log(r);
         }
 
+        final FlatTreeView view = FlatTreeView.of(tree);
         try {
-            fillUFromLogRatesAC(tree.getRoot(), rootLog(), xOld, u, oldSigma2, minDt);
-            fillLogRatesFromU(tree.getRoot(), rootLog(), u, xNew, newSigma2, minDt);
+            ACIncrementKernels.uFromLogRates(view, view.getRootNr(), rootLog(), xOld, u, oldSigma2, minDt);
+            ACIncrementKernels.logRatesFromU(view, view.getRootNr(), rootLog(), u, xNew, newSigma2, minDt);
         } catch (ArithmeticException bad) {
             return Double.NEGATIVE_INFINITY;
         }
@@ -263,80 +292,15 @@ public class ACSigma2NonCenteredOperator extends Operator {
             sumDelta += (xNew[i] - xOld[i]);
         }
 
-        if (legacyRates != null) {
-            legacyRates.startEditing(this);
-        }
-        for (int i = 0; i < nEdges; i++) {
-            setRateValue(i, Math.exp(xNew[i]));
-        }
+        rates.startEditing(this);
+        LogRateKernels.toStoredValues(xNew, 0, nEdges, logRates);
+        rates.setRange(0, nEdges, xNew);
 
         if (legacySigma2 != null) {
             legacySigma2.startEditing(this);
         }
         setSigma2Value(newSigma2);
 
-        return sumDelta + (0.5 * nEdges + 1.0) * eps;
-    }
-
-    private void fillUFromLogRatesAC(final Node parent,
-                                     final double logPar,
-                                     final double[] x,
-                                     final double[] uOut,
-                                     final double sigma2Value,
-                                     final double minDt) {
-        final int cc = parent.getChildCount();
-        for (int c = 0; c < cc; c++) {
-            final Node child = parent.getChild(c);
-            final int idx = mapping.idxForNode(child);
-            if (idx < 0) {
-                throw new ArithmeticException("Bad mapping for child");
-            }
-
-            final double dt = child.getLength();
-            if (!(dt > minDt)) {
-                throw new ArithmeticException("dt too small");
-            }
-
-            final double var = sigma2Value * dt;
-            if (!(var > 0.0)) {
-                throw new ArithmeticException("var<=0");
-            }
-
-            final double mean = logPar - 0.5 * var;
-            uOut[idx] = (x[idx] - mean) / Math.sqrt(var);
-
-            fillUFromLogRatesAC(child, x[idx], x, uOut, sigma2Value, minDt);
-        }
-    }
-
-    private void fillLogRatesFromU(final Node parent,
-                                   final double logPar,
-                                   final double[] u,
-                                   final double[] xOut,
-                                   final double sigma2Value,
-                                   final double minDt) {
-        final int cc = parent.getChildCount();
-        for (int c = 0; c < cc; c++) {
-            final Node child = parent.getChild(c);
-            final int idx = mapping.idxForNode(child);
-            if (idx < 0) {
-                throw new ArithmeticException("Bad mapping for child");
-            }
-
-            final double dt = child.getLength();
-            if (!(dt > minDt)) {
-                throw new ArithmeticException("dt too small");
-            }
-
-            final double var = sigma2Value * dt;
-            if (!(var > 0.0)) {
-                throw new ArithmeticException("var<=0");
-            }
-
-            final double logChild = logPar - 0.5 * var + Math.sqrt(var) * u[idx];
-            xOut[idx] = logChild;
-
-            fillLogRatesFromU(child, logChild, u, xOut, sigma2Value, minDt);
-        }
+        return (logRates ? 0.0 : sumDelta) + (0.5 * nEdges + 1.0) * eps;
     }
 }
@@ -2,7 +2,6 @@ package mixture.beast.evolution.operator;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.IntegerParameter;
@@ -11,11 +10,11 @@ import beast.base.spec.inference.parameter.IntScalarParam;
 import beast.base.spec.inference.parameter.RealScalarParam;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.util.ACIncrementKernels;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.LogRateKernels;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("AC-mode non-centered subtree block update: random-walk on u-increments within a subtree, "
         + "then reconstruct log-rates and rates. Helps mixing on large trees under AC.")
@@ -64,14 +63,21 @@ public class ACSubtreeUIncrementOperator extends Operator {
     public final Input<Boolean> allowRootInput = new Input<>("allowRoot", "allow choosing the tree root as subtree root (global block move)", false);
 
     public final Input<Integer> maxSubtreeEdgesInput = new Input<>("maxSubtreeEdges", "max number of edges (nodes) updated in a move; <=0 means no limit", 80);
-    public final Input<Integer> maxTriesInput = new Input<>("maxTries", "tries to find a subtree satisfying constraints", 40);
+    public final Input<Integer> maxTriesInput = new Input<>("maxTries", "ignored: the subtree root is drawn directly from the eligible nodes; kept for existing XML", 40);
 
     /** If true (default), operator returns -inf when indicator!=1. For mixture runs, set autoOptimize=false in XML. */
     public final Input<Boolean> rejectIfNotACInput = new Input<>("rejectIfNotAC", "reject move when indicator!=1", true);
 
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false);
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
     private IntegerParameter legacyIndicator;
     private IntScalarParam<?> typedIndicator;
     private RealParameter legacySigma2;
@@ -81,6 +87,20 @@ public class ACSubtreeUIncrementOperator extends Operator {
 
     private BranchRateIndexHelper.Mapping mapping;
 
+    // proposal scratch indexed by rate index, grown on demand and reused across proposals
+    private double[] xOldScratch = new double[0];
+    private double[] uScratch = new double[0];
+    private double[] xNewScratch = new double[0];
+    private int[] idxScratch = new int[0];
+
+    // nodes that may root a move under the current tree topology and inputs, rebuilt when either changes
+    private int[] eligibleNodes = new int[0];
+    private int eligibleCount;
+    private long eligibleTopologyVersion = -1;
+    private boolean eligibleInternalOnly;
+    private boolean eligibleAllowRoot;
+    private int eligibleMaxEdges;
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -108,8 +128,12 @@ public class ACSubtreeUIncrementOperator extends Operator {
             throw new IllegalArgumentException("ACSubtreeUIncrementOperator: rootLogRate dimension must be 1");
         }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "ACSubtreeUIncrementOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        mapping = FlatTreeView.of(tree).getMapping();
     }
 
     private static void requireExactlyOne(final Object legacy,
@@ -150,15 +174,16 @@ public class ACSubtreeUIncrementOperator extends Operator {
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
-    private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
+    /** log r at index i, NaN for a non-positive rate. */
+    private double logRateValue(final int i) {
+        final double value = rateValue(i);
+        if (logRates) {
+            return value;
         }
+        return value > 0.0 ? Math.log(value) : Double.NaN;
     }
 
     private int indicatorValue() {
@@ -179,120 +204,56 @@ public class ACSubtreeUIncrementOperator extends Operator {
         return 0.0;
     }
 
-    /** Collect all non-root nodes (edges) in the subtree under node 'n'. */
-    private void collectEdgesInSubtree(final Node n, final List<Node> out) {
-        if (!n.isRoot()) {
-            out.add(n);
-        }
-        final int cc = n.getChildCount();
-        for (int i = 0; i < cc; i++) {
-            collectEdgesInSubtree(n.getChild(i), out);
-        }
-    }
-
-    private Node pickSubtreeRoot() {
+    /** A node drawn uniformly from those allowed by internalOnly, allowRoot and maxSubtreeEdges, or -1 if none is. */
+    private int pickSubtreeRoot(final FlatTreeView view) {
         final boolean internalOnly = internalOnlyInput.get();
         final boolean allowRoot = allowRootInput.get();
         final int maxEdges = maxSubtreeEdgesInput.get();
-        final int tries = maxTriesInput.get();
-        final int nNodes = mapping.getNodeCount();
+        if (view.getTopologyVersion() != eligibleTopologyVersion || internalOnly != eligibleInternalOnly
+                || allowRoot != eligibleAllowRoot || maxEdges != eligibleMaxEdges) {
+            collectEligibleNodes(view, internalOnly, allowRoot, maxEdges);
+        }
+        return eligibleCount > 0 ? eligibleNodes[Randomizer.nextInt(eligibleCount)] : -1;
+    }
 
-        for (int t = 0; t < tries; t++) {
-            final Node cand = tree.getNode(Randomizer.nextInt(nNodes));
-            if (cand.isRoot() && !allowRoot) {
+    private void collectEligibleNodes(final FlatTreeView view,
+                                      final boolean internalOnly,
+                                      final boolean allowRoot,
+                                      final int maxEdges) {
+        final int nNodes = view.getNodeCount();
+        if (eligibleNodes.length < nNodes) {
+            eligibleNodes = new int[nNodes];
+        }
+        final int rootNr = view.getRootNr();
+        eligibleCount = 0;
+        for (int nr = 0; nr < nNodes; nr++) {
+            if (nr == rootNr && !allowRoot) {
                 continue;
             }
-            if (internalOnly && cand.getChildCount() == 0) {
+            if (internalOnly && view.getChildCount(nr) == 0) {
                 continue;
             }
-
-            if (maxEdges > 0) {
-                final ArrayList<Node> tmp = new ArrayList<>();
-                collectEdgesInSubtree(cand, tmp);
-                if (tmp.size() > maxEdges) {
-                    continue;
-                }
+            if (maxEdges > 0 && ACIncrementKernels.subtreeEdgeCount(view, nr) > maxEdges) {
+                continue;
             }
-            return cand;
+            eligibleNodes[eligibleCount++] = nr;
         }
-
-        Node cand;
-        do {
-            cand = tree.getNode(Randomizer.nextInt(nNodes));
-        } while (cand.isRoot() && !allowRoot);
-        return cand;
+        eligibleTopologyVersion = view.getTopologyVersion();
+        eligibleInternalOnly = internalOnly;
+        eligibleAllowRoot = allowRoot;
+        eligibleMaxEdges = maxEdges;
     }
 
-    /** Compute old u for a subtree rooted at 'node' given parent log-rate 'logPar'. */
-    private void computeUOld(final Node node,
-                             final double logPar,
-                             final double sig2Value,
-                             final double minDt,
-                             final double[] xOldByNr,
-                             final double[] uOldByNr) {
-        final int nr = node.getNr();
-        final int idx = mapping.idxForNode(node);
-        if (idx < 0) {
-            throw new ArithmeticException("Bad mapping");
-        }
-
-        final double dt = node.getLength();
-        if (!(dt > minDt)) {
-            throw new ArithmeticException("dt too small");
-        }
-        final double var = sig2Value * dt;
-        if (!(var > 0.0)) {
-            throw new ArithmeticException("var<=0");
-        }
-
-        final double r = rateValue(idx);
-        if (!(r > 0.0)) {
-            throw new ArithmeticException("rate<=0");
-        }
-        final double x = Math.log(r);
-
-        final double mean = logPar - 0.5 * var;
-        final double u = (x - mean) / Math.sqrt(var);
-
-        xOldByNr[nr] = x;
-        uOldByNr[nr] = u;
-
-        final int cc = node.getChildCount();
-        for (int i = 0; i < cc; i++) {
-            computeUOld(node.getChild(i), x, sig2Value, minDt, xOldByNr, uOldByNr);
-        }
+    private int rateIndexAt(final FlatTreeView view, final int sliceStart, final int from, final int i) {
+        return sliceStart >= 0 ? sliceStart + (i - from) : mapping.idxForNodeNr(view.getPreorderNr(i));
     }
 
-    /** Build new x for subtree rooted at 'node' given parent new log-rate 'logParNew'. */
-    private void buildXNew(final Node node,
-                           final double logParNew,
-                           final double sig2Value,
-                           final double minDt,
-                           final double[] uNewByNr,
-                           final double[] xNewByNr) {
-        final int nr = node.getNr();
-        final int idx = mapping.idxForNode(node);
-        if (idx < 0) {
-            throw new ArithmeticException("Bad mapping");
-        }
-
-        final double dt = node.getLength();
-        if (!(dt > minDt)) {
-            throw new ArithmeticException("dt too small");
-        }
-        final double var = sig2Value * dt;
-        if (!(var > 0.0)) {
-            throw new ArithmeticException("var<=0");
-        }
-
-        final double u = uNewByNr[nr];
-        final double x = logParNew - 0.5 * var + Math.sqrt(var) * u;
-
-        xNewByNr[nr] = x;
-
-        final int cc = node.getChildCount();
-        for (int i = 0; i < cc; i++) {
-            buildXNew(node.getChild(i), x, sig2Value, minDt, uNewByNr, xNewByNr);
+    private void ensureScratch(final int n) {
+        if (xOldScratch.length < n) {
+            xOldScratch = new double[n];
+            uScratch = new double[n];
+            xNewScratch = new double[n];
+            idxScratch = new int[n];
         }
     }
 
@@ -312,101 +273,102 @@ public class ACSubtreeUIncrementOperator extends Operator {
             return Double.NEGATIVE_INFINITY;
         }
 
-        final Node subRoot = pickSubtreeRoot();
-
-        final ArrayList<Node> edges = new ArrayList<>();
-        collectEdgesInSubtree(subRoot, edges);
-        if (edges.isEmpty()) {
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final int subRootNr = pickSubtreeRoot(view);
+        if (subRootNr < 0 || ACIncrementKernels.subtreeEdgeCount(view, subRootNr) == 0) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        final int nNodes = mapping.getNodeCount();
-        final double[] xOldByNr = new double[nNodes];
-        final double[] uOldByNr = new double[nNodes];
-        final double[] uNewByNr = new double[nNodes];
-        final double[] xNewByNr = new double[nNodes];
-        Arrays.fill(xOldByNr, Double.NaN);
-        Arrays.fill(uOldByNr, Double.NaN);
-        Arrays.fill(uNewByNr, Double.NaN);
-        Arrays.fill(xNewByNr, Double.NaN);
+        // the subtree's edges are a contiguous preorder range; the tree root itself carries no rate
+        final int rootNr = view.getRootNr();
+        final int to = view.getPreorderIndex(subRootNr) + view.getSubtreeSize(subRootNr);
+        final int from = subRootNr == rootNr ? view.getPreorderIndex(subRootNr) + 1 : view.getPreorderIndex(subRootNr);
+        // under the preorder rate layout the range is also a slice of the rates
+        final int sliceStart = view.getMapping() == mapping ? view.getRateSliceStart(subRootNr) : -1;
+
+        final int nEdges = mapping.getNodeCount() - 1;
+        ensureScratch(nEdges);
+        final double[] xOld = xOldScratch;
+        final double[] u = uScratch;
+        final double[] xNew = xNewScratch;
+        for (int i = from; i < to; i++) {
+            final int idx = rateIndexAt(view, sliceStart, from, i);
+            if (idx < 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            xOld[idx] = logRateValue(idx);
+            if (Double.isNaN(xOld[idx])) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
 
         final double boundaryLogPar;
-        if (subRoot.isRoot()) {
+        final int parentNr = view.getParentNr(subRootNr);
+        if (subRootNr == rootNr || parentNr == rootNr) {
             boundaryLogPar = rootLog();
-            final int cc = subRoot.getChildCount();
-            try {
-                for (int i = 0; i < cc; i++) {
-                    computeUOld(subRoot.getChild(i), boundaryLogPar, sig2Value, minDt, xOldByNr, uOldByNr);
-                }
-            } catch (ArithmeticException bad) {
-                return Double.NEGATIVE_INFINITY;
-            }
         } else {
-            final Node parent = subRoot.getParent();
-            if (parent.isRoot()) {
-                boundaryLogPar = rootLog();
-            } else {
-                final int idxPar = mapping.idxForNode(parent);
-                if (idxPar < 0) {
-                    return Double.NEGATIVE_INFINITY;
-                }
-
-                final double rPar = rateValue(idxPar);
-                if (!(rPar > 0.0)) {
-                    return Double.NEGATIVE_INFINITY;
-                }
-                boundaryLogPar = Math.log(rPar);
+            final int idxPar = mapping.idxForNodeNr(parentNr);
+            if (idxPar < 0) {
+                return Double.NEGATIVE_INFINITY;
             }
 
-            try {
-                computeUOld(subRoot, boundaryLogPar, sig2Value, minDt, xOldByNr, uOldByNr);
-            } catch (ArithmeticException bad) {
+            boundaryLogPar = logRateValue(idxPar);
+            if (Double.isNaN(boundaryLogPar)) {
                 return Double.NEGATIVE_INFINITY;
             }
         }
 
-        for (final Node e : edges) {
-            final int nr = e.getNr();
-            final double uOld = uOldByNr[nr];
+        try {
+            ACIncrementKernels.uFromLogRates(view, subRootNr, boundaryLogPar, xOld, u, sig2Value, minDt);
+        } catch (ArithmeticException bad) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        for (int i = from; i < to; i++) {
+            final int idx = rateIndexAt(view, sliceStart, from, i);
+            final double uOld = u[idx];
             if (!Double.isFinite(uOld)) {
                 return Double.NEGATIVE_INFINITY;
             }
-            uNewByNr[nr] = uOld + delta * Randomizer.nextGaussian();
+            u[idx] = uOld + delta * Randomizer.nextGaussian();
         }
 
         try {
-            if (subRoot.isRoot()) {
-                final int cc = subRoot.getChildCount();
-                final double rootLog = rootLog();
-                for (int i = 0; i < cc; i++) {
-                    buildXNew(subRoot.getChild(i), rootLog, sig2Value, minDt, uNewByNr, xNewByNr);
-                }
-            } else {
-                buildXNew(subRoot, boundaryLogPar, sig2Value, minDt, uNewByNr, xNewByNr);
-            }
+            ACIncrementKernels.logRatesFromU(view, subRootNr, boundaryLogPar, u, xNew, sig2Value, minDt);
         } catch (ArithmeticException bad) {
             return Double.NEGATIVE_INFINITY;
         }
 
         double sumDelta = 0.0;
-        for (final Node e : edges) {
-            final int nr = e.getNr();
-            final double xo = xOldByNr[nr];
-            final double xn = xNewByNr[nr];
+        for (int i = from; i < to; i++) {
+            final int idx = rateIndexAt(view, sliceStart, from, i);
+            final double xo = xOld[idx];
+            final double xn = xNew[idx];
             if (!Double.isFinite(xo) || !Double.isFinite(xn)) {
                 return Double.NEGATIVE_INFINITY;
             }
             sumDelta += (xn - xo);
         }
 
-        if (legacyRates != null) {
-            legacyRates.startEditing(this);
-        }
-        for (final Node e : edges) {
-            final int idx = mapping.idxForNode(e);
-            setRateValue(idx, Math.exp(xNewByNr[e.getNr()]));
+        rates.startEditing(this);
+        if (sliceStart >= 0) {
+            final int sliceEnd = sliceStart + (to - from);
+            LogRateKernels.toStoredValues(xNew, sliceStart, sliceEnd, logRates);
+            rates.setRange(sliceStart, sliceEnd, xNew);
+        } else {
+            final int[] written = idxScratch;
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                final int idx = rateIndexAt(view, sliceStart, from, i);
+                if (!logRates) {
+                    xNew[idx] = Math.exp(xNew[idx]);
+                }
+                written[count++] = idx;
+            }
+            rates.setIndices(written, count, xNew);
         }
 
-        return sumDelta;
+        // on stored log-rates the move is a symmetric walk; on rates it carries the Jacobian of exp
+        return logRates ? 0.0 : sumDelta;
     }
 }
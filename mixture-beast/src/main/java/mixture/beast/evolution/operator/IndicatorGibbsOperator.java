@@ -10,18 +10,20 @@ import mixture.beast.evolution.mixture.RelaxedRatesPriorSVS;
 
 @Description("Gibbs-style update for a binary indicator (0/1) used inside RelaxedRatesPriorSVS. "
         + "Proposes indicator from its conditional distribution given the shared rates vector "
-        + "and returns a Hastings term that makes acceptance probability 1.")
+        + "and returns a Hastings term that makes acceptance probability 1. "
+        + "With pStrict > 0 the indicator also takes 2 (strict); the likelihood then depends on the indicator, "
+        + "so the draw becomes an independence proposal accepted with the likelihood ratio.")
 public class IndicatorGibbsOperator extends Operator {
 
     public final Input<IntegerParameter> indicatorInput = new Input<>(
             "indicator",
-            "binary indicator parameter (dimension=1)",
+            "indicator parameter (dimension=1); 0=UC, 1=AC, 2=strict",
             Input.Validate.OPTIONAL
     );
 
     public final Input<IntScalarParam<?>> indicatorScalarInput = new Input<>(
             "indicatorScalar",
-            "BEAST3 typed mutable integer scalar; 0=uncorrelated, 1=autocorrelated.",
+            "BEAST3 typed mutable integer scalar; 0=uncorrelated, 1=autocorrelated, 2=strict.",
             Input.Validate.OPTIONAL
     );
 
@@ -37,10 +39,17 @@ public class IndicatorGibbsOperator extends Operator {
             0.5
     );
 
+    public final Input<Double> pStrictInput = new Input<>(
+            "pStrict",
+            "prior probability P(indicator=2), the strict clock. 0 (default) keeps the two-state UC/AC move.",
+            0.0
+    );
+
     private IntegerParameter legacyIndicator;
     private IntScalarParam<?> typedIndicator;
     private RelaxedRatesPriorSVS prior;
     private double pOne;
+    private double pStrict;
 
     @Override
     public void initAndValidate() {
@@ -48,6 +57,7 @@ public class IndicatorGibbsOperator extends Operator {
         typedIndicator = indicatorScalarInput.get();
         prior = priorInput.get();
         pOne = pOneInput.get();
+        pStrict = pStrictInput.get();
 
         if (legacyIndicator == null && typedIndicator == null) {
             throw new IllegalArgumentException("IndicatorGibbsOperator: either indicator or indicatorScalar must be specified.");
@@ -61,6 +71,9 @@ public class IndicatorGibbsOperator extends Operator {
         if (!(pOne > 0.0 && pOne < 1.0)) {
             throw new IllegalArgumentException("IndicatorGibbsOperator: pOne must be in (0,1).");
         }
+        if (!(pStrict >= 0.0 && pOne + pStrict < 1.0)) {
+            throw new IllegalArgumentException("IndicatorGibbsOperator: pStrict must be >= 0 with pOne + pStrict < 1.");
+        }
     }
 
     private static double logSumExp(double a, double b) {
@@ -87,14 +100,18 @@ public class IndicatorGibbsOperator extends Operator {
 
     @Override
     public double proposal() {
+        if (pStrict > 0.0) {
+            return proposalWithStrict();
+        }
+
         final int oldK = indicatorValue();
         if (!(oldK == 0 || oldK == 1)) {
             return Double.NEGATIVE_INFINITY;
         }
 
         // Compute (unnormalized) log weights for k=0 and k=1
-        final double logW0 = Math.log(1.0 - pOne) + prior.logPriorUCOnly();
-        final double logW1 = Math.log(pOne) + prior.logPriorACOnly();
+        final double logW0 = Math.log(1.0 - pOne) + prior.getLastLogPriorUC();
+        final double logW1 = Math.log(pOne) + prior.getLastLogPriorAC();
 
         if (Double.isInfinite(logW0) && Double.isInfinite(logW1)) {
             return Double.NEGATIVE_INFINITY;
@@ -116,4 +133,36 @@ public class IndicatorGibbsOperator extends Operator {
 
         return logPold - logPnew;
     }
+
+    /** Three-state draw over UC, AC and strict; strict uses the UC density of the rates as its pseudo-prior. */
+    private double proposalWithStrict() {
+        final int oldK = indicatorValue();
+        if (oldK < RelaxedRatesPriorSVS.UC || oldK > RelaxedRatesPriorSVS.STRICT) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        final double logPriorUC = prior.getLastLogPriorUC();
+        final double logW0 = Math.log(1.0 - pOne - pStrict) + logPriorUC;
+        final double logW1 = Math.log(pOne) + prior.getLastLogPriorAC();
+        final double logW2 = Math.log(pStrict) + logPriorUC;
+
+        final double logDen = logSumExp(logSumExp(logW0, logW1), logW2);
+        if (!(logDen > Double.NEGATIVE_INFINITY)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        final double[] logP = {logW0 - logDen, logW1 - logDen, logW2 - logDen};
+
+        final double u = Randomizer.nextDouble();
+        final int newK;
+        if (u < Math.exp(logP[0])) {
+            newK = RelaxedRatesPriorSVS.UC;
+        } else if (u < Math.exp(logP[0]) + Math.exp(logP[1])) {
+            newK = RelaxedRatesPriorSVS.AC;
+        } else {
+            newK = RelaxedRatesPriorSVS.STRICT;
+        }
+        setIndicatorValue(newK);
+
+        return logP[oldK] - logP[newK];
+    }
 }
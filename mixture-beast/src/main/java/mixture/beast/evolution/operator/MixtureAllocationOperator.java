@@ -0,0 +1,88 @@
+package mixture.beast.evolution.operator;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.spec.inference.parameter.IntScalarParam;
+import beast.base.util.Randomizer;
+import mixture.beast.evolution.mixture.MixtureTreeLikelihood;
+
+@Description("Metropolis update for the latent component allocation z of a MixtureTreeLikelihood in allocation mode. "
+        + "Proposes one of the other K-1 components uniformly (symmetric, Hastings term 0), so each step only "
+        + "evaluates the likelihood of the proposed component. A Gibbs draw would need all K likelihoods per step.")
+public class MixtureAllocationOperator extends Operator {
+
+    public final Input<IntegerParameter> allocationInput = new Input<>(
+            "allocation",
+            "latent allocation parameter (dimension=1), zero-indexed",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<IntScalarParam<?>> allocationScalarInput = new Input<>(
+            "allocationScalar",
+            "BEAST3 typed mutable integer scalar; zero-indexed latent allocation.",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<MixtureTreeLikelihood> mixtureInput = new Input<>(
+            "mixture",
+            "the MixtureTreeLikelihood whose allocation is updated",
+            Input.Validate.REQUIRED
+    );
+
+    private IntegerParameter legacyAllocation;
+    private IntScalarParam<?> typedAllocation;
+    private int K;
+
+    @Override
+    public void initAndValidate() {
+        legacyAllocation = allocationInput.get();
+        typedAllocation = allocationScalarInput.get();
+        K = mixtureInput.get().getComponentCount();
+
+        if (legacyAllocation == null && typedAllocation == null) {
+            throw new IllegalArgumentException("MixtureAllocationOperator: either allocation or allocationScalar must be specified.");
+        }
+        if (legacyAllocation != null && typedAllocation != null) {
+            throw new IllegalArgumentException("MixtureAllocationOperator: specify only one of allocation or allocationScalar.");
+        }
+        if (legacyAllocation != null && legacyAllocation.getDimension() != 1) {
+            throw new IllegalArgumentException("MixtureAllocationOperator: allocation must have dimension=1.");
+        }
+        if (K < 2) {
+            throw new IllegalArgumentException("MixtureAllocationOperator: mixture must have at least two components.");
+        }
+    }
+
+    private int allocationValue() {
+        if (legacyAllocation != null) {
+            return legacyAllocation.getValue(0);
+        }
+        return typedAllocation.get();
+    }
+
+    private void setAllocationValue(final int value) {
+        if (legacyAllocation != null) {
+            legacyAllocation.setValue(0, value);
+        } else {
+            typedAllocation.set(value);
+        }
+    }
+
+    @Override
+    public double proposal() {
+        final int oldZ = allocationValue();
+        if (oldZ < 0 || oldZ >= K) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // uniform over the other components: skip oldZ in [0..K-1]
+        int newZ = Randomizer.nextInt(K - 1);
+        if (newZ >= oldZ) {
+            newZ++;
+        }
+        setAllocationValue(newZ);
+        return 0.0;
+    }
+}
@@ -6,6 +6,8 @@ import beast.base.inference.Operator;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("Scale a single randomly chosen element of a positive rate vector: r <- r * exp(eps). "
         + "This is typically better than additive random-walk for positive parameters.")
@@ -29,8 +31,16 @@ public class SingleRateScaleOperator extends Operator {
             0.3
     );
 
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false
+    );
+
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
 
     @Override
     public void initAndValidate() {
@@ -43,25 +53,25 @@ public class SingleRateScaleOperator extends Operator {
         if (legacyRates != null && typedRates != null) {
             throw new IllegalArgumentException("SingleRateScaleOperator: specify only one of rates or ratesVector.");
         }
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "SingleRateScaleOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         if (rateDimension() < 1) {
             throw new IllegalArgumentException("SingleRateScaleOperator: rates dimension must be >= 1");
         }
     }
 
     private int rateDimension() {
-        return legacyRates != null ? legacyRates.getDimension() : typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
     private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
-        }
+        rates.set(i, value);
     }
 
     @Override
@@ -72,6 +82,16 @@ public class SingleRateScaleOperator extends Operator {
         final int dim = rateDimension();
         final int i = Randomizer.nextInt(dim);
 
+        if (logRates) {
+            // a symmetric random walk on the stored log-rate, the same move as the scale move on r
+            final double xNew = rateValue(i) + (Randomizer.nextDouble() * 2.0 - 1.0) * window;
+            if (!Double.isFinite(xNew)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            setRateValue(i, xNew);
+            return 0.0;
+        }
+
         final double r = rateValue(i);
         if (!(r > 0.0)) return Double.NEGATIVE_INFINITY;
 
@@ -8,9 +8,10 @@ import beast.base.inference.Operator;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.mixture.RelaxedRatesPriorSVS;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
-
-import java.util.ArrayDeque;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("Scale (multiply) all rates in a randomly chosen subtree by a common factor exp(eps). "
         + "Useful for mixing when rates are shared and AC prior induces correlations along the tree.")
@@ -36,11 +37,31 @@ public class SubtreeRateScaleOperator extends Operator {
             0.5
     );
 
+    public final Input<RelaxedRatesPriorSVS> ratesPriorInput = new Input<>(
+            "ratesPrior",
+            "optional RelaxedRatesPriorSVS on the same rates; told which subtree was scaled so it can update its "
+                    + "log-prior without re-reading every rate",
+            Input.Validate.OPTIONAL
+    );
+
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false
+    );
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
+    private RelaxedRatesPriorSVS ratesPrior;
     private BranchRateIndexHelper.Mapping mapping;
 
+    // proposal scratch, grown on demand and reused across proposals
+    private double[] valueScratch = new double[0];
+    private int[] idxScratch = new int[0];
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -53,14 +74,25 @@ public class SubtreeRateScaleOperator extends Operator {
         if (legacyRates != null && typedRates != null) {
             throw new IllegalArgumentException("SubtreeRateScaleOperator: specify only one of rates or ratesVector.");
         }
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "SubtreeRateScaleOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        mapping = FlatTreeView.of(tree).getMapping();
+
+        ratesPrior = ratesPriorInput.get();
+        if (ratesPrior != null && (ratesPrior.ratesInput.get() != legacyRates
+                || ratesPrior.ratesVectorInput.get() != typedRates || ratesPrior.treeInput.get() != tree)) {
+            throw new IllegalArgumentException("SubtreeRateScaleOperator: ratesPrior must use the same tree and rates "
+                    + "as this operator.");
+        }
     }
 
     private void ensureMappingUpToDate() {
         validateOrExpandRatesDimension();
         if (mapping == null || !mapping.matches(tree)) {
-            mapping = BranchRateIndexHelper.buildDeterministic(tree);
+            mapping = FlatTreeView.of(tree).getMapping();
         }
     }
 
@@ -69,18 +101,19 @@ public class SubtreeRateScaleOperator extends Operator {
     }
 
     private int rateDimension() {
-        return legacyRates != null ? legacyRates.getDimension() : typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
-    private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
+    private void ensureScratch(final int nRates, final int count) {
+        if (valueScratch.length < nRates) {
+            valueScratch = new double[nRates];
+        }
+        if (idxScratch.length < count) {
+            idxScratch = new int[count];
         }
     }
 
@@ -133,34 +166,50 @@ public class SubtreeRateScaleOperator extends Operator {
         final double eps = (Randomizer.nextDouble() * 2.0 - 1.0) * window;
         final double m = Math.exp(eps);
 
-        int count = 0;
-        final ArrayDeque<Node> stack = new ArrayDeque<>();
-        stack.push(subRoot);
-
-        while (!stack.isEmpty()) {
-            final Node node = stack.pop();
+        // the subtree is a preorder range of the view, and under the preorder rate layout a slice of the rates
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final int subRootNr = subRoot.getNr();
+        final int from = view.getPreorderIndex(subRootNr);
+        final int count = view.getSubtreeSize(subRootNr);
+        final int sliceStart = view.getMapping() == mapping ? view.getRateSliceStart(subRootNr) : -1;
+
+        // new values by rate index, written as one batch once all of them are valid
+        ensureScratch(rateDimension(), count);
+        final double[] newValues = valueScratch;
+        final int[] written = idxScratch;
+        for (int i = 0; i < count; i++) {
+            final int idx = sliceStart >= 0 ? sliceStart + i : mapping.idxForNodeNr(view.getPreorderNr(from + i));
+            if (idx < 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
 
-            if (!node.isRoot()) {
-                final int idx = mapping.idxForNode(node);
-                if (idx < 0) {
+            if (logRates) {
+                final double xNew = rateValue(idx) + eps;
+                if (!Double.isFinite(xNew)) {
                     return Double.NEGATIVE_INFINITY;
                 }
-
-                final double r = rateValue(idx);
-                final double rNew = r * m;
+                newValues[idx] = xNew;
+            } else {
+                final double rNew = rateValue(idx) * m;
                 if (!(rNew > 0.0) || Double.isInfinite(rNew) || Double.isNaN(rNew)) {
                     return Double.NEGATIVE_INFINITY;
                 }
-                setRateValue(idx, rNew);
-                count++;
+                newValues[idx] = rNew;
             }
+            written[i] = idx;
+        }
 
-            final int childCount = node.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                stack.push(node.getChild(i));
-            }
+        rates.startEditing(this);
+        if (sliceStart >= 0) {
+            rates.setRange(sliceStart, sliceStart + count, newValues);
+        } else {
+            rates.setIndices(written, count, newValues);
         }
 
-        return count * eps;
+        if (ratesPrior != null) {
+            ratesPrior.subtreeRatesScaled(subRoot, eps);
+        }
+        // a shift of the stored log-rates is symmetric; scaling count rates has Jacobian m^count
+        return logRates ? 0.0 : count * eps;
     }
 }
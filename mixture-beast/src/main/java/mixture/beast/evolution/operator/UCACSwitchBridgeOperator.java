@@ -2,7 +2,6 @@ package mixture.beast.evolution.operator;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
-import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.IntegerParameter;
@@ -10,11 +9,19 @@ import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.inference.parameter.IntScalarParam;
 import beast.base.spec.inference.parameter.RealScalarParam;
 import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.util.Randomizer;
+import mixture.beast.evolution.mixture.RelaxedRatesPriorSVS;
+import mixture.beast.evolution.util.ACIncrementKernels;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.LogRateKernels;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("UC<->AC switch operator that deterministically maps the shared rate vector through "
         + "a latent standard-normal vector u (non-centered bridge). "
-        + "Greatly improves mixing of the indicator on large trees.")
+        + "Greatly improves mixing of the indicator on large trees. "
+        + "With includeStrict, the indicator also moves to and from 2 (strict): strict<->UC keeps the rates, "
+        + "since strict uses the UC density as pseudo-prior, and strict<->AC uses the same bridge as UC<->AC.")
 public class UCACSwitchBridgeOperator extends Operator {
 
     public final Input<Tree> treeInput = new Input<>("tree", "tree", Input.Validate.REQUIRED);
@@ -28,11 +35,11 @@ public class UCACSwitchBridgeOperator extends Operator {
             Input.Validate.OPTIONAL);
     public final Input<IntegerParameter> indicatorInput = new Input<>(
             "indicator",
-            "Legacy scalar indicator; 0=UC, 1=AC.",
+            "Legacy scalar indicator; 0=UC, 1=AC, 2=strict.",
             Input.Validate.OPTIONAL);
     public final Input<IntScalarParam<?>> indicatorScalarInput = new Input<>(
             "indicatorScalar",
-            "BEAST3 typed mutable scalar indicator; 0=UC, 1=AC.",
+            "BEAST3 typed mutable scalar indicator; 0=UC, 1=AC, 2=strict.",
             Input.Validate.OPTIONAL);
 
     public final Input<RealParameter> ucldStdevInput = new Input<>(
@@ -62,9 +69,22 @@ public class UCACSwitchBridgeOperator extends Operator {
 
     public final Input<Double> minBranchLengthInput = new Input<>("minBranchLength", "min dt allowed for AC mapping", 1e-12);
 
+    public final Input<Boolean> includeStrictInput = new Input<>(
+            "includeStrict",
+            "if true, switch among UC, AC and strict (indicator 2), picking one of the two other states uniformly "
+                    + "(default false: UC<->AC only).",
+            false);
+
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false);
+
     private Tree tree;
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
     private IntegerParameter legacyIndicator;
     private IntScalarParam<?> typedIndicator;
     private RealParameter legacyUcldStdev;
@@ -76,6 +96,11 @@ public class UCACSwitchBridgeOperator extends Operator {
 
     private BranchRateIndexHelper.Mapping mapping;
 
+    // proposal scratch indexed by rate index, grown on demand and reused across proposals
+    private double[] xOldScratch = new double[0];
+    private double[] uScratch = new double[0];
+    private double[] xNewScratch = new double[0];
+
     @Override
     public void initAndValidate() {
         tree = treeInput.get();
@@ -109,8 +134,12 @@ public class UCACSwitchBridgeOperator extends Operator {
             throw new IllegalArgumentException("UCACSwitchBridgeOperator: rootLogRate dimension must be 1");
         }
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "UCACSwitchBridgeOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         validateOrExpandRatesDimension();
-        mapping = BranchRateIndexHelper.buildDeterministic(tree);
+        mapping = FlatTreeView.of(tree).getMapping();
     }
 
     private static void requireExactlyOne(final Object legacy,
@@ -151,19 +180,19 @@ public class UCACSwitchBridgeOperator extends Operator {
     }
 
     private int rateDimension() {
-        return legacyRates != null ? legacyRates.getDimension() : typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
-    private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
+    /** Log-rates of the first n rate indices into x; false if any rate is invalid. */
+    private boolean readLogRates(final double[] x, final int n) {
+        for (int i = 0; i < n; i++) {
+            x[i] = rateValue(i);
         }
+        return LogRateKernels.toLogRates(x, x, n, logRates) == 0;
     }
 
     private int indicatorValue() {
@@ -196,8 +225,12 @@ public class UCACSwitchBridgeOperator extends Operator {
         return 0.0;
     }
 
-    private static final class Sum {
-        double sumLogVar = 0.0;
+    private void ensureScratch(final int n) {
+        if (xOldScratch.length < n) {
+            xOldScratch = new double[n];
+            uScratch = new double[n];
+            xNewScratch = new double[n];
+        }
     }
 
     @Override
@@ -205,14 +238,42 @@ public class UCACSwitchBridgeOperator extends Operator {
         ensureMappingUpToDate();
 
         final int k = indicatorValue();
-        if (k == 0) {
+        if (includeStrictInput.get()) {
+            return proposeAmongThree(k);
+        }
+        if (k == RelaxedRatesPriorSVS.UC) {
             return proposeUCtoAC();
-        } else if (k == 1) {
-            return proposeACtoUC();
+        } else if (k == RelaxedRatesPriorSVS.AC) {
+            return proposeACtoUC(RelaxedRatesPriorSVS.UC);
         }
         return Double.NEGATIVE_INFINITY;
     }
 
+    /** Target is one of the two other states with probability 1/2 each, so the choice cancels in the Hastings term. */
+    private double proposeAmongThree(final int k) {
+        if (k < RelaxedRatesPriorSVS.UC || k > RelaxedRatesPriorSVS.STRICT) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int target = Randomizer.nextInt(2);
+        if (target >= k) {
+            target++;
+        }
+
+        if (target == RelaxedRatesPriorSVS.AC) {
+            return proposeUCtoAC();
+        }
+        if (k == RelaxedRatesPriorSVS.AC) {
+            return proposeACtoUC(target);
+        }
+
+        // UC <-> strict: the rates keep the same density, only the indicator changes
+        if (legacyIndicator != null) {
+            legacyIndicator.startEditing(this);
+        }
+        setIndicatorValue(target);
+        return 0.0;
+    }
+
     private double proposeUCtoAC() {
         final double s = ucldStdevValue();
         final double sig2 = sigma2Value();
@@ -223,41 +284,31 @@ public class UCACSwitchBridgeOperator extends Operator {
 
         final int nEdges = rateDimension();
         final double muUC = -0.5 * s * s;
+        ensureScratch(nEdges);
 
-        final double[] xOld = new double[nEdges];
-        final double[] u = new double[nEdges];
-
-        for (int i = 0; i < nEdges; i++) {
-            final double r = rateValue(i);
-            if (!(r > 0.0)) {
-                return Double.NEGATIVE_INFINITY;
-            }
-            final double x = Math.log(r);
-            xOld[i] = x;
-            u[i] = (x - muUC) / s;
+        final double[] xOld = xOldScratch;
+        final double[] u = uScratch;
+        if (!readLogRates(xOld, nEdges)) {
+            return Double.NEGATIVE_INFINITY;
         }
+        LogRateKernels.affine(xOld, u, nEdges, 1.0 / s, -muUC / s);
 
-        final double[] xNew = new double[nEdges];
-        final Sum sum = new Sum();
-
+        final double[] xNew = xNewScratch;
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final double sumLogVar;
         try {
-            fillLogRatesFromU(tree.getRoot(), rootLog(), u, xNew, sig2, minDt, sum);
+            sumLogVar = ACIncrementKernels.logRatesFromU(view, view.getRootNr(), rootLog(), u, xNew, sig2, minDt);
         } catch (ArithmeticException bad) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        double sumDelta = 0.0;
-        for (int i = 0; i < nEdges; i++) {
-            sumDelta += (xNew[i] - xOld[i]);
-        }
-        final double logH = sumDelta + 0.5 * sum.sumLogVar - nEdges * Math.log(s);
+        final double sumDelta = LogRateKernels.sumDifference(xNew, xOld, nEdges);
+        // sumDelta is the Jacobian of r = exp(x); it drops out when the state holds x itself
+        final double logH = (logRates ? 0.0 : sumDelta) + 0.5 * sumLogVar - nEdges * Math.log(s);
 
-        if (legacyRates != null) {
-            legacyRates.startEditing(this);
-        }
-        for (int i = 0; i < nEdges; i++) {
-            setRateValue(i, Math.exp(xNew[i]));
-        }
+        rates.startEditing(this);
+        LogRateKernels.toStoredValues(xNew, 0, nEdges, logRates);
+        rates.setRange(0, nEdges, xNew);
 
         if (legacyIndicator != null) {
             legacyIndicator.startEditing(this);
@@ -267,7 +318,7 @@ public class UCACSwitchBridgeOperator extends Operator {
         return logH;
     }
 
-    private double proposeACtoUC() {
+    private double proposeACtoUC(final int newIndicator) {
         final double s = ucldStdevValue();
         final double sig2 = sigma2Value();
         final double minDt = minBranchLengthInput.get();
@@ -277,116 +328,37 @@ public class UCACSwitchBridgeOperator extends Operator {
 
         final int nEdges = rateDimension();
         final double muUC = -0.5 * s * s;
+        ensureScratch(nEdges);
 
-        final double[] xOld = new double[nEdges];
-        for (int i = 0; i < nEdges; i++) {
-            final double r = rateValue(i);
-            if (!(r > 0.0)) {
-                return Double.NEGATIVE_INFINITY;
-            }
-            xOld[i] = Math.log(r);
+        final double[] xOld = xOldScratch;
+        if (!readLogRates(xOld, nEdges)) {
+            return Double.NEGATIVE_INFINITY;
         }
 
-        final double[] u = new double[nEdges];
-        final Sum sum = new Sum();
-
+        final double[] u = uScratch;
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final double sumLogVar;
         try {
-            fillUFromLogRatesAC(tree.getRoot(), rootLog(), xOld, u, sig2, minDt, sum);
+            sumLogVar = ACIncrementKernels.uFromLogRates(view, view.getRootNr(), rootLog(), xOld, u, sig2, minDt);
         } catch (ArithmeticException bad) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        final double[] xNew = new double[nEdges];
-        for (int i = 0; i < nEdges; i++) {
-            xNew[i] = muUC + s * u[i];
-        }
+        final double[] xNew = xNewScratch;
+        LogRateKernels.affine(u, xNew, nEdges, s, muUC);
 
-        double sumDelta = 0.0;
-        for (int i = 0; i < nEdges; i++) {
-            sumDelta += (xNew[i] - xOld[i]);
-        }
-        final double logH = sumDelta + nEdges * Math.log(s) - 0.5 * sum.sumLogVar;
+        final double sumDelta = LogRateKernels.sumDifference(xNew, xOld, nEdges);
+        final double logH = (logRates ? 0.0 : sumDelta) + nEdges * Math.log(s) - 0.5 * sumLogVar;
 
-        if (legacyRates != null) {
-            legacyRates.startEditing(this);
-        }
-        for (int i = 0; i < nEdges; i++) {
-            setRateValue(i, Math.exp(xNew[i]));
-        }
+        rates.startEditing(this);
+        LogRateKernels.toStoredValues(xNew, 0, nEdges, logRates);
+        rates.setRange(0, nEdges, xNew);
 
         if (legacyIndicator != null) {
             legacyIndicator.startEditing(this);
         }
-        setIndicatorValue(0);
+        setIndicatorValue(newIndicator);
 
         return logH;
     }
-
-    private void fillLogRatesFromU(final Node parent,
-                                   final double logPar,
-                                   final double[] u,
-                                   final double[] xOut,
-                                   final double sigma2Value,
-                                   final double minDt,
-                                   final Sum sum) {
-        final int cc = parent.getChildCount();
-        for (int c = 0; c < cc; c++) {
-            final Node child = parent.getChild(c);
-            final int idx = mapping.idxForNode(child);
-            if (idx < 0) {
-                throw new ArithmeticException("Bad mapping for child");
-            }
-
-            final double dt = child.getLength();
-            if (!(dt > minDt)) {
-                throw new ArithmeticException("dt too small");
-            }
-
-            final double var = sigma2Value * dt;
-            if (!(var > 0.0)) {
-                throw new ArithmeticException("var<=0");
-            }
-
-            sum.sumLogVar += Math.log(var);
-
-            final double logChild = logPar - 0.5 * var + Math.sqrt(var) * u[idx];
-            xOut[idx] = logChild;
-
-            fillLogRatesFromU(child, logChild, u, xOut, sigma2Value, minDt, sum);
-        }
-    }
-
-    private void fillUFromLogRatesAC(final Node parent,
-                                     final double logPar,
-                                     final double[] x,
-                                     final double[] uOut,
-                                     final double sigma2Value,
-                                     final double minDt,
-                                     final Sum sum) {
-        final int cc = parent.getChildCount();
-        for (int c = 0; c < cc; c++) {
-            final Node child = parent.getChild(c);
-            final int idx = mapping.idxForNode(child);
-            if (idx < 0) {
-                throw new ArithmeticException("Bad mapping for child");
-            }
-
-            final double dt = child.getLength();
-            if (!(dt > minDt)) {
-                throw new ArithmeticException("dt too small");
-            }
-
-            final double var = sigma2Value * dt;
-            if (!(var > 0.0)) {
-                throw new ArithmeticException("var<=0");
-            }
-
-            sum.sumLogVar += Math.log(var);
-
-            final double mean = logPar - 0.5 * var;
-            uOut[idx] = (x[idx] - mean) / Math.sqrt(var);
-
-            fillUFromLogRatesAC(child, x[idx], x, uOut, sigma2Value, minDt, sum);
-        }
-    }
 }
@@ -9,6 +9,9 @@ import beast.base.spec.inference.parameter.IntScalarParam;
 import beast.base.spec.inference.parameter.RealScalarParam;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.LogRateKernels;
+import mixture.beast.evolution.util.RateAccessor;
 
 @Description("UC-only non-centered hyper move: changes ucldStdev while keeping latent z_i fixed, "
         + "and reconstructs the shared rate vector accordingly. "
@@ -64,13 +67,25 @@ public class UCLDStdevNonCenteredOperator extends Operator {
             true
     );
 
+    public final Input<Boolean> logRatesInput = new Input<>(
+            "logRates",
+            "if true, the rates hold log-rates and the move is made on them directly; must match the clock and prior.",
+            false
+    );
+
     private RealParameter legacyRates;
     private RealVectorParam<?> typedRates;
+    private RateAccessor.Writable rates;
+    private boolean logRates;
     private IntegerParameter legacyIndicator;
     private IntScalarParam<?> typedIndicator;
     private RealParameter legacyUcldStdev;
     private RealScalarParam<?> typedUcldStdev;
 
+    // proposal scratch, grown on demand and reused across proposals
+    private double[] xOldScratch = new double[0];
+    private double[] xNewScratch = new double[0];
+
     @Override
     public void initAndValidate() {
         legacyRates = ratesInput.get();
@@ -84,6 +99,10 @@ public class UCLDStdevNonCenteredOperator extends Operator {
         requireExactlyOne(legacyIndicator, typedIndicator, "indicator", "indicatorScalar");
         requireExactlyOne(legacyUcldStdev, typedUcldStdev, "ucldStdev", "ucldStdevScalar");
 
+        logRates = logRatesInput.get();
+        BranchRateIndexHelper.declareLogRates(legacyRates != null ? legacyRates : typedRates, logRates,
+                "UCLDStdevNonCenteredOperator");
+        rates = legacyRates != null ? RateAccessor.of(legacyRates) : RateAccessor.of(typedRates);
         if (rateDimension() < 1) {
             throw new IllegalArgumentException("UCLDStdevNonCenteredOperator: rates dimension must be >= 1");
         }
@@ -110,19 +129,25 @@ public class UCLDStdevNonCenteredOperator extends Operator {
     }
 
     private int rateDimension() {
-        return legacyRates != null ? legacyRates.getDimension() : typedRates.size();
+        return rates.size();
     }
 
     private double rateValue(final int i) {
-        return legacyRates != null ? legacyRates.getValue(i) : typedRates.get(i);
+        return rates.get(i);
     }
 
-    private void setRateValue(final int i, final double value) {
-        if (legacyRates != null) {
-            legacyRates.setValue(i, value);
-        } else {
-            typedRates.set(i, value);
+    /** The first n of x can be stored: finite, and for plain rates exp(x) neither underflows to 0 nor overflows. */
+    private boolean areValidLogRates(final double[] x, final int n) {
+        if (logRates) {
+            return LogRateKernels.allFinite(x, n);
+        }
+        for (int i = 0; i < n; i++) {
+            final double r = Math.exp(x[i]);
+            if (!(r > 0.0) || Double.isInfinite(r)) {
+                return false;
+            }
         }
+        return true;
     }
 
     private int indicatorValue() {
@@ -168,40 +193,36 @@ public class UCLDStdevNonCenteredOperator extends Operator {
         final double oldVar = oldS * oldS;
         final double newVar = newS * newS;
 
-        final double[] rNew = new double[nEdges];
-        double sumDelta = 0.0;
-
+        if (xOldScratch.length < nEdges) {
+            xOldScratch = new double[nEdges];
+            xNewScratch = new double[nEdges];
+        }
+        final double[] xOld = xOldScratch;
+        final double[] xNewValues = xNewScratch;
         for (int i = 0; i < nEdges; i++) {
-            final double r = rateValue(i);
-            if (!(r > 0.0)) {
-                return Double.NEGATIVE_INFINITY;
-            }
-
-            final double xOld = Math.log(r);
-            final double z = (xOld + 0.5 * oldVar) / oldS;
-            final double xNew = -0.5 * newVar + newS * z;
-
-            final double rCandidate = Math.exp(xNew);
-            if (!(rCandidate > 0.0) || Double.isInfinite(rCandidate) || Double.isNaN(rCandidate)) {
-                return Double.NEGATIVE_INFINITY;
-            }
-
-            rNew[i] = rCandidate;
-            sumDelta += (xNew - xOld);
+            xOld[i] = rateValue(i);
         }
-
-        if (legacyRates != null) {
-            legacyRates.startEditing(this);
+        if (LogRateKernels.toLogRates(xOld, xOld, nEdges, logRates) > 0) {
+            return Double.NEGATIVE_INFINITY;
         }
-        for (int i = 0; i < nEdges; i++) {
-            setRateValue(i, rNew[i]);
+
+        // xNew = -newVar/2 + newS * z with z = (xOld + oldVar/2) / oldS, as one affine map
+        final double ratio = newS / oldS;
+        LogRateKernels.affine(xOld, xNewValues, nEdges, ratio, 0.5 * (ratio * oldVar - newVar));
+        if (!areValidLogRates(xNewValues, nEdges)) {
+            return Double.NEGATIVE_INFINITY;
         }
+        final double sumDelta = LogRateKernels.sumDifference(xNewValues, xOld, nEdges);
+
+        rates.startEditing(this);
+        LogRateKernels.toStoredValues(xNewValues, 0, nEdges, logRates);
+        rates.setRange(0, nEdges, xNewValues);
 
         if (legacyUcldStdev != null) {
             legacyUcldStdev.startEditing(this);
         }
         setUcldStdevValue(newS);
 
-        return sumDelta + (nEdges + 1.0) * eps;
+        return (logRates ? 0.0 : sumDelta) + (nEdges + 1.0) * eps;
     }
 }
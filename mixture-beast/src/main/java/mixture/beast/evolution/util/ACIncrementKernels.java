@@ -0,0 +1,100 @@
+package mixture.beast.evolution.util;
+
+/**
+ * Non-centred AC maps between log-rates x and standardised Brownian increments u on the edges of a subtree:
+ *
+ *   var_i = sigma2 * dt_i,   u_i = (x_i - (x_parent - var_i / 2)) / sqrt(var_i)
+ *
+ * Both maps walk the subtree as a contiguous range of the FlatTreeView preorder, so they need no recursion and
+ * handle arbitrarily deep trees; edges are visited in the same order as a left-to-right depth-first walk.
+ * Arrays are indexed by rate index. An edge with dt <= minDt throws ArithmeticException, as the operators'
+ * recursive maps did; callers turn it into a rejected proposal.
+ */
+public final class ACIncrementKernels {
+
+    private ACIncrementKernels() {
+        // utility class
+    }
+
+    /**
+     * u for every edge below subRootNr, including the edge above it unless it is the tree root.
+     * logPar is the log-rate above subRootNr (the root log-rate if subRootNr is the root).
+     *
+     * @return sum of log(var) over the visited edges
+     */
+    public static double uFromLogRates(final FlatTreeView view,
+                                       final int subRootNr,
+                                       final double logPar,
+                                       final double[] x,
+                                       final double[] uOut,
+                                       final double sigma2,
+                                       final double minDt) {
+        final BranchRateIndexHelper.Mapping mapping = view.getMapping();
+        final int from = view.getPreorderIndex(subRootNr);
+        final int to = from + view.getSubtreeSize(subRootNr);
+        double sumLogVar = 0.0;
+        for (int i = subRootNr == view.getRootNr() ? from + 1 : from; i < to; i++) {
+            final int nr = view.getPreorderNr(i);
+            final int idx = mapping.idxForNodeNr(nr);
+            if (idx < 0) {
+                throw new ArithmeticException("Bad mapping for child");
+            }
+            final double var = edgeVariance(view, nr, sigma2, minDt);
+            sumLogVar += Math.log(var);
+
+            final int parentIdx = nr == subRootNr ? -1 : mapping.idxForNodeNr(view.getParentNr(nr));
+            final double mean = (parentIdx < 0 ? logPar : x[parentIdx]) - 0.5 * var;
+            uOut[idx] = (x[idx] - mean) / Math.sqrt(var);
+        }
+        return sumLogVar;
+    }
+
+    /**
+     * Inverse of uFromLogRates: x for every edge below subRootNr from its u and its parent's new x.
+     *
+     * @return sum of log(var) over the visited edges
+     */
+    public static double logRatesFromU(final FlatTreeView view,
+                                       final int subRootNr,
+                                       final double logPar,
+                                       final double[] u,
+                                       final double[] xOut,
+                                       final double sigma2,
+                                       final double minDt) {
+        final BranchRateIndexHelper.Mapping mapping = view.getMapping();
+        final int from = view.getPreorderIndex(subRootNr);
+        final int to = from + view.getSubtreeSize(subRootNr);
+        double sumLogVar = 0.0;
+        for (int i = subRootNr == view.getRootNr() ? from + 1 : from; i < to; i++) {
+            final int nr = view.getPreorderNr(i);
+            final int idx = mapping.idxForNodeNr(nr);
+            if (idx < 0) {
+                throw new ArithmeticException("Bad mapping for child");
+            }
+            final double var = edgeVariance(view, nr, sigma2, minDt);
+            sumLogVar += Math.log(var);
+
+            final int parentIdx = nr == subRootNr ? -1 : mapping.idxForNodeNr(view.getParentNr(nr));
+            xOut[idx] = (parentIdx < 0 ? logPar : xOut[parentIdx]) - 0.5 * var + Math.sqrt(var) * u[idx];
+        }
+        return sumLogVar;
+    }
+
+    /** Number of edges below subRootNr, counting the edge above it unless it is the tree root. */
+    public static int subtreeEdgeCount(final FlatTreeView view, final int subRootNr) {
+        final int size = view.getSubtreeSize(subRootNr);
+        return subRootNr == view.getRootNr() ? size - 1 : size;
+    }
+
+    private static double edgeVariance(final FlatTreeView view, final int nr, final double sigma2, final double minDt) {
+        final double dt = view.getBranchLength(nr);
+        if (!(dt > minDt)) {
+            throw new ArithmeticException("dt too small");
+        }
+        final double var = sigma2 * dt;
+        if (!(var > 0.0)) {
+            throw new ArithmeticException("var<=0");
+        }
+        return var;
+    }
+}
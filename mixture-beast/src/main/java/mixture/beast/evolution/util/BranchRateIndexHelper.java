@@ -6,6 +6,8 @@ import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.inference.parameter.RealVectorParam;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Shared helper that builds the deterministic mapping:
@@ -18,22 +20,88 @@ import java.util.Arrays;
  *     in ascending child-node nr order
  *
  * This matches the deterministic mapping used in RelaxedRatesPriorSVS.
+ *
+ * The optional PREORDER layout instead numbers the non-root branches in the preorder of the tree it is built
+ * from (children left to right), so that the rates of every subtree form one contiguous index range. The
+ * indices are still a fixed function of the child node nr: a later topology change keeps them (re-deriving them
+ * would move rates onto other branches), and only the subtrees it breaks up stop being contiguous.
  */
 public final class BranchRateIndexHelper {
 
+    // rates object -> whether it holds log-rates, as declared by the components that use it
+    private static final Map<Object, Boolean> LOG_RATES = new WeakHashMap<>();
+
     private BranchRateIndexHelper() {
         // utility class
     }
 
+    /**
+     * Record whether a component reads the shared rates as log-rates. Every component on the same rates object must
+     * declare the same scale, otherwise one of them would read log-rates as rates.
+     */
+    public static synchronized void declareLogRates(final Object rates,
+                                                    final boolean logRates,
+                                                    final String ownerName) {
+        if (rates == null) {
+            throw new IllegalArgumentException(ownerName + ": rates is null");
+        }
+        final Boolean current = LOG_RATES.get(rates);
+        if (current != null && current != logRates) {
+            throw new IllegalArgumentException(ownerName + ": logRates=" + logRates
+                    + " conflicts with logRates=" + current + " declared for the same rates elsewhere.");
+        }
+        LOG_RATES.put(rates, logRates);
+    }
+
+    /** Order in which the non-root branches are assigned rate indices. */
+    public enum Layout {
+        NODE_NR("nodeNr"),
+        PREORDER("preorder");
+
+        private final String xmlName;
+
+        Layout(final String xmlName) {
+            this.xmlName = xmlName;
+        }
+
+        public String getXmlName() {
+            return xmlName;
+        }
+
+        /** Layout for an XML rateLayout value; null or empty means no preference. */
+        public static Layout parse(final String value, final String ownerName) {
+            if (value == null || value.isEmpty()) {
+                return null;
+            }
+            for (final Layout layout : values()) {
+                if (layout.xmlName.equalsIgnoreCase(value)) {
+                    return layout;
+                }
+            }
+            throw new IllegalArgumentException(ownerName + ": unknown rateLayout '" + value
+                    + "'; expected nodeNr or preorder.");
+        }
+    }
+
     public static final class Mapping {
         private final int nodeCount;
         private final int rootNr;
         private final int[] idxMap;
+        private final int[] nodeNrMap;
+        private final Layout layout;
+        private volatile boolean retired;
 
-        private Mapping(final int nodeCount, final int rootNr, final int[] idxMap) {
+        private Mapping(final int nodeCount, final int rootNr, final int[] idxMap, final Layout layout) {
             this.nodeCount = nodeCount;
             this.rootNr = rootNr;
             this.idxMap = idxMap;
+            this.layout = layout;
+            nodeNrMap = new int[Math.max(nodeCount - 1, 0)];
+            for (int nr = 0; nr < nodeCount; nr++) {
+                if (idxMap[nr] >= 0) {
+                    nodeNrMap[idxMap[nr]] = nr;
+                }
+            }
         }
 
         public int getNodeCount() {
@@ -44,8 +112,18 @@ public final class BranchRateIndexHelper {
             return rootNr;
         }
 
+        public Layout getLayout() {
+            return layout;
+        }
+
+        /** Called when the tree switches to another rate layout, so that holders of this mapping fetch a new one. */
+        void retire() {
+            retired = true;
+        }
+
         public boolean matches(final Tree tree) {
-            return tree != null
+            return !retired
+                    && tree != null
                     && tree.getRoot() != null
                     && tree.getNodeCount() == nodeCount
                     && tree.getRoot().getNr() == rootNr;
@@ -65,12 +143,29 @@ public final class BranchRateIndexHelper {
             return idxForNodeNr(node.getNr());
         }
 
+        /** Child node nr of the branch with rate index idx. */
+        public int nodeNrForIdx(final int idx) {
+            if (idx < 0 || idx >= nodeNrMap.length) {
+                throw new IllegalArgumentException("Rate index out of range: " + idx + " (nodeCount=" + nodeCount + ")");
+            }
+            return nodeNrMap[idx];
+        }
+
         public int[] copyIndexMap() {
             return Arrays.copyOf(idxMap, idxMap.length);
         }
     }
 
     public static Mapping buildDeterministic(final Tree tree) {
+        return build(tree, Layout.NODE_NR);
+    }
+
+    /** Rate indices in the preorder of the tree's current shape; see the class comment. */
+    public static Mapping buildPreorder(final Tree tree) {
+        return build(tree, Layout.PREORDER);
+    }
+
+    public static Mapping build(final Tree tree, final Layout layout) {
         if (tree == null) {
             throw new IllegalArgumentException("Tree is null");
         }
@@ -115,11 +210,30 @@ public final class BranchRateIndexHelper {
         Arrays.fill(idxMap, -2);
 
         int k = 0;
-        for (int nr = 0; nr < nNodes; nr++) {
-            if (nr == rootNr) {
-                idxMap[nr] = -1;
-            } else {
-                idxMap[nr] = k++;
+        if (layout == Layout.PREORDER) {
+            idxMap[rootNr] = -1;
+            final Node[] stack = new Node[nNodes];
+            int top = 0;
+            stack[top++] = byNr[rootNr];
+            while (top > 0) {
+                final Node node = stack[--top];
+                if (node.getNr() != rootNr) {
+                    idxMap[node.getNr()] = k++;
+                }
+                for (int c = node.getChildCount() - 1; c >= 0; c--) {
+                    if (top == nNodes) {
+                        throw new IllegalStateException("Tree contains a cycle or shared child nodes");
+                    }
+                    stack[top++] = node.getChild(c);
+                }
+            }
+        } else {
+            for (int nr = 0; nr < nNodes; nr++) {
+                if (nr == rootNr) {
+                    idxMap[nr] = -1;
+                } else {
+                    idxMap[nr] = k++;
+                }
             }
         }
 
@@ -128,7 +242,7 @@ public final class BranchRateIndexHelper {
                     + " non-root nodes but mapped " + k);
         }
 
-        return new Mapping(nNodes, rootNr, idxMap);
+        return new Mapping(nNodes, rootNr, idxMap, layout);
     }
 
     public static void validateRatesDimension(final Tree tree,
@@ -211,7 +325,7 @@ public final class BranchRateIndexHelper {
                                          final String ownerName) {
         validateRatesDimension(tree, rates, ownerName);
         if (mapping == null || !mapping.matches(tree)) {
-            return buildDeterministic(tree);
+            return FlatTreeView.of(tree).getMapping();
         }
         return mapping;
     }
@@ -222,7 +336,7 @@ public final class BranchRateIndexHelper {
                                          final String ownerName) {
         validateRatesDimension(tree, rates, ownerName);
         if (mapping == null || !mapping.matches(tree)) {
-            return buildDeterministic(tree);
+            return FlatTreeView.of(tree).getMapping();
         }
         return mapping;
     }
@@ -0,0 +1,396 @@
+package mixture.beast.evolution.util;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flat, read-only view of a tree's current shape, shared by everything that works on the same tree:
+ *
+ *   preorder / postorder      node nrs in traversal order
+ *   parent, children          node nr -> parent nr (-1 at the root), child nrs via offsets
+ *   preorder index, size      the subtree below a node is preorder[index .. index+size-1]
+ *   branch length, log        node nr -> length of the branch above it (0 at the root)
+ *   rate-index mapping        the BranchRateIndexHelper mapping, reused while nodeCount and root nr are unchanged
+ *   rate slices               first rate index of a subtree whose rates form one contiguous index range
+ *
+ * of(tree) returns the view of the tree's current state and builds at most one new view per tree change, however
+ * many clocks, priors and operators ask for it. Tree reports no change counter, so the calculation nodes that own a
+ * tree's views report changes: each calls treeChanged(tree) from requiresRecalculation while the tree is dirty. The
+ * next of(tree) then compares the view with the tree's nodes (parents, children and branch lengths, one linear pass
+ * without allocation) and builds a new view only if they differ. Tree.restore swaps the tree's node array, so a
+ * different getNodesAsArray() also triggers the comparison, which then finds the view held before the proposal. A
+ * tree outside a State can be edited freely, so its view is compared on every call. Building and comparing use
+ * explicit stacks and loops only, so deep ladder trees need no deep thread stack.
+ *
+ * Lookups take no lock: every tree has a holder, found through a concurrent map keyed weakly on the tree's
+ * identity, whose current view is a volatile field; the holder refers to the tree and its node array weakly only.
+ * Two threads that find the view stale at once may both check or build one; either is a correct view of the
+ * unchanged tree, and the last one published is kept.
+ *
+ * Alongside the version, which is new for every view built, a view carries a topology version that only changes
+ * when parents or children do: a view whose shape equals that of the view it replaces keeps its topology version,
+ * so height-only moves leave anything keyed on the shape alone.
+ *
+ * The mapping uses the tree's rate layout: node-nr order unless some component asked for the preorder layout
+ * through useRateLayout, in which case every subtree of the starting tree is a slice of the rate vector.
+ */
+public final class FlatTreeView {
+
+    private static final Map<TreeKey, Holder> HOLDERS = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Tree> COLLECTED = new ReferenceQueue<>();
+    private static final AtomicLong LAST_VERSION = new AtomicLong();
+    // the holder found last, so that the usual single-tree analysis skips the map
+    private static volatile Holder lastHolder;
+
+    private final long version;
+    private final long topologyVersion;
+    private final BranchRateIndexHelper.Mapping mapping;
+    private final int nodeCount;
+    private final int rootNr;
+    private final int[] preorder;
+    private final int[] postorder;
+    private final int[] preorderIndex;
+    private final int[] subtreeSize;
+    private final int[] parent;
+    private final int[] childOffset;
+    private final int[] children;
+    private final double[] branchLength;
+    private final double[] logBranchLength;
+    private final int[] rateRunEnd;
+
+    /** View of the tree's current state; the same instance until the tree changes. */
+    public static FlatTreeView of(final Tree tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("FlatTreeView: tree is null");
+        }
+        final Holder holder = holder(tree);
+        final Node[] nodes = tree.getNodesAsArray();
+        final FlatTreeView current = holder.view;
+        if (current != null && !holder.changed && holder.nodes.get() == nodes && tree.getState() != null
+                && current.mapping.matches(tree)) {
+            return current;
+        }
+        return refresh(holder, tree, nodes, current);
+    }
+
+    /**
+     * Report that the tree may have changed since its view was built. Called by the view's owners from
+     * requiresRecalculation whenever the tree is dirty; the next of(tree) checks the view against the tree.
+     */
+    public static void treeChanged(final Tree tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("FlatTreeView: tree is null");
+        }
+        holder(tree).changed = true;
+    }
+
+    /** The current or previous view if one still describes the tree, otherwise a new one. */
+    private static FlatTreeView refresh(final Holder holder,
+                                        final Tree tree,
+                                        final Node[] nodes,
+                                        final FlatTreeView current) {
+        // cleared first, so that a change reported during the check is seen by the next call
+        holder.changed = false;
+        final FlatTreeView previous = holder.previous;
+        final FlatTreeView view;
+        if (current != null && current.describes(tree)) {
+            view = current;
+        } else if (previous != null && previous.describes(tree)) {
+            view = previous;
+        } else {
+            final BranchRateIndexHelper.Mapping mapping = current != null && current.mapping.matches(tree)
+                    ? current.mapping : BranchRateIndexHelper.build(tree, holder.layout);
+            view = new FlatTreeView(LAST_VERSION.incrementAndGet(), mapping, tree, current);
+        }
+        if (view != current) {
+            holder.previous = current;
+            holder.view = view;
+        }
+        if (holder.nodes.get() != nodes) {
+            holder.nodes = new WeakReference<>(nodes);
+        }
+        return view;
+    }
+
+    private static Holder holder(final Tree tree) {
+        final Holder last = lastHolder;
+        if (last != null && last.key.get() == tree) {
+            return last;
+        }
+        Reference<? extends Tree> collected;
+        while ((collected = COLLECTED.poll()) != null) {
+            HOLDERS.remove(collected);
+        }
+        Holder holder = HOLDERS.get(new TreeKey(tree, null));
+        if (holder == null) {
+            holder = HOLDERS.computeIfAbsent(new TreeKey(tree, COLLECTED), Holder::new);
+        }
+        lastHolder = holder;
+        return holder;
+    }
+
+    /**
+     * Select the rate layout of a tree; layout null leaves it as it is. Components of the same tree must not ask for
+     * different layouts. A mapping handed out under the previous layout stops matching the tree, so its holders
+     * fetch the new one on their next mapping check.
+     */
+    public static void useRateLayout(final Tree tree,
+                                     final BranchRateIndexHelper.Layout layout,
+                                     final String ownerName) {
+        if (tree == null) {
+            throw new IllegalArgumentException(ownerName + ": tree is null");
+        }
+        if (layout == null) {
+            return;
+        }
+        final Holder holder = holder(tree);
+        synchronized (holder) {
+            if (holder.layoutChosen && holder.layout != layout) {
+                throw new IllegalArgumentException(ownerName + ": rateLayout " + layout.getXmlName()
+                        + " conflicts with rateLayout " + holder.layout.getXmlName()
+                        + " chosen for the same tree elsewhere.");
+            }
+            holder.layout = layout;
+            holder.layoutChosen = true;
+
+            final FlatTreeView view = holder.view;
+            if (view != null && view.mapping.getLayout() != layout) {
+                view.mapping.retire();
+                holder.view = null;
+                holder.previous = null;
+            }
+        }
+    }
+
+    /** The view and rate layout of one tree. */
+    private static final class Holder {
+
+        final TreeKey key;
+        volatile FlatTreeView view;
+        // the view replaced last, usually the state a rejected proposal returns to
+        volatile FlatTreeView previous;
+        // the tree's node array when the view was last checked, and whether an owner reported a change since
+        volatile WeakReference<Node[]> nodes = new WeakReference<>(null);
+        volatile boolean changed;
+        volatile BranchRateIndexHelper.Layout layout = BranchRateIndexHelper.Layout.NODE_NR;
+        boolean layoutChosen;
+
+        Holder(final TreeKey key) {
+            this.key = key;
+        }
+    }
+
+    /** Weak, identity-based map key; a key without a queue only serves lookups. */
+    private static final class TreeKey extends WeakReference<Tree> {
+
+        private final int hash;
+
+        TreeKey(final Tree tree, final ReferenceQueue<Tree> queue) {
+            super(tree, queue);
+            hash = System.identityHashCode(tree);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TreeKey)) {
+                return false;
+            }
+            final Tree tree = get();
+            return tree != null && tree == ((TreeKey) o).get();
+        }
+    }
+
+    private FlatTreeView(final long version,
+                         final BranchRateIndexHelper.Mapping mapping,
+                         final Tree tree,
+                         final FlatTreeView previous) {
+        this.version = version;
+        this.mapping = mapping;
+        nodeCount = tree.getNodeCount();
+        rootNr = tree.getRoot().getNr();
+
+        parent = new int[nodeCount];
+        childOffset = new int[nodeCount + 1];
+        children = new int[Math.max(nodeCount - 1, 0)];
+        branchLength = new double[nodeCount];
+        for (int nr = 0; nr < nodeCount; nr++) {
+            final Node node = tree.getNode(nr);
+            final Node p = node.getParent();
+            parent[nr] = p == null ? -1 : p.getNr();
+            branchLength[nr] = p == null ? 0.0 : node.getLength();
+
+            final int childCount = node.getChildCount();
+            childOffset[nr + 1] = childOffset[nr] + childCount;
+            for (int c = 0; c < childCount; c++) {
+                children[childOffset[nr] + c] = node.getChild(c).getNr();
+            }
+        }
+        topologyVersion = previous != null && previous.rootNr == rootNr && Arrays.equals(previous.parent, parent)
+                && Arrays.equals(previous.childOffset, childOffset) && Arrays.equals(previous.children, children)
+                ? previous.topologyVersion : version;
+
+        // preorder with children left to right; the subtree of a node is contiguous from its position on
+        preorder = new int[nodeCount];
+        preorderIndex = new int[nodeCount];
+        final int[] stack = new int[nodeCount];
+        int top = 0;
+        int k = 0;
+        stack[top++] = rootNr;
+        while (top > 0) {
+            final int nr = stack[--top];
+            preorderIndex[nr] = k;
+            preorder[k++] = nr;
+            for (int c = childOffset[nr + 1] - 1; c >= childOffset[nr]; c--) {
+                stack[top++] = children[c];
+            }
+        }
+
+        // postorder with children left to right: reverse of a preorder that visits children right to left
+        postorder = new int[nodeCount];
+        k = nodeCount;
+        stack[top++] = rootNr;
+        while (top > 0) {
+            final int nr = stack[--top];
+            postorder[--k] = nr;
+            for (int c = childOffset[nr]; c < childOffset[nr + 1]; c++) {
+                stack[top++] = children[c];
+            }
+        }
+
+        subtreeSize = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            final int nr = postorder[i];
+            int size = 1;
+            for (int c = childOffset[nr]; c < childOffset[nr + 1]; c++) {
+                size += subtreeSize[children[c]];
+            }
+            subtreeSize[nr] = size;
+        }
+
+        // filled here rather than on first use, so that the view is immutable once published
+        logBranchLength = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            logBranchLength[i] = Math.log(branchLength[i]);
+        }
+
+        // rateRunEnd[i]: last preorder position j such that the rate indices at positions i..j count up by one
+        rateRunEnd = new int[nodeCount];
+        rateRunEnd[nodeCount - 1] = nodeCount - 1;
+        for (int i = nodeCount - 2; i >= 0; i--) {
+            final int idx = mapping.idxForNodeNr(preorder[i]);
+            rateRunEnd[i] = mapping.idxForNodeNr(preorder[i + 1]) == idx + 1 ? rateRunEnd[i + 1] : i;
+        }
+    }
+
+    /** True if the tree has this view's shape and branch lengths and the view's mapping is still the tree's. */
+    private boolean describes(final Tree tree) {
+        if (!mapping.matches(tree) || tree.getNodeCount() != nodeCount || tree.getRoot().getNr() != rootNr) {
+            return false;
+        }
+        for (int nr = 0; nr < nodeCount; nr++) {
+            final Node node = tree.getNode(nr);
+            final Node p = node.getParent();
+            if ((p == null ? -1 : p.getNr()) != parent[nr] || (p != null && node.getLength() != branchLength[nr])) {
+                return false;
+            }
+            final int childCount = node.getChildCount();
+            if (childCount != childOffset[nr + 1] - childOffset[nr]) {
+                return false;
+            }
+            for (int c = 0; c < childCount; c++) {
+                if (node.getChild(c).getNr() != children[childOffset[nr] + c]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /** Version of the view's shape (root, parents, children in order); unchanged by height-only changes. */
+    public long getTopologyVersion() {
+        return topologyVersion;
+    }
+
+    public BranchRateIndexHelper.Mapping getMapping() {
+        return mapping;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    public int getPreorderNr(final int i) {
+        return preorder[i];
+    }
+
+    public int getPostorderNr(final int i) {
+        return postorder[i];
+    }
+
+    public int getPreorderIndex(final int nr) {
+        return preorderIndex[nr];
+    }
+
+    public int getSubtreeSize(final int nr) {
+        return subtreeSize[nr];
+    }
+
+    public int getParentNr(final int nr) {
+        return parent[nr];
+    }
+
+    public int getChildCount(final int nr) {
+        return childOffset[nr + 1] - childOffset[nr];
+    }
+
+    public int getChildNr(final int nr, final int i) {
+        return children[childOffset[nr] + i];
+    }
+
+    public double getBranchLength(final int nr) {
+        return branchLength[nr];
+    }
+
+    /** log of the branch length above nr (-Infinity at the root). */
+    public double getLogBranchLength(final int nr) {
+        return logBranchLength[nr];
+    }
+
+    /**
+     * First rate index of the subtree below nr (the edge above nr included unless nr is the root) if its rates are
+     * the contiguous range [start, start + edge count) in preorder, or -1 if they are spread over the vector.
+     * Always contiguous under the preorder layout until a topology change breaks the subtree up.
+     */
+    public int getRateSliceStart(final int nr) {
+        final int from = nr == rootNr ? preorderIndex[nr] + 1 : preorderIndex[nr];
+        final int to = preorderIndex[nr] + subtreeSize[nr];
+        if (from >= to) {
+            return -1;
+        }
+        return rateRunEnd[from] >= to - 1 ? mapping.idxForNodeNr(preorder[from]) : -1;
+    }
+}
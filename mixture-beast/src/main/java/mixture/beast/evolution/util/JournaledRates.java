@@ -0,0 +1,24 @@
+package mixture.beast.evolution.util;
+
+/**
+ * Rate parameter that lists the indices changed since its dirty flags were last cleared and writes a batch of rates
+ * as one edit. RateAccessor uses the batch writes; the clocks and the prior read the change list instead of
+ * scanning every dirty flag. Implemented by mixture.JournaledRealParameter.
+ */
+public interface JournaledRates {
+
+    /** True if getChangedIndex lists every index whose dirty flag is set. */
+    boolean hasCompleteChangeList();
+
+    /** Number of indices with their dirty flag set; only meaningful if hasCompleteChangeList(). */
+    int getChangedCount();
+
+    /** k-th index with its dirty flag set, in the order the indices were first changed. */
+    int getChangedIndex(int k);
+
+    /** setValue(i, source[i]) for from <= i < to as one edit; source is indexed like the parameter. */
+    void setValues(int from, int to, double[] source);
+
+    /** setValue(indices[k], source[indices[k]]) for k < count as one edit; source is indexed like the parameter. */
+    void setValues(int[] indices, int count, double[] source);
+}
@@ -0,0 +1,139 @@
+package mixture.beast.evolution.util;
+
+/**
+ * Bulk loops over contiguous double[] log-rates, shared by the UC prior rebuild and the UC/AC operators:
+ *
+ *   toLogRates      stored values to log-rates, NaN for invalid entries; toStoredValues goes back
+ *   affine          out = a * x + b, the UC map between log-rates and standardised values
+ *   sum*            reductions, optionally skipping NaN entries
+ *   allFinite       validity check of proposed log-rates
+ *
+ * Loops have no calls and no data-dependent exits in the body, and the reductions keep four partial sums, so the
+ * JIT can unroll and vectorise them; callers gather the rates into an array once instead of going through an
+ * accessor per element. Results may differ from a single running sum in the last bits.
+ */
+public final class LogRateKernels {
+
+    private LogRateKernels() {
+        // utility class
+    }
+
+    /**
+     * xOut[i] for i < n: values[i] itself if the vector holds log-rates, log(values[i]) otherwise; NaN for a
+     * non-finite log-rate or a non-positive or infinite rate. xOut may be values.
+     *
+     * @return number of NaN entries written
+     */
+    public static int toLogRates(final double[] values, final double[] xOut, final int n, final boolean logRates) {
+        int invalid = 0;
+        if (logRates) {
+            for (int i = 0; i < n; i++) {
+                final double v = values[i];
+                final double x = v - v == 0.0 ? v : Double.NaN;
+                xOut[i] = x;
+                invalid += x != x ? 1 : 0;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                final double v = values[i];
+                final double x = v > 0.0 && v < Double.POSITIVE_INFINITY ? Math.log(v) : Double.NaN;
+                xOut[i] = x;
+                invalid += x != x ? 1 : 0;
+            }
+        }
+        return invalid;
+    }
+
+    /** Inverse of toLogRates in place for from <= i < to: exp(x[i]) unless the vector holds log-rates. */
+    public static void toStoredValues(final double[] x, final int from, final int to, final boolean logRates) {
+        if (logRates) {
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            x[i] = Math.exp(x[i]);
+        }
+    }
+
+    /** out[i] = a * x[i] + b for i < n; out may be x. */
+    public static void affine(final double[] x, final double[] out, final int n, final double a, final double b) {
+        for (int i = 0; i < n; i++) {
+            out[i] = a * x[i] + b;
+        }
+    }
+
+    /** Sum of x[i] - y[i] for i < n. */
+    public static double sumDifference(final double[] x, final double[] y, final int n) {
+        double s0 = 0.0;
+        double s1 = 0.0;
+        double s2 = 0.0;
+        double s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += x[i] - y[i];
+            s1 += x[i + 1] - y[i + 1];
+            s2 += x[i + 2] - y[i + 2];
+            s3 += x[i + 3] - y[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += x[i] - y[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Sum of the non-NaN x[i] for i < n. */
+    public static double sumIgnoringNaN(final double[] x, final int n) {
+        double s0 = 0.0;
+        double s1 = 0.0;
+        double s2 = 0.0;
+        double s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += orZero(x[i]);
+            s1 += orZero(x[i + 1]);
+            s2 += orZero(x[i + 2]);
+            s3 += orZero(x[i + 3]);
+        }
+        for (; i < n; i++) {
+            s0 += orZero(x[i]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Sum of the squares of the non-NaN x[i] for i < n. */
+    public static double sumSquaresIgnoringNaN(final double[] x, final int n) {
+        double s0 = 0.0;
+        double s1 = 0.0;
+        double s2 = 0.0;
+        double s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            final double x0 = orZero(x[i]);
+            final double x1 = orZero(x[i + 1]);
+            final double x2 = orZero(x[i + 2]);
+            final double x3 = orZero(x[i + 3]);
+            s0 += x0 * x0;
+            s1 += x1 * x1;
+            s2 += x2 * x2;
+            s3 += x3 * x3;
+        }
+        for (; i < n; i++) {
+            final double xi = orZero(x[i]);
+            s0 += xi * xi;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** True if every x[i] for i < n is finite. */
+    public static boolean allFinite(final double[] x, final int n) {
+        // x - x is 0 for finite x and NaN otherwise, so one NaN check covers the whole array
+        double acc = 0.0;
+        for (int i = 0; i < n; i++) {
+            acc += x[i] - x[i];
+        }
+        return acc == 0.0;
+    }
+
+    private static double orZero(final double x) {
+        return x == x ? x : 0.0;
+    }
+}
@@ -0,0 +1,217 @@
+package mixture.beast.evolution.util;
+
+import beast.base.inference.Operator;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.spec.type.RealVector;
+
+/**
+ * Element access to a shared rate vector, chosen once in initAndValidate instead of testing legacy vs typed input on
+ * every element:
+ *
+ *   of(RealParameter)         legacy parameter, with batched writes if it implements JournaledRates
+ *   of(RealVectorParam)       typed mutable vector
+ *   of(RealVector, size)      typed vector for reading only; a size-1 vector is broadcast to size elements
+ *
+ * Only the first two return a Writable, the accessor operators hold: a vector the model may read but not change
+ * never reaches an operator, so no write can fail during the run. Each class holds a single final accessor, so the
+ * get/set calls in its loops see one receiver type. Resolve it after the dimension has been validated or expanded:
+ * the broadcast choice is made from the size at that point.
+ *
+ * setRange and setIndices write many rates as one edit. On JournaledRates that is one startEditing for the
+ * whole batch, and the written indices join its change list for the clocks and the prior; elsewhere they fall back
+ * to set per element.
+ */
+public interface RateAccessor {
+
+    int size();
+
+    double get(int i);
+
+    /** Read and write access, for the operators that change the rates. */
+    interface Writable extends RateAccessor {
+
+        void set(int i, double value);
+
+        /** Start an edit of the whole vector on behalf of operator; a no-op for typed vectors. */
+        void startEditing(Operator operator);
+
+        /** set(i, values[i]) for from <= i < to; values is indexed by rate index. */
+        default void setRange(final int from, final int to, final double[] values) {
+            for (int i = from; i < to; i++) {
+                set(i, values[i]);
+            }
+        }
+
+        /** set(indices[k], values[indices[k]]) for k < count; values is indexed by rate index. */
+        default void setIndices(final int[] indices, final int count, final double[] values) {
+            for (int k = 0; k < count; k++) {
+                set(indices[k], values[indices[k]]);
+            }
+        }
+    }
+
+    static Writable of(final RealParameter rates) {
+        if (rates == null) {
+            throw new IllegalArgumentException("RateAccessor: rates is null");
+        }
+        if (rates instanceof JournaledRates) {
+            return new Journaled(rates, (JournaledRates) rates);
+        }
+        return new Legacy(rates);
+    }
+
+    static Writable of(final RealVectorParam<?> rates) {
+        if (rates == null) {
+            throw new IllegalArgumentException("RateAccessor: rates is null");
+        }
+        return new Typed(rates);
+    }
+
+    static RateAccessor of(final RealVector rates, final int size) {
+        if (rates == null) {
+            throw new IllegalArgumentException("RateAccessor: rates is null");
+        }
+        if (rates.size() == 1 && size > 1) {
+            return new Broadcast(rates, size);
+        }
+        if (rates instanceof RealVectorParam<?>) {
+            return new Typed((RealVectorParam<?>) rates);
+        }
+        return new ReadOnly(rates);
+    }
+
+    final class Legacy implements Writable {
+        private final RealParameter rates;
+
+        private Legacy(final RealParameter rates) {
+            this.rates = rates;
+        }
+
+        @Override
+        public int size() {
+            return rates.getDimension();
+        }
+
+        @Override
+        public double get(final int i) {
+            return rates.getArrayValue(i);
+        }
+
+        @Override
+        public void set(final int i, final double value) {
+            rates.setValue(i, value);
+        }
+
+        @Override
+        public void startEditing(final Operator operator) {
+            rates.startEditing(operator);
+        }
+
+    }
+
+    final class Journaled implements Writable {
+        private final RealParameter rates;
+        private final JournaledRates batch;
+
+        private Journaled(final RealParameter rates, final JournaledRates batch) {
+            this.rates = rates;
+            this.batch = batch;
+        }
+
+        @Override
+        public int size() {
+            return rates.getDimension();
+        }
+
+        @Override
+        public double get(final int i) {
+            return rates.getArrayValue(i);
+        }
+
+        @Override
+        public void set(final int i, final double value) {
+            rates.setValue(i, value);
+        }
+
+        @Override
+        public void startEditing(final Operator operator) {
+            rates.startEditing(operator);
+        }
+
+        @Override
+        public void setRange(final int from, final int to, final double[] values) {
+            batch.setValues(from, to, values);
+        }
+
+        @Override
+        public void setIndices(final int[] indices, final int count, final double[] values) {
+            batch.setValues(indices, count, values);
+        }
+    }
+
+    final class Typed implements Writable {
+        private final RealVectorParam<?> rates;
+
+        private Typed(final RealVectorParam<?> rates) {
+            this.rates = rates;
+        }
+
+        @Override
+        public int size() {
+            return rates.size();
+        }
+
+        @Override
+        public double get(final int i) {
+            return rates.get(i);
+        }
+
+        @Override
+        public void set(final int i, final double value) {
+            rates.set(i, value);
+        }
+
+        @Override
+        public void startEditing(final Operator operator) {
+        }
+    }
+
+    final class ReadOnly implements RateAccessor {
+        private final RealVector rates;
+
+        private ReadOnly(final RealVector rates) {
+            this.rates = rates;
+        }
+
+        @Override
+        public int size() {
+            return rates.size();
+        }
+
+        @Override
+        public double get(final int i) {
+            return rates.get(i);
+        }
+    }
+
+    final class Broadcast implements RateAccessor {
+        private final RealVector rates;
+        private final int size;
+
+        private Broadcast(final RealVector rates, final int size) {
+            this.rates = rates;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public double get(final int i) {
+            return rates.get(0);
+        }
+    }
+}
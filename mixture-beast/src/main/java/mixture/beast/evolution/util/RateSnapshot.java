@@ -0,0 +1,40 @@
+package mixture.beast.evolution.util;
+
+/**
+ * View of a clock's effective branch rates for one state:
+ *
+ *   node nr -> rate used by the likelihood (1.0 at the root)
+ *
+ * A clock publishes a new snapshot through a volatile field in requiresRecalculation, once per state change, and
+ * answers getRateForBranch from it, so likelihood threads read the rates of the current state without locks.
+ * Versions increase with every state change; a restored state gets its previous snapshot back.
+ *
+ * The rates are indexed by node nr, so no branch -> rate-index mapping is needed to read them. Every publication
+ * fills a new array, so a snapshot never changes once published and a reader may hold it for as long as it likes.
+ */
+public final class RateSnapshot {
+
+    private final long version;
+    private final double[] rates;
+
+    /** Takes ownership of rates; the caller must not modify the array afterwards. */
+    public RateSnapshot(final long version, final double[] rates) {
+        if (rates == null) {
+            throw new IllegalArgumentException("RateSnapshot: rates is null");
+        }
+        this.version = version;
+        this.rates = rates;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getNodeCount() {
+        return rates.length;
+    }
+
+    public double getRate(final int nodeNr) {
+        return rates[nodeNr];
+    }
+}
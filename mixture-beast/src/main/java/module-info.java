@@ -8,7 +8,9 @@ open module mixture.beast {
 
     provides beast.base.core.BEASTInterface with
         mixture.beast.evolution.mixture.CategoricalDistribution,
+        mixture.beast.evolution.mixture.FusedMixtureLikelihood,
         mixture.beast.evolution.mixture.HierarchicalSVSLogger,
+        mixture.beast.evolution.mixture.JournaledRealParameter,
         mixture.beast.evolution.mixture.MixtureLikelihoodLogger,
         mixture.beast.evolution.mixture.MixtureTreeLikelihood,
         mixture.beast.evolution.mixture.RelaxedRatesPriorSVS,
@@ -18,6 +20,7 @@ open module mixture.beast {
         mixture.beast.evolution.operator.ACSubtreeUIncrementOperator,
         mixture.beast.evolution.operator.AlphaAnnealingOperator,
         mixture.beast.evolution.operator.IndicatorGibbsOperator,
+        mixture.beast.evolution.operator.MixtureAllocationOperator,
         mixture.beast.evolution.operator.SingleRateScaleOperator,
         mixture.beast.evolution.operator.SubtreeRateScaleOperator,
         mixture.beast.evolution.operator.UCACSwitchBridgeOperator,
@@ -0,0 +1,426 @@
+package mixture.beast.evolution.mixture;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import mixture.beast.evolution.operator.MixtureAllocationOperator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class FusedMixtureLikelihoodTest {
+
+    private static final double EPS = 1.0e-8;
+    private static final String NEWICK = "(((A:0.3,B:0.2):0.4,C:0.6):0.2,(D:0.5,E:0.1):0.7);";
+
+    @Test
+    public void componentLogLMatchesIndependentTreeLikelihoods() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), fused.getComponentLogL(0), EPS);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r2)), fused.getComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void invariantSitesMatchTreeLikelihood() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.7");
+        final RealParameter r2 = new RealParameter("1.3");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.25"), clock(r1), clock(r2));
+
+        assertEquals(reference(data, tree, siteModel("0.25"), clock(r1)), fused.getComponentLogL(0), EPS);
+        assertEquals(reference(data, tree, siteModel("0.25"), clock(r2)), fused.getComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void mixtureOverFusedEngineMatchesMixtureOverSubLikelihoods() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+
+        final MixtureTreeLikelihood separate = new MixtureTreeLikelihood();
+        separate.subLikelihoodsInput.get().add(treeLikelihood(data, tree, siteModel("0.0"), clock(r1)));
+        separate.subLikelihoodsInput.get().add(treeLikelihood(data, tree, siteModel("0.0"), clock(r2)));
+        separate.weightsInput.setValue(new RealParameter("0.3 0.7"), separate);
+        separate.initAndValidate();
+
+        final MixtureTreeLikelihood mix = fusedMixture(fused(data, tree, siteModel("0.0"), clock(r1), clock(r2)));
+
+        assertEquals(2, mix.getComponentCount());
+        assertEquals(separate.calculateLogP(), mix.calculateLogP(), EPS);
+        assertEquals(separate.getLastResponsibility(0), mix.getLastResponsibility(0), EPS);
+    }
+
+    @Test
+    public void clockMoveOnlyRecomputesThatComponentAndRejectRestores() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        r1.setID("r1");
+        r2.setID("r2");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = fusedMixture(fused);
+        final State state = state(mix, r1, r2);
+
+        final double before = mix.calculateLogP();
+        final double logL2 = fused.getComponentLogL(1);
+
+        state.store(0);
+        r1.setValue(0.8);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        assertTrue(fused.isComponentDirty(0));
+        assertFalse(fused.isComponentDirty(1));
+        mix.calculateLogP();
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(new RealParameter("0.8"))),
+                fused.getComponentLogL(0), EPS);
+        assertEquals(logL2, fused.getComponentLogL(1), 0.0);
+
+        state.restore();
+        state.restoreCalculationNodes();
+        state.setEverythingDirty(false);
+
+        assertEquals(before, mix.calculateLogP(), 0.0);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), fused.getComponentLogL(0), EPS);
+    }
+
+    @Test
+    public void treeMoveRecomputesAllComponents() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = fusedMixture(fused);
+        final State state = state(mix, tree);
+
+        mix.calculateLogP();
+
+        state.store(0);
+        final double height = tree.getRoot().getLeft().getHeight();
+        tree.getRoot().getLeft().setHeight(height + 0.05);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        mix.calculateLogP();
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), fused.getComponentLogL(0), EPS);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r2)), fused.getComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void patternBlocksOnSharedPoolMatchSequentialEngine() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final MixtureTreeLikelihood sequential = fusedMixture(fused(data, tree, siteModel("0.25"), clock(r1), clock(r2)));
+        final MixtureTreeLikelihood blocked = blockedMixture(
+                fused(data, tree, siteModel("0.25"), clock(r1), clock(r2)), 3, 4);
+
+        assertEquals(sequential.calculateLogP(), blocked.calculateLogP(), EPS);
+        assertEquals(sequential.getLastComponentLogL(0), blocked.getLastComponentLogL(0), EPS);
+        assertEquals(sequential.getLastComponentLogL(1), blocked.getLastComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void patternBlocksFollowIncrementalUpdates() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        r1.setID("r1");
+        r2.setID("r2");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = blockedMixture(fused, 2, 5);
+        final State state = state(mix, r1, r2);
+
+        mix.calculateLogP();
+        state.store(0);
+        r2.setValue(1.5);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        mix.calculateLogP();
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), fused.getComponentLogL(0), EPS);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(new RealParameter("1.5"))),
+                fused.getComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void shutDownPoolFallsBackToSequentialBlocks() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = fusedMixture(fused);
+        final ExecutorService exec = Executors.newFixedThreadPool(2);
+        exec.shutdown();
+        mix.setExecutor(exec);
+
+        mix.calculateLogP();
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), fused.getComponentLogL(0), EPS);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r2)), fused.getComponentLogL(1), EPS);
+    }
+
+    @Test
+    public void allocationEvaluatesOnlyTheAllocatedComponent() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = allocatedMixture(fused, new IntegerParameter("1"));
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r2)), mix.calculateLogP(), EPS);
+        assertTrue(fused.isComponentDirty(0));
+        assertTrue(Double.isNaN(mix.getLastResponsibility(0)));
+    }
+
+    @Test
+    public void completedAllocationReportsRaoBlackwellisedResponsibilities() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final MixtureTreeLikelihood marginal = fusedMixture(fused(data, tree, siteModel("0.0"), clock(r1), clock(r2)));
+        final MixtureTreeLikelihood mix = allocatedMixture(
+                fused(data, tree, siteModel("0.0"), clock(r1), clock(r2)), new IntegerParameter("0"));
+
+        final double logMix = marginal.calculateLogP();
+        mix.calculateLogP();
+        mix.completeLastEvaluation();
+
+        assertEquals(logMix, mix.getLastLogMix(), EPS);
+        assertEquals(marginal.getLastResponsibility(0), mix.getLastResponsibility(0), EPS);
+        assertEquals(marginal.getLastResponsibility(1), mix.getLastResponsibility(1), EPS);
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r1)), mix.getCurrentLogP(), EPS);
+    }
+
+    @Test
+    public void allocationLoggerCompletesTheEvaluationOnlyWhenAskedTo() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final MixtureTreeLikelihood marginal = fusedMixture(fused(data, tree, siteModel("0.0"), clock(r1), clock(r2)));
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = allocatedMixture(fused, new IntegerParameter("0"));
+        marginal.calculateLogP();
+        mix.calculateLogP();
+
+        final MixtureLikelihoodLogger readOnly = new MixtureLikelihoodLogger();
+        readOnly.initByName("mixture", mix);
+        readOnly.log(0L, new PrintStream(new ByteArrayOutputStream()));
+
+        assertTrue(fused.isComponentDirty(1));
+        assertTrue(Double.isNaN(mix.getLastResponsibility(1)));
+
+        final MixtureLikelihoodLogger completing = new MixtureLikelihoodLogger();
+        completing.initByName("mixture", mix, "completeAllocation", true);
+        completing.log(0L, new PrintStream(new ByteArrayOutputStream()));
+
+        assertFalse(fused.isComponentDirty(1));
+        assertEquals(marginal.getLastResponsibility(1), mix.getLastResponsibility(1), EPS);
+    }
+
+    @Test
+    public void componentSkippedThroughAcceptedTreeMoveIsRecomputedWhenAllocated() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final IntegerParameter z = new IntegerParameter("0");
+        z.setID("z");
+        final FusedMixtureLikelihood fused = fused(data, tree, siteModel("0.0"), clock(r1), clock(r2));
+        final MixtureTreeLikelihood mix = allocatedMixture(fused, z);
+        final State state = state(mix, tree, z);
+        final MixtureAllocationOperator operator = new MixtureAllocationOperator();
+        operator.initByName("allocation", z, "mixture", mix, "weight", 1.0);
+
+        mix.calculateLogP();
+        mix.completeLastEvaluation();
+
+        // tree move while component 1 sits out, accepted
+        state.store(0);
+        final double height = tree.getRoot().getLeft().getHeight();
+        tree.getRoot().getLeft().setHeight(height + 0.05);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        mix.calculateLogP();
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+
+        // allocation move to component 1 on the new tree
+        state.store(1);
+        assertEquals(0.0, operator.proposal(), 0.0);
+        assertEquals(1, (int) z.getValue());
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+
+        assertEquals(reference(data, tree, siteModel("0.0"), clock(r2)), mix.calculateLogP(), EPS);
+    }
+
+    @Test
+    public void allocationRequiresFusedLikelihood() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        mix.subLikelihoodsInput.get().add(treeLikelihood(data, tree, siteModel("0.0"), clock(new RealParameter("0.5"))));
+        mix.subLikelihoodsInput.get().add(treeLikelihood(data, tree, siteModel("0.0"), clock(new RealParameter("2.0"))));
+        mix.weightsInput.setValue(new RealParameter("0.5 0.5"), mix);
+        mix.allocationInput.setValue(new IntegerParameter("0"), mix);
+
+        assertThrows(IllegalArgumentException.class, mix::initAndValidate);
+    }
+
+    @Test
+    public void mixtureRejectsBothSubLikelihoodsAndFusedLikelihood() {
+        final Alignment data = alignment();
+        final Tree tree = tree(data);
+        final RealParameter r1 = new RealParameter("0.5");
+        final RealParameter r2 = new RealParameter("2.0");
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        mix.fusedLikelihoodInput.setValue(fused(data, tree, siteModel("0.0"), clock(r1), clock(r2)), mix);
+        mix.subLikelihoodsInput.get().add(treeLikelihood(data, tree, siteModel("0.0"), clock(r1)));
+        mix.weightsInput.setValue(new RealParameter("0.5 0.5"), mix);
+
+        assertThrows(IllegalArgumentException.class, mix::initAndValidate);
+    }
+
+    private static Alignment alignment() {
+        final Alignment data = new Alignment();
+        data.initByName(
+                "sequence", List.of(
+                        sequence("A", "ACGTTACGGA-CTTAGCA"),
+                        sequence("B", "ACGTTACGCAACTTAGCA"),
+                        sequence("C", "ACGATACGCAACTGAGCA"),
+                        sequence("D", "TCGATCCGCARCTGAGCA"),
+                        sequence("E", "TCGATCCGTAACTGCGCA")),
+                "dataType", "nucleotide");
+        return data;
+    }
+
+    private static Sequence sequence(final String taxon, final String value) {
+        final Sequence sequence = new Sequence();
+        sequence.initByName("taxon", taxon, "value", value);
+        return sequence;
+    }
+
+    private static Tree tree(final Alignment data) {
+        final TreeParser tree = new TreeParser();
+        tree.initByName("taxa", data, "newick", NEWICK, "IsLabelledNewick", true);
+        return tree;
+    }
+
+    private static SiteModel siteModel(final String proportionInvariant) {
+        final Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", new RealParameter("0.1 0.2 0.3 0.4"), "estimate", false);
+        final HKY hky = new HKY();
+        hky.initByName("kappa", new RealParameter("2.5"), "frequencies", frequencies);
+        final SiteModel siteModel = new SiteModel();
+        siteModel.initByName(
+                "gammaCategoryCount", 4,
+                "shape", new RealParameter("0.5"),
+                "proportionInvariant", new RealParameter(proportionInvariant),
+                "substModel", hky);
+        return siteModel;
+    }
+
+    private static StrictClockModel clock(final RealParameter rate) {
+        final StrictClockModel clock = new StrictClockModel();
+        clock.initByName("clock.rate", rate);
+        return clock;
+    }
+
+    private static FusedMixtureLikelihood fused(final Alignment data,
+                                                final Tree tree,
+                                                final SiteModel siteModel,
+                                                final StrictClockModel... clocks) {
+        final FusedMixtureLikelihood fused = new FusedMixtureLikelihood();
+        fused.initByName("data", data, "tree", tree, "siteModel", siteModel, "branchRateModel", List.of(clocks));
+        return fused;
+    }
+
+    private static MixtureTreeLikelihood fusedMixture(final FusedMixtureLikelihood fused) {
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        mix.fusedLikelihoodInput.setValue(fused, mix);
+        mix.weightsInput.setValue(new RealParameter("0.3 0.7"), mix);
+        mix.initAndValidate();
+        return mix;
+    }
+
+    private static MixtureTreeLikelihood allocatedMixture(final FusedMixtureLikelihood fused,
+                                                          final IntegerParameter allocation) {
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        mix.fusedLikelihoodInput.setValue(fused, mix);
+        mix.weightsInput.setValue(new RealParameter("0.3 0.7"), mix);
+        mix.allocationInput.setValue(allocation, mix);
+        mix.initAndValidate();
+        return mix;
+    }
+
+    private static MixtureTreeLikelihood blockedMixture(final FusedMixtureLikelihood fused,
+                                                        final int threads,
+                                                        final int blocks) {
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        mix.fusedLikelihoodInput.setValue(fused, mix);
+        mix.weightsInput.setValue(new RealParameter("0.3 0.7"), mix);
+        mix.parallelComponentsInput.setValue(true, mix);
+        mix.threadsInput.setValue(threads, mix);
+        mix.patternBlocksInput.setValue(blocks, mix);
+        mix.initAndValidate();
+        return mix;
+    }
+
+    private static TreeLikelihood treeLikelihood(final Alignment data,
+                                                 final Tree tree,
+                                                 final SiteModel siteModel,
+                                                 final StrictClockModel clock) {
+        final TreeLikelihood likelihood = new TreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "branchRateModel", clock);
+        return likelihood;
+    }
+
+    private static double reference(final Alignment data,
+                                    final Tree tree,
+                                    final SiteModel siteModel,
+                                    final StrictClockModel clock) {
+        return treeLikelihood(data, tree, siteModel, clock).calculateLogP();
+    }
+
+    private static State state(final MixtureTreeLikelihood mix, final beast.base.inference.StateNode... nodes) {
+        final State state = new State();
+        state.initByName("stateNode", List.of(nodes));
+        state.initialise();
+        state.setPosterior(mix);
+        return state;
+    }
+}
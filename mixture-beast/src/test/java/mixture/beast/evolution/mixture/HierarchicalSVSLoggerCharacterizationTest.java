@@ -36,6 +36,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
 
         assertArrayEquals(new String[]{"hier.pStrict", "hier.pRelaxUC", "hier.pRelaxAC"}, tokens(captureInit(logger)));
 
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final TopExpected topExpected = topExpected(new double[]{1.0 / 3.0, 2.0 / 3.0}, new double[]{-10.0, -12.0});
         final InnerExpected innerExpected = innerExpected(svs, new double[]{0.5, 0.5});
@@ -63,6 +64,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
                 "hier.rRelax"
         }, tokens(captureInit(logger)));
 
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final TopExpected expected = topExpected(new double[]{1.0 / 3.0, 2.0 / 3.0}, new double[]{-10.0, -12.0});
 
@@ -85,6 +87,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
 
         assertArrayEquals(new String[]{"hier.logPUC", "hier.logPAC"}, tokens(captureInit(logger)));
 
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
 
         assertEquals(svs.logPriorUCOnly(), parse(values[0]), EPS);
@@ -99,6 +102,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
         final HierarchicalSVSLogger logger = logger(top, svs, innerWeights, "hier");
         logger.initAndValidate();
 
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final TopExpected topExpected = topExpected(new double[]{1.0 / 3.0, 2.0 / 3.0}, new double[]{-10.0, -12.0});
         final InnerExpected innerExpected = innerExpected(svs, new double[]{0.25, 0.75});
@@ -128,6 +132,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
                 "hier.rb_relax_sigma2_den"
         }, tokens(captureInit(logger)));
 
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final TopExpected topExpected = topExpected(new double[]{1.0 / 3.0, 2.0 / 3.0}, new double[]{-10.0, -12.0});
         final InnerExpected innerExpected = innerExpected(svs, new double[]{0.25, 0.75});
@@ -155,6 +160,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
         logger.initAndValidate();
 
         final String[] header = tokens(captureInit(logger));
+        top.calculateLogP();
         final String[] values = tokens(captureLog(logger));
 
         assertEquals(11, header.length);
@@ -164,6 +170,28 @@ public class HierarchicalSVSLoggerCharacterizationTest {
         }
     }
 
+    @Test
+    public void logReadsTopMixtureAndSvsPriorFromLastEvaluation() {
+        final MixtureTreeLikelihood top = legacyMixture(new double[]{1.0 / 3.0, 2.0 / 3.0}, -10.0, -12.0);
+        final RelaxedRatesPriorSVS svs = legacySvsPrior(new IntegerParameter("0"));
+        final HierarchicalSVSLogger logger = logger(top, svs, null, "hier");
+        logger.printTopInput.setValue(true, logger);
+        logger.printInnerInput.setValue(true, logger);
+        logger.initAndValidate();
+
+        top.calculateLogP();
+        svs.calculateLogP();
+        final String[] first = tokens(captureLog(logger));
+        final String[] second = tokens(captureLog(logger));
+
+        assertArrayEquals(first, second);
+        for (final Object sub : top.subLikelihoodsInput.get()) {
+            assertEquals(1, ((ConstantLikelihood) sub).callCount);
+        }
+        assertEquals(svs.logPriorUCOnly(), parse(first[6]), EPS);
+        assertEquals(svs.logPriorACOnly(), parse(first[7]), EPS);
+    }
+
     @Test
     public void typedTopMixtureNowMatchesEquivalentLegacyTopMixture() {
         final MixtureTreeLikelihood legacyTop = legacyMixture(new double[]{1.0 / 3.0, 2.0 / 3.0}, -10.0, -12.0);
@@ -174,6 +202,8 @@ public class HierarchicalSVSLoggerCharacterizationTest {
                 "hier");
         legacyLogger.initAndValidate();
         typedLogger.initAndValidate();
+        legacyTop.calculateLogP();
+        typedTop.calculateLogP();
 
         assertArrayEquals(tokens(captureInit(legacyLogger)), tokens(captureInit(typedLogger)));
         assertArrayEquals(tokens(captureLog(legacyLogger)), tokens(captureLog(typedLogger)));
@@ -355,6 +385,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
 
     public static final class ConstantLikelihood extends GenericTreeLikelihood {
         private final double value;
+        private int callCount = 0;
 
         private ConstantLikelihood(final double value) {
             this.value = value;
@@ -367,6 +398,7 @@ public class HierarchicalSVSLoggerCharacterizationTest {
 
         @Override
         public double calculateLogP() {
+            callCount++;
             logP = value;
             return logP;
         }
@@ -164,6 +164,8 @@ public class HierarchicalSVSLoggerTypedSafeTest {
         typed.printRBStatsInput.setValue(true, typed);
         legacy.initAndValidate();
         typed.initAndValidate();
+        legacy.topMixtureInput.get().calculateLogP();
+        typed.topMixtureInput.get().calculateLogP();
 
         final String[] legacyHeader = tokens(captureInit(legacy));
         final String[] typedHeader = tokens(captureInit(typed));
@@ -324,6 +326,8 @@ public class HierarchicalSVSLoggerTypedSafeTest {
                                                  final HierarchicalSVSLogger typedLogger) {
         legacyLogger.initAndValidate();
         typedLogger.initAndValidate();
+        legacyLogger.topMixtureInput.get().calculateLogP();
+        typedLogger.topMixtureInput.get().calculateLogP();
         assertArrayEquals(tokens(captureInit(legacyLogger)), tokens(captureInit(typedLogger)));
         assertArrayEquals(tokens(captureLog(legacyLogger)), tokens(captureLog(typedLogger)));
     }
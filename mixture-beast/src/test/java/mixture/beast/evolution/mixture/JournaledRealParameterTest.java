@@ -0,0 +1,217 @@
+package mixture.beast.evolution.mixture;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournaledRealParameterTest {
+
+    private static final double EPS = 1.0e-10;
+    private static final String TREE_NEWICK = "(((A:1.0,B:1.0):1.5,C:2.5):1.0,(D:2.0,E:2.0):1.5);";
+    private static final String RATES = "0.8 1.1 1.4 0.9 1.2 0.7 1.0 1.3";
+
+    @Test
+    public void restoreUndoesTheChangedEntriesAndListsThem() {
+        final JournaledRealParameter rates = new JournaledRealParameter(RATES);
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates));
+        state.initialise();
+        state.setEverythingDirty(false);
+        final double[] before = values(rates);
+
+        state.store(0);
+        rates.setValue(5, 2.0);
+        rates.setValue(2, 3.0);
+        rates.setValue(5, 4.0);
+        rates.swap(0, 7);
+
+        assertTrue(rates.somethingIsDirty());
+        assertTrue(rates.hasCompleteChangeList());
+        assertEquals(4, rates.getChangedCount());
+        assertEquals(5, rates.getChangedIndex(0));
+        assertEquals(2, rates.getChangedIndex(1));
+        assertEquals(0, rates.getChangedIndex(2));
+        assertEquals(7, rates.getChangedIndex(3));
+
+        state.restore();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], rates.getValue(i), 0.0);
+        }
+        // as for RealParameter, the per-index flags survive restore until the step ends
+        assertFalse(rates.somethingIsDirty());
+        assertTrue(rates.isDirty(5));
+
+        state.setEverythingDirty(false);
+        for (int i = 0; i < before.length; i++) {
+            assertFalse(rates.isDirty(i));
+        }
+        assertEquals(0, rates.getChangedCount());
+    }
+
+    @Test
+    public void batchedWritesAreJournaledAndListedLikeSingleWrites() {
+        final JournaledRealParameter rates = new JournaledRealParameter(RATES);
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates));
+        state.initialise();
+        state.setEverythingDirty(false);
+        final double[] before = values(rates);
+
+        final double[] source = new double[before.length];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = 10.0 + i;
+        }
+        state.store(0);
+        rates.setValue(3, 2.0);
+        rates.setValues(2, 5, source);
+        rates.setValues(new int[]{7, 2}, 2, source);
+
+        assertTrue(rates.somethingIsDirty());
+        assertEquals(4, rates.getChangedCount());
+        assertEquals(3, rates.getChangedIndex(0));
+        assertEquals(2, rates.getChangedIndex(1));
+        assertEquals(4, rates.getChangedIndex(2));
+        assertEquals(7, rates.getChangedIndex(3));
+        for (final int i : new int[]{2, 3, 4, 7}) {
+            assertEquals(source[i], rates.getValue(i), 0.0);
+        }
+        assertEquals(before[5], rates.getValue(5), 0.0);
+
+        state.restore();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], rates.getValue(i), 0.0);
+        }
+    }
+
+    @Test
+    public void scaleIsJournaledAndStoredValuesFollowStore() {
+        final JournaledRealParameter rates = new JournaledRealParameter(RATES);
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates));
+        state.initialise();
+        state.setEverythingDirty(false);
+        final double[] before = values(rates);
+
+        state.store(0);
+        rates.scale(2.0);
+        assertTrue(rates.hasCompleteChangeList());
+        assertEquals(before.length, rates.getChangedCount());
+        for (int i = 0; i < before.length; i++) {
+            assertTrue(rates.isDirty(i));
+            assertEquals(2.0 * before[i], rates.getValue(i), EPS);
+            assertEquals(before[i], rates.getStoredValue(i), 0.0);
+        }
+        state.restore();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i], rates.getValue(i), 0.0);
+        }
+        state.setEverythingDirty(false);
+
+        // accepted: the next store() makes the new values the stored ones
+        state.store(1);
+        rates.setValue(3, 5.0);
+        state.setEverythingDirty(false);
+        state.store(2);
+        assertEquals(5.0, rates.getStoredValue(3), 0.0);
+        final Double[] stored = rates.getStoredValues();
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(i == 3 ? 5.0 : before[i], stored[i], 0.0);
+        }
+    }
+
+    @Test
+    public void clockAndPriorFollowJournaledRatesThroughAcceptedAndRejectedMoves() {
+        Randomizer.setSeed(1019L);
+
+        final Tree tree = new TreeParser(TREE_NEWICK, false, true, true, 1);
+        final JournaledRealParameter rates = new JournaledRealParameter(RATES);
+        final IntegerParameter indicator = new IntegerParameter("1");
+        final RealParameter sigma2 = new RealParameter("0.2");
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates, indicator, sigma2));
+        state.initialise();
+        state.setEverythingDirty(false);
+
+        final SharedRatesClockModel clock = new SharedRatesClockModel();
+        clock.initByName("tree", tree, "rates", rates, "normalize", true);
+        final RelaxedRatesPriorSVS prior = prior(tree, rates, indicator, sigma2);
+        prior.calculateLogP();
+
+        for (int step = 0; step < 60; step++) {
+            state.store(step);
+            final int changes = 1 + Randomizer.nextInt(3);
+            for (int c = 0; c < changes; c++) {
+                rates.setValue(Randomizer.nextInt(rates.getDimension()), 0.2 + 2.0 * Randomizer.nextDouble());
+            }
+            if (Randomizer.nextDouble() < 0.2) {
+                indicator.setValue(0, 1 - indicator.getValue());
+            }
+            clock.store();
+            prior.store();
+            assertTrue(clock.requiresRecalculation());
+            assertTrue(prior.requiresRecalculation());
+            prior.calculateLogP();
+
+            if (Randomizer.nextBoolean()) {
+                state.restore();
+                clock.restore();
+                prior.restore();
+            }
+            state.setEverythingDirty(false);
+
+            final RealParameter plain = new RealParameter(text(rates));
+            final SharedRatesClockModel freshClock = new SharedRatesClockModel();
+            freshClock.initByName("tree", tree, "rates", plain, "normalize", true);
+            final RelaxedRatesPriorSVS freshPrior = prior(tree, plain, new IntegerParameter("1"), sigma2);
+            for (int nr = 0; nr < tree.getNodeCount(); nr++) {
+                final Node node = tree.getNode(nr);
+                assertEquals("step " + step, freshClock.getRateForBranch(node), clock.getRateForBranch(node), EPS);
+            }
+            assertEquals("step " + step, freshPrior.logPriorUCOnly(), prior.logPriorUCOnly(), EPS);
+            assertEquals("step " + step, freshPrior.logPriorACOnly(), prior.logPriorACOnly(), EPS);
+        }
+    }
+
+    private static double[] values(final RealParameter parameter) {
+        final double[] values = new double[parameter.getDimension()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parameter.getValue(i);
+        }
+        return values;
+    }
+
+    private static String text(final RealParameter parameter) {
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < parameter.getDimension(); i++) {
+            b.append(parameter.getValue(i)).append(' ');
+        }
+        return b.toString().trim();
+    }
+
+    private static RelaxedRatesPriorSVS prior(final Tree tree,
+                                              final RealParameter rates,
+                                              final IntegerParameter indicator,
+                                              final RealParameter sigma2) {
+        final RelaxedRatesPriorSVS prior = new RelaxedRatesPriorSVS();
+        prior.initByName(
+                "tree", tree,
+                "rates", rates,
+                "indicator", indicator,
+                "ucldStdev", new RealParameter("0.5"),
+                "sigma2", sigma2,
+                "minBranchLength", 1.0e-12
+        );
+        return prior;
+    }
+}
@@ -13,7 +13,9 @@ import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class MixtureLikelihoodLoggerCharacterizationTest {
 
@@ -51,6 +53,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
 
         assertArrayEquals(new String[]{"mixLog.r[1]", "mixLog.r[2]"}, tokens(captureInit(logger)));
 
+        mix.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final ExpectedMixture expected = expected(new double[]{0.25, 0.75}, new double[]{-10.0, -12.0}, 0.0);
 
@@ -94,6 +97,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         final MixtureLikelihoodLogger logger = loggerWithAllFlags(mix, "mixLog");
         logger.initAndValidate();
 
+        mix.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final ExpectedMixture expected = expected(weights, logL, 0.0);
 
@@ -126,6 +130,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         final MixtureLikelihoodLogger logger = loggerWithAllFlags(mix, "mixLog");
         logger.initAndValidate();
 
+        mix.calculateLogP();
         final String[] values = tokens(captureLog(logger));
         final ExpectedMixture expected = expected(weights, logL, alpha);
 
@@ -141,12 +146,47 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         final MixtureLikelihoodLogger logger = logger(mix, "mixLog");
         logger.initAndValidate();
 
+        mix.calculateLogP();
         final String[] values = tokens(captureLog(logger));
 
         assertEquals(0.0, parse(values[0]), EPS);
         assertEquals(1.0, parse(values[1]), EPS);
     }
 
+    @Test
+    public void loggedLogLOfComponentsTheLastEvaluationSkippedIsNaN() {
+        // a zero-weight component is not needed for logMix without coupling
+        final MixtureTreeLikelihood zeroWeight = legacyMixture(new double[]{0.0, 1.0}, null, -5.0, -3.0);
+        final MixtureLikelihoodLogger zeroWeightLogger = loggerWithAllFlags(zeroWeight, "mixLog");
+        zeroWeightLogger.initAndValidate();
+        zeroWeight.calculateLogP();
+
+        final String[] first = tokens(captureLog(zeroWeightLogger));
+        final String[] second = tokens(captureLog(zeroWeightLogger));
+
+        assertTrue(Double.isNaN(parse(first[7])));
+        assertEquals(-3.0, parse(first[8]), EPS);
+        assertEquals(Double.NEGATIVE_INFINITY, parse(first[9]), 0.0);
+        assertEquals(0.0, parse(first[11]), EPS);
+        assertEquals(-3.0, parse(first[13]), EPS);
+        assertArrayEquals(first, second);
+        assertEquals(0, ((ConstantLikelihood) zeroWeight.subLikelihoodsInput.get().get(0)).callCount);
+        assertEquals(1, ((ConstantLikelihood) zeroWeight.subLikelihoodsInput.get().get(1)).callCount);
+
+        // with alpha > 0 a non-finite component stops the evaluation before the later ones
+        final MixtureTreeLikelihood earlyExit = legacyMixture(new double[]{0.5, 0.5}, 0.2,
+                Double.NEGATIVE_INFINITY, -2.0);
+        final MixtureLikelihoodLogger earlyExitLogger = loggerWithAllFlags(earlyExit, "mixLog");
+        earlyExitLogger.initAndValidate();
+        earlyExit.calculateLogP();
+
+        final String[] values = tokens(captureLog(earlyExitLogger));
+
+        assertEquals(Double.NEGATIVE_INFINITY, parse(values[7]), 0.0);
+        assertTrue(Double.isNaN(parse(values[8])));
+        assertEquals(0, ((ConstantLikelihood) earlyExit.subLikelihoodsInput.get().get(1)).callCount);
+    }
+
     @Test
     public void nonFinitePositiveWeightComponentMatchesSourceResponsibilityHandling() {
         final MixtureTreeLikelihood mix = legacyMixture(
@@ -158,6 +198,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         final MixtureLikelihoodLogger logger = loggerWithAllFlags(mix, "mixLog");
         logger.initAndValidate();
 
+        mix.calculateLogP();
         final String[] values = tokens(captureLog(logger));
 
         assertEquals(Double.NEGATIVE_INFINITY, parse(values[9]), 0.0);
@@ -166,6 +207,39 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         assertEquals(1.0, parse(values[12]), EPS);
     }
 
+    @Test
+    public void logReadsLastEvaluationWithoutReEnteringComponents() {
+        final MixtureTreeLikelihood mix = legacyMixture(new double[]{0.25, 0.75}, 0.2, -10.0, -12.0);
+        final MixtureLikelihoodLogger logger = loggerWithAllFlags(mix, "mixLog");
+        logger.initAndValidate();
+
+        mix.calculateLogP();
+        final String[] first = tokens(captureLog(logger));
+        final String[] second = tokens(captureLog(logger));
+
+        assertArrayEquals(first, second);
+        for (final Object sub : mix.subLikelihoodsInput.get()) {
+            assertEquals(1, ((ConstantLikelihood) sub).callCount);
+        }
+        assertEquals(mix.getCurrentLogP(), parse(first[0]), EPS);
+    }
+
+    @Test
+    public void logNeverEvaluatesTheMixture() {
+        final MixtureTreeLikelihood mix = legacyMixture(new double[]{0.25, 0.75}, null, -10.0, -12.0);
+        final MixtureLikelihoodLogger logger = logger(mix, "mixLog");
+        logger.initAndValidate();
+
+        final String[] values = tokens(captureLog(logger));
+
+        assertTrue(Double.isNaN(parse(values[0])));
+        assertTrue(Double.isNaN(parse(values[1])));
+        assertFalse(mix.hasLastEvaluation());
+        for (final Object sub : mix.subLikelihoodsInput.get()) {
+            assertEquals(0, ((ConstantLikelihood) sub).callCount);
+        }
+    }
+
     @Test
     public void closeIsNoOp() {
         final MixtureLikelihoodLogger logger = logger(legacyMixture(new double[]{0.5, 0.5}, null, -1.0, -2.0),
@@ -183,6 +257,8 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
         final MixtureLikelihoodLogger typedLogger = loggerWithAllFlags(typed, "mixLog");
         legacyLogger.initAndValidate();
         typedLogger.initAndValidate();
+        legacy.calculateLogP();
+        typed.calculateLogP();
 
         assertArrayEquals(tokens(captureInit(legacyLogger)), tokens(captureInit(typedLogger)));
         assertArrayEquals(tokens(captureLog(legacyLogger)), tokens(captureLog(typedLogger)));
@@ -381,6 +457,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
 
     public static final class ConstantLikelihood extends GenericTreeLikelihood {
         private final double value;
+        private int callCount = 0;
 
         private ConstantLikelihood(final double value) {
             this.value = value;
@@ -393,6 +470,7 @@ public class MixtureLikelihoodLoggerCharacterizationTest {
 
         @Override
         public double calculateLogP() {
+            callCount++;
             logP = value;
             return logP;
         }
@@ -150,6 +150,8 @@ public class MixtureLikelihoodLoggerTypedSafeTest {
                                                  final MixtureLikelihoodLogger typedLogger) {
         legacyLogger.initAndValidate();
         typedLogger.initAndValidate();
+        legacyLogger.mixtureInput.get().calculateLogP();
+        typedLogger.mixtureInput.get().calculateLogP();
         assertArrayEquals(tokens(captureInit(legacyLogger)), tokens(captureInit(typedLogger)));
         assertArrayEquals(tokens(captureLog(legacyLogger)), tokens(captureLog(typedLogger)));
     }
@@ -1,5 +1,6 @@
 package mixture.beast.evolution.mixture;
 
+import beast.base.core.Input;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
@@ -7,8 +8,11 @@ import org.junit.Test;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -161,12 +165,263 @@ public class MixtureTreeLikelihoodCharacterizationTest {
     }
 
     @Test
-    public void requiresRecalculationCurrentlyAlwaysReturnsTrue() {
+    public void parallelComponentsMatchSequentialPath() {
+        final double[][] cases = {
+                {-10.0, -12.0, -11.5},
+                {Double.NEGATIVE_INFINITY, -2.0, -3.0},
+                {Double.NaN, Double.NEGATIVE_INFINITY, Double.NaN}
+        };
+        final double[] weights = {0.2, 0.5, 0.3};
+
+        for (final double[] logL : cases) {
+            for (final Double alpha : new Double[]{null, 0.0, 0.2}) {
+                final MixtureTreeLikelihood sequential = mixture(weights, alpha, logL);
+                final MixtureTreeLikelihood parallel = parallelMixture(weights, alpha, 3, logL);
+
+                assertEquals(sequential.calculateLogP(), parallel.calculateLogP(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void parallelComponentsStopAtTheFirstNonFiniteComponentWithCoupling() {
+        final double[] weights = {0.2, 0.5, 0.3};
+        final double[] logL = {Double.NEGATIVE_INFINITY, -2.0, -3.0};
+        final MixtureTreeLikelihood sequential = mixture(weights, 0.2, logL);
+        final CountingGenericTreeLikelihood failing = constantLogL(logL[0]);
+        final CountingGenericTreeLikelihood later1 = constantLogL(logL[1]);
+        final CountingGenericTreeLikelihood later2 = constantLogL(logL[2]);
+
+        final MixtureTreeLikelihood parallel = new MixtureTreeLikelihood();
+        addSubLikelihood(parallel, failing);
+        addSubLikelihood(parallel, later1);
+        addSubLikelihood(parallel, later2);
+        parallel.weightsInput.setValue(realParameter(weights), parallel);
+        parallel.alphaInput.setValue(new RealParameter("0.2"), parallel);
+        parallel.parallelComponentsInput.setValue(true, parallel);
+        parallel.threadsInput.setValue(3, parallel);
+        parallel.initAndValidate();
+
+        assertEquals(sequential.calculateLogP(), parallel.calculateLogP(), 0.0);
+        for (int k = 0; k < logL.length; k++) {
+            assertEquals(sequential.getLastComponentLogL(k), parallel.getLastComponentLogL(k), 0.0);
+        }
+        assertEquals(1, failing.callCount);
+
+        // the cached -Inf ends the next round before anything is submitted
+        final int calls1 = later1.callCount;
+        final int calls2 = later2.callCount;
+        assertEquals(Double.NEGATIVE_INFINITY, parallel.calculateLogP(), 0.0);
+        assertEquals(1, failing.callCount);
+        assertEquals(calls1, later1.callCount);
+        assertEquals(calls2, later2.callCount);
+        assertTrue(Double.isNaN(parallel.getLastComponentLogL(1)));
+        assertTrue(Double.isNaN(parallel.getLastComponentLogL(2)));
+    }
+
+    @Test
+    public void parallelComponentsSkipZeroWeightComponentWhenAlphaAbsent() {
+        final CountingGenericTreeLikelihood skipped = constantLogL(Double.NaN);
+        final CountingGenericTreeLikelihood used1 = constantLogL(-3.0);
+        final CountingGenericTreeLikelihood used2 = constantLogL(-4.0);
+
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        addSubLikelihood(mix, skipped);
+        addSubLikelihood(mix, used1);
+        addSubLikelihood(mix, used2);
+        mix.weightsInput.setValue(new RealParameter("0.0 0.5 0.5"), mix);
+        mix.parallelComponentsInput.setValue(true, mix);
+        mix.threadsInput.setValue(2, mix);
+        mix.initAndValidate();
+
+        assertEquals(logSumExp(Math.log(0.5) - 3.0, Math.log(0.5) - 4.0), mix.calculateLogP(), EPS);
+        assertEquals(0, skipped.callCount);
+        assertEquals(1, used1.callCount);
+        assertEquals(1, used2.callCount);
+    }
+
+    @Test
+    public void externalExecutorIsUsedForParallelComponents() {
+        final ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            final MixtureTreeLikelihood mix = mixture(new double[]{0.25, 0.75}, 0.2, -10.0, -12.0);
+            final double expected = mix.calculateLogP();
+
+            mix.setExecutor(exec);
+
+            assertEquals(expected, mix.calculateLogP(), 0.0);
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void replacingAnExternalExecutorLeavesItRunning() {
+        final ExecutorService first = Executors.newSingleThreadExecutor();
+        final ExecutorService second = Executors.newSingleThreadExecutor();
+        try {
+            final MixtureTreeLikelihood mix = parallelMixture(new double[]{0.25, 0.75}, 0.2, 2, -10.0, -12.0);
+            final double expected = mix.calculateLogP();
+
+            mix.setExecutor(first);
+            mix.setExecutor(second);
+            mix.initAndValidate();
+
+            assertFalse(first.isShutdown());
+            assertFalse(second.isShutdown());
+            assertEquals(expected, mix.calculateLogP(), 0.0);
+        } finally {
+            first.shutdownNow();
+            second.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shutDownExecutorFallsBackToSequentialPath() {
+        final ExecutorService exec = Executors.newSingleThreadExecutor();
+        exec.shutdownNow();
+
+        final MixtureTreeLikelihood mix = mixture(new double[]{0.25, 0.75}, null, -10.0, -12.0);
+        final double expected = mix.calculateLogP();
+        mix.setExecutor(exec);
+
+        assertEquals(expected, mix.calculateLogP(), 0.0);
+    }
+
+    @Test
+    public void requiresRecalculationIsTrueBeforeFirstEvaluation() {
         final MixtureTreeLikelihood mix = mixture(new double[]{0.5, 0.5}, null, -1.0, -2.0);
 
         assertTrue(mix.requiresRecalculation());
     }
 
+    @Test
+    public void requiresRecalculationIsFalseWhenAllComponentsAreCleanAndCached() {
+        final MixtureTreeLikelihood mix = mixture(new double[]{0.5, 0.5}, null, -1.0, -2.0);
+        mix.calculateLogP();
+
+        assertFalse(mix.requiresRecalculation());
+    }
+
+    @Test
+    public void cleanComponentIsNotReEnteredAfterAMoveOnAnotherComponent() {
+        final ParameterLogL c1 = parameterLogL("x1", -10.0);
+        final ParameterLogL c2 = parameterLogL("x2", -12.0);
+        final MixtureTreeLikelihood mix = parameterMixture(c1, c2);
+        final State state = state(mix, c1, c2);
+
+        mix.calculateLogP();
+        final double proposed = propose(state, mix, () -> c2.xInput.get().setValue(-11.0));
+
+        assertEquals(logSumExp(Math.log(0.25) - 10.0, Math.log(0.75) - 11.0), proposed, EPS);
+        assertEquals(1, c1.callCount);
+        assertEquals(2, c2.callCount);
+    }
+
+    @Test
+    public void rejectedMoveRestoresCachedComponentValuesWithoutReEvaluation() {
+        final ParameterLogL c1 = parameterLogL("x1", -10.0);
+        final ParameterLogL c2 = parameterLogL("x2", -12.0);
+        final MixtureTreeLikelihood mix = parameterMixture(c1, c2);
+        final State state = state(mix, c1, c2);
+
+        final double before = mix.calculateLogP();
+        propose(state, mix, () -> c2.xInput.get().setValue(-1.0));
+        reject(state);
+
+        assertFalse(mix.requiresRecalculation());
+        assertEquals(before, mix.calculateLogP(), 0.0);
+        assertEquals(1, c1.callCount);
+        assertEquals(2, c2.callCount);
+    }
+
+    @Test
+    public void acceptedMoveKeepsNewCachedComponentValues() {
+        final ParameterLogL c1 = parameterLogL("x1", -10.0);
+        final ParameterLogL c2 = parameterLogL("x2", -12.0);
+        final MixtureTreeLikelihood mix = parameterMixture(c1, c2);
+        final State state = state(mix, c1, c2);
+
+        mix.calculateLogP();
+        final double proposed = propose(state, mix, () -> c1.xInput.get().setValue(-9.0));
+        accept(state);
+
+        assertEquals(proposed, mix.calculateLogP(), 0.0);
+        assertEquals(2, c1.callCount);
+        assertEquals(1, c2.callCount);
+    }
+
+    @Test
+    public void lastEvaluationExposesComponentTermsAndResponsibilities() {
+        final MixtureTreeLikelihood mix = mixture(new double[]{0.25, 0.75}, 0.2, -10.0, -12.0);
+
+        assertFalse(mix.hasLastEvaluation());
+        final double logP = mix.calculateLogP();
+
+        final double logS1 = Math.log(0.25) - 10.0;
+        final double logS2 = Math.log(0.75) - 12.0;
+        final double logMix = logSumExp(logS1, logS2);
+        assertTrue(mix.hasLastEvaluation());
+        assertEquals(-10.0, mix.getLastComponentLogL(0), EPS);
+        assertEquals(-12.0, mix.getLastComponentLogL(1), EPS);
+        assertEquals(logS1, mix.getLastComponentLogS(0), EPS);
+        assertEquals(logS2, mix.getLastComponentLogS(1), EPS);
+        assertEquals(logMix, mix.getLastLogMix(), EPS);
+        assertEquals(0.2 * -22.0, mix.getLastCouplingTerm(), EPS);
+        assertEquals(logP, mix.getLastLogMix() + mix.getLastCouplingTerm(), EPS);
+        assertEquals(Math.exp(logS1 - logMix), mix.getLastResponsibility(0), EPS);
+        assertEquals(1.0, mix.getLastResponsibility(0) + mix.getLastResponsibility(1), EPS);
+    }
+
+    @Test
+    public void lastEvaluationOfSkippedComponentIsNotAvailable() {
+        final MixtureTreeLikelihood mix = mixture(new double[]{0.0, 1.0}, null, -10.0, -12.0);
+        mix.calculateLogP();
+
+        assertTrue(Double.isNaN(mix.getLastComponentLogL(0)));
+        assertEquals(Double.NEGATIVE_INFINITY, mix.getLastComponentLogS(0), 0.0);
+        assertEquals(0.0, mix.getLastResponsibility(0), 0.0);
+        assertEquals(1.0, mix.getLastResponsibility(1), EPS);
+    }
+
+    @Test
+    public void rejectedMoveRestoresLastEvaluation() {
+        final ParameterLogL c1 = parameterLogL("x1", -10.0);
+        final ParameterLogL c2 = parameterLogL("x2", -12.0);
+        final MixtureTreeLikelihood mix = parameterMixture(c1, c2);
+        final State state = state(mix, c1, c2);
+
+        mix.calculateLogP();
+        final double logMix = mix.getLastLogMix();
+        final double r1 = mix.getLastResponsibility(0);
+        propose(state, mix, () -> c2.xInput.get().setValue(-1.0));
+        assertEquals(-1.0, mix.getLastComponentLogL(1), EPS);
+        reject(state);
+
+        assertEquals(-12.0, mix.getLastComponentLogL(1), EPS);
+        assertEquals(logMix, mix.getLastLogMix(), 0.0);
+        assertEquals(r1, mix.getLastResponsibility(0), 0.0);
+        assertEquals(2, c2.callCount);
+    }
+
+    @Test
+    public void parallelComponentsOnlyReEnterDirtyComponents() {
+        final ParameterLogL c1 = parameterLogL("x1", -10.0);
+        final ParameterLogL c2 = parameterLogL("x2", -12.0);
+        final MixtureTreeLikelihood mix = parameterMixture(c1, c2);
+        mix.parallelComponentsInput.setValue(true, mix);
+        mix.threadsInput.setValue(2, mix);
+        mix.initAndValidate();
+        final State state = state(mix, c1, c2);
+
+        mix.calculateLogP();
+        final double proposed = propose(state, mix, () -> c1.xInput.get().setValue(-9.0));
+
+        assertEquals(logSumExp(Math.log(0.25) - 9.0, Math.log(0.75) - 12.0), proposed, EPS);
+        assertEquals(2, c1.callCount);
+        assertEquals(1, c2.callCount);
+    }
+
     @Test
     public void getArgumentsAndConditionsCurrentlyReturnEmptyLists() {
         final MixtureTreeLikelihood mix = mixture(new double[]{0.5, 0.5}, null, -1.0, -2.0);
@@ -204,6 +459,69 @@ public class MixtureTreeLikelihoodCharacterizationTest {
         return mix;
     }
 
+    private static MixtureTreeLikelihood parallelMixture(final double[] weights,
+                                                         final Double alpha,
+                                                         final int threads,
+                                                         final double... logL) {
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        for (final double value : logL) {
+            addSubLikelihood(mix, constantLogL(value));
+        }
+        mix.weightsInput.setValue(realParameter(weights), mix);
+        if (alpha != null) {
+            mix.alphaInput.setValue(new RealParameter(Double.toString(alpha)), mix);
+        }
+        mix.parallelComponentsInput.setValue(true, mix);
+        mix.threadsInput.setValue(threads, mix);
+        mix.initAndValidate();
+        return mix;
+    }
+
+    private static ParameterLogL parameterLogL(final String id, final double value) {
+        final RealParameter x = new RealParameter(Double.toString(value));
+        x.setID(id);
+        final ParameterLogL likelihood = new ParameterLogL();
+        likelihood.xInput.setValue(x, likelihood);
+        return likelihood;
+    }
+
+    private static MixtureTreeLikelihood parameterMixture(final ParameterLogL c1, final ParameterLogL c2) {
+        final MixtureTreeLikelihood mix = new MixtureTreeLikelihood();
+        addSubLikelihood(mix, c1);
+        addSubLikelihood(mix, c2);
+        mix.weightsInput.setValue(new RealParameter("0.25 0.75"), mix);
+        mix.initAndValidate();
+        return mix;
+    }
+
+    private static State state(final MixtureTreeLikelihood mix, final ParameterLogL c1, final ParameterLogL c2) {
+        final State state = new State();
+        state.initByName("stateNode", List.of(c1.xInput.get(), c2.xInput.get()));
+        state.initialise();
+        state.setPosterior(mix);
+        return state;
+    }
+
+    /** Mirrors the MCMC step: edit, store calculation nodes, propagate dirtiness, evaluate. */
+    private static double propose(final State state, final MixtureTreeLikelihood mix, final Runnable edit) {
+        state.store(0);
+        edit.run();
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        return mix.calculateLogP();
+    }
+
+    private static void reject(final State state) {
+        state.restore();
+        state.restoreCalculationNodes();
+        state.setEverythingDirty(false);
+    }
+
+    private static void accept(final State state) {
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+    }
+
     private static void addSubLikelihood(final MixtureTreeLikelihood mix,
                                          final GenericTreeLikelihood likelihood) {
         mix.subLikelihoodsInput.get().add(likelihood);
@@ -251,4 +569,27 @@ public class MixtureTreeLikelihoodCharacterizationTest {
             return logP;
         }
     }
+
+    public static final class ParameterLogL extends GenericTreeLikelihood {
+        public final Input<RealParameter> xInput = new Input<>("x", "value returned as the component logL",
+                Input.Validate.REQUIRED);
+        private int callCount = 0;
+
+        @Override
+        public void initAndValidate() {
+            // Do not require data/tree/siteModel for this test stub.
+        }
+
+        @Override
+        public double calculateLogP() {
+            callCount++;
+            logP = xInput.get().getValue();
+            return logP;
+        }
+
+        @Override
+        protected boolean requiresRecalculation() {
+            return xInput.get().somethingIsDirty();
+        }
+    }
 }
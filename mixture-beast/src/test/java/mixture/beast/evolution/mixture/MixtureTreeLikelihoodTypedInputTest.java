@@ -188,7 +188,7 @@ public class MixtureTreeLikelihoodTypedInputTest {
     }
 
     @Test
-    public void requiresRecalculationArgumentsConditionsAndSampleRemain() {
+    public void requiresRecalculationBeforeFirstEvaluationArgumentsConditionsAndSampleRemain() {
         final MixtureTreeLikelihood mix = mixtureTyped(weights(0.5, 0.5), null, -1.0, -2.0);
 
         assertTrue(mix.requiresRecalculation());
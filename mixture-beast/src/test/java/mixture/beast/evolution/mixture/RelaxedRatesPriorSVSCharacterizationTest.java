@@ -3,8 +3,10 @@ package mixture.beast.evolution.mixture;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
 import org.junit.Test;
 
@@ -12,6 +14,7 @@ import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 public class RelaxedRatesPriorSVSCharacterizationTest {
@@ -46,10 +49,18 @@ public class RelaxedRatesPriorSVSCharacterizationTest {
     }
 
     @Test
-    public void invalidIndicatorReturnsNegativeInfinity() {
+    public void strictIndicatorUsesUCPseudoPrior() {
         final RelaxedRatesPriorSVS prior = prior(fixedTree(), realParameter(POSITIVE_RATES),
                 integerParameter("2"), realParameter("0.5"), null, realParameter("0.2"), 1.0e-12);
 
+        assertEquals(prior.logPriorUCOnly(), prior.calculateLogP(), EPS);
+    }
+
+    @Test
+    public void invalidIndicatorReturnsNegativeInfinity() {
+        final RelaxedRatesPriorSVS prior = prior(fixedTree(), realParameter(POSITIVE_RATES),
+                integerParameter("3"), realParameter("0.5"), null, realParameter("0.2"), 1.0e-12);
+
         assertEquals(Double.NEGATIVE_INFINITY, prior.calculateLogP(), 0.0);
     }
 
@@ -193,6 +204,111 @@ public class RelaxedRatesPriorSVSCharacterizationTest {
         assertTrue(prior.requiresRecalculation());
     }
 
+    @Test
+    public void lastUCAndACPriorsMatchDirectEvaluationForEitherIndicator() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final RelaxedRatesPriorSVS uc = prior(tree, rates, integerParameter("0"),
+                realParameter("0.5"), realParameter("0.0"), realParameter("0.2"), 1.0e-12);
+        final RelaxedRatesPriorSVS ac = prior(tree, rates, integerParameter("1"),
+                realParameter("0.5"), realParameter("0.0"), realParameter("0.2"), 1.0e-12);
+
+        assertEquals(uc.calculateLogP(), uc.getLastLogPriorUC(), 0.0);
+        assertEquals(uc.logPriorACOnly(), uc.getLastLogPriorAC(), EPS);
+        assertEquals(ac.calculateLogP(), ac.getLastLogPriorAC(), 0.0);
+        assertEquals(ac.logPriorUCOnly(), ac.getLastLogPriorUC(), EPS);
+    }
+
+    @Test
+    public void lastPriorsFollowParameterChangesAndRestore() {
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final RelaxedRatesPriorSVS prior = prior(fixedTree(), rates, integerParameter("0"),
+                realParameter("0.5"), realParameter("0.0"), realParameter("0.2"), 1.0e-12);
+
+        prior.calculateLogP();
+        final double uc = prior.getLastLogPriorUC();
+        final double ac = prior.getLastLogPriorAC();
+
+        prior.store();
+        rates.setValue(0, 0.95);
+        assertTrue(prior.requiresRecalculation());
+        prior.calculateLogP();
+        assertEquals(prior.logPriorUCOnly(), prior.getLastLogPriorUC(), 0.0);
+        assertEquals(prior.logPriorACOnly(), prior.getLastLogPriorAC(), EPS);
+        assertNotEquals(uc, prior.getLastLogPriorUC(), EPS);
+
+        prior.restore();
+        assertEquals(uc, prior.getLastLogPriorUC(), 0.0);
+        assertEquals(ac, prior.getLastLogPriorAC(), 0.0);
+    }
+
+    @Test
+    public void scalingTheWholeRateVectorIsPickedUpWithoutIndexFlags() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final RelaxedRatesPriorSVS prior = prior(tree, rates, integerParameter("0"),
+                realParameter("0.5"), realParameter("0.0"), realParameter("0.2"), 1.0e-12);
+        prior.logPriorUCOnly();
+        prior.logPriorACOnly();
+
+        // as UpDownOperator does: RealParameter.scale() sets no per-index dirty flag
+        rates.startEditing(null);
+        rates.scale(1.5);
+
+        assertTrue(prior.requiresRecalculation());
+        assertEquals(expectedUCLogPrior(rates, 0.5), prior.logPriorUCOnly(), EPS);
+        assertEquals(expectedACLogPrior(tree, rates, 0.2, 0.0, 1.0e-12), prior.logPriorACOnly(), EPS);
+    }
+
+    @Test
+    public void hyperparameterOnlyMovesMatchDirectSumForBothModes() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final RealParameter ucldStdev = realParameter("0.5");
+        final RealParameter sigma2 = realParameter("0.2");
+        final RelaxedRatesPriorSVS prior = prior(tree, rates, integerParameter("0"),
+                ucldStdev, realParameter("0.3"), sigma2, 1.0e-12);
+        prior.logPriorUCOnly();
+        prior.logPriorACOnly();
+
+        for (final double value : new double[]{0.05, 0.3, 1.0, 2.5}) {
+            ucldStdev.setValue(0, value);
+            sigma2.setValue(0, value);
+            assertTrue(prior.requiresRecalculation());
+
+            assertEquals(expectedUCLogPrior(rates, value), prior.logPriorUCOnly(), EPS);
+            assertEquals(expectedACLogPrior(tree, rates, value, 0.3, 1.0e-12), prior.logPriorACOnly(), EPS);
+        }
+    }
+
+    @Test
+    public void indicatorSwitchKeepsCachedModeValuesUntilAnInputChanges() {
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final IntegerParameter indicator = integerParameter("0");
+        final RelaxedRatesPriorSVS prior = prior(fixedTree(), rates, indicator,
+                realParameter("0.5"), realParameter("0.0"), realParameter("0.2"), 1.0e-12);
+
+        final double uc = prior.calculateLogP();
+        final double ac = prior.getLastLogPriorAC();
+
+        prior.store();
+        indicator.setValue(0, 1);
+        assertTrue(prior.requiresRecalculation());
+        assertEquals(ac, prior.calculateLogP(), 0.0);
+        assertEquals(uc, prior.getLastLogPriorUC(), 0.0);
+
+        indicator.setValue(0, 2);
+        assertTrue(prior.requiresRecalculation());
+        assertEquals(uc, prior.calculateLogP(), 0.0);
+
+        rates.setValue(2, 0.6);
+        assertTrue(prior.requiresRecalculation());
+        assertEquals(prior.logPriorUCOnly(), prior.calculateLogP(), 0.0);
+        assertNotEquals(uc, prior.getLastLogPriorUC(), EPS);
+        assertNotEquals(ac, prior.getLastLogPriorAC(), EPS);
+        assertEquals(prior.logPriorACOnly(), prior.getLastLogPriorAC(), 0.0);
+    }
+
     @Test
     public void getArgumentsAndConditionsRecordCurrentMetadataBehaviour() {
         final Tree tree = fixedTree();
@@ -222,6 +338,137 @@ public class RelaxedRatesPriorSVSCharacterizationTest {
         assertTrue(conditions.contains("sigma2"));
     }
 
+    @Test
+    public void incrementalUCPriorMatchesDirectSumThroughAcceptedAndRejectedMoves() {
+        Randomizer.setSeed(1011L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(POSITIVE_RATES);
+        final IntegerParameter indicator = integerParameter("0");
+        final RealParameter ucldStdev = realParameter("0.5");
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates, indicator, ucldStdev));
+        state.initialise();
+        final RelaxedRatesPriorSVS prior = prior(tree, rates, indicator,
+                ucldStdev, null, realParameter("0.2"), 1.0e-12);
+        prior.calculateLogP();
+
+        for (int step = 0; step < 60; step++) {
+            state.store(step);
+            final double u = Randomizer.nextDouble();
+            if (u < 0.6) {
+                // occasionally a non-positive rate, whose -inf term must leave the sum cleanly again
+                final double value = Randomizer.nextDouble() < 0.1 ? 0.0 : 0.2 + 2.0 * Randomizer.nextDouble();
+                rates.setValue(Randomizer.nextInt(rates.getDimension()), value);
+            } else if (u < 0.8) {
+                ucldStdev.setValue(0, 0.1 + Randomizer.nextDouble());
+            } else {
+                indicator.setValue(0, 1 - indicator.getValue());
+            }
+            // MCMC stores calculation nodes after the proposal
+            prior.store();
+            assertTrue(prior.requiresRecalculation());
+            prior.calculateLogP();
+
+            if (Randomizer.nextBoolean()) {
+                state.restore();
+                prior.restore();
+            }
+            state.setEverythingDirty(false);
+
+            assertEquals("step " + step, expectedUCLogPrior(rates, ucldStdev.getValue()), prior.logPriorUCOnly(), EPS);
+        }
+    }
+
+    @Test
+    public void incrementalACPriorMatchesDirectSumThroughRateAndHeightMoves() {
+        Randomizer.setSeed(1012L);
+
+        final Tree tree = new TreeParser("(((A:1.0,B:1.0):1.5,C:2.5):1.0,(D:2.0,E:2.0):1.5);", false, true, true, 1);
+        final RealParameter rates = realParameter("0.8 1.1 1.4 0.9 1.2 0.7 1.0 1.3");
+        final IntegerParameter indicator = integerParameter("1");
+        final RealParameter sigma2 = realParameter("0.2");
+        final RealParameter rootLogRate = realParameter("0.1");
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates, indicator, sigma2, rootLogRate));
+        state.initialise();
+        final RelaxedRatesPriorSVS prior = prior(tree, rates, indicator,
+                realParameter("0.5"), rootLogRate, sigma2, 1.0e-12);
+        prior.calculateLogP();
+
+        for (int step = 0; step < 80; step++) {
+            state.store(step);
+            final double u = Randomizer.nextDouble();
+            if (u < 0.45) {
+                final double value = Randomizer.nextDouble() < 0.1 ? 0.0 : 0.2 + 2.0 * Randomizer.nextDouble();
+                rates.setValue(Randomizer.nextInt(rates.getDimension()), value);
+            } else if (u < 0.75) {
+                // Tree.restore swaps node objects, so pick the node by number every step
+                final Node node = tree.getNode(tree.getLeafNodeCount() + Randomizer.nextInt(tree.getInternalNodeCount()));
+                final double low = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+                final double high = node.isRoot() ? low + 3.0 : node.getParent().getHeight();
+                node.setHeight(low + (high - low) * (0.05 + 0.9 * Randomizer.nextDouble()));
+            } else if (u < 0.85) {
+                sigma2.setValue(0, 0.05 + Randomizer.nextDouble());
+            } else if (u < 0.9) {
+                rootLogRate.setValue(0, Randomizer.nextDouble() - 0.5);
+            } else {
+                indicator.setValue(0, 1 - indicator.getValue());
+            }
+            prior.store();
+            assertTrue(prior.requiresRecalculation());
+            prior.calculateLogP();
+
+            if (Randomizer.nextBoolean()) {
+                state.restore();
+                prior.restore();
+            }
+            state.setEverythingDirty(false);
+
+            assertEquals("step " + step,
+                    expectedACLogPrior(tree, rates, sigma2.getValue(), rootLogRate.getValue(), 1.0e-12),
+                    prior.logPriorACOnly(), EPS);
+        }
+    }
+
+    @Test
+    public void logRatePriorIsTheRatePriorWithTheJacobianOfExp() {
+        final Tree tree = new TreeParser("(((A:1.0,B:1.0):1.5,C:2.5):1.0,(D:2.0,E:2.0):1.5);", false, true, true, 1);
+        final String rateValues = "0.8 1.1 1.4 0.9 1.2 0.7 1.0 1.3";
+        final RealParameter rates = realParameter(rateValues);
+        final StringBuilder logValues = new StringBuilder();
+        double sumLog = 0.0;
+        for (int i = 0; i < rates.getDimension(); i++) {
+            final double x = Math.log(rates.getValue(i));
+            logValues.append(x).append(' ');
+            sumLog += x;
+        }
+        final RealParameter logRates = realParameter(logValues.toString().trim());
+
+        final RelaxedRatesPriorSVS onRates = prior(tree, rates, integerParameter("1"),
+                realParameter("0.5"), realParameter("0.1"), realParameter("0.2"), 1.0e-12);
+        final RelaxedRatesPriorSVS onLogRates = new RelaxedRatesPriorSVS();
+        onLogRates.initByName(
+                "tree", tree,
+                "rates", logRates,
+                "logRates", true,
+                "indicator", integerParameter("1"),
+                "ucldStdev", realParameter("0.5"),
+                "rootLogRate", realParameter("0.1"),
+                "sigma2", realParameter("0.2"),
+                "minBranchLength", 1.0e-12
+        );
+
+        // density of x = log r is the density of r times r
+        assertEquals(onRates.logPriorUCOnly() + sumLog, onLogRates.logPriorUCOnly(), EPS);
+        assertEquals(onRates.logPriorACOnly() + sumLog, onLogRates.logPriorACOnly(), EPS);
+
+        final RelaxedRatesPriorSVS conflicting = new RelaxedRatesPriorSVS();
+        assertThrows(IllegalArgumentException.class, () -> conflicting.initByName(
+                "tree", tree, "rates", logRates, "indicator", integerParameter("0"),
+                "ucldStdev", realParameter("0.5"), "sigma2", realParameter("0.2")));
+    }
+
     private static Tree fixedTree() {
         return new TreeParser(TREE_NEWICK, false, true, true, 1);
     }
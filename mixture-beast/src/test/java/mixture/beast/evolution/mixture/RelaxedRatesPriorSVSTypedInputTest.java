@@ -43,10 +43,18 @@ public class RelaxedRatesPriorSVSTypedInputTest {
     }
 
     @Test
-    public void typedInvalidIndicatorReturnsNegativeInfinity() {
+    public void typedStrictIndicatorUsesUCPseudoPrior() {
         final RelaxedRatesPriorSVS prior = typedPrior(fixedTree(), rates(0.8, 1.1, 1.4, 0.9),
                 indicator(2), positiveScalar(0.5), null, positiveScalar(0.2), 1.0e-12);
 
+        assertEquals(prior.logPriorUCOnly(), prior.calculateLogP(), EPS);
+    }
+
+    @Test
+    public void typedInvalidIndicatorReturnsNegativeInfinity() {
+        final RelaxedRatesPriorSVS prior = typedPrior(fixedTree(), rates(0.8, 1.1, 1.4, 0.9),
+                indicator(3), positiveScalar(0.5), null, positiveScalar(0.2), 1.0e-12);
+
         assertEquals(Double.NEGATIVE_INFINITY, prior.calculateLogP(), 0.0);
     }
 
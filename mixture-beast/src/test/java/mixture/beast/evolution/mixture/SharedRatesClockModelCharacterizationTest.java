@@ -3,12 +3,22 @@ package mixture.beast.evolution.mixture;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
+import mixture.beast.evolution.util.RateSnapshot;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 public class SharedRatesClockModelCharacterizationTest {
@@ -71,6 +81,27 @@ public class SharedRatesClockModelCharacterizationTest {
         assertEquals(meanRate.getValue(), timeWeightedMeanRate(tree, clock), EPS);
     }
 
+    @Test
+    public void scalingTheWholeRateVectorIsPickedUpWithoutIndexFlags() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final SharedRatesClockModel clock = clock(tree, rates, false, realParameter("1.0"));
+        final double[] before = new double[tree.getNodeCount()];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = clock.getRateForBranch(tree.getNode(i));
+        }
+
+        // as UpDownOperator and ScaleOperator(scaleAll) do: RealParameter.scale() sets no per-index dirty flag
+        rates.startEditing(null);
+        rates.scale(2.0);
+
+        assertTrue(clock.requiresRecalculation());
+        for (int i = 0; i < before.length; i++) {
+            final Node node = tree.getNode(i);
+            assertEquals(node.isRoot() ? 1.0 : 2.0 * before[i], clock.getRateForBranch(node), EPS);
+        }
+    }
+
     @Test
     public void normalizeTrueRespondsToMeanRateChangesAfterRecalculation() {
         final Tree tree = fixedTree();
@@ -122,10 +153,322 @@ public class SharedRatesClockModelCharacterizationTest {
         assertEquals(weightedMeanBefore, timeWeightedMeanRate(tree, clock), EPS);
     }
 
+    @Test
+    public void strictIndicatorPinsEveryBranchToMeanRate() {
+        final Tree tree = fixedTree();
+        final IntegerParameter indicator = new IntegerParameter("2");
+        final SharedRatesClockModel clock = new SharedRatesClockModel();
+        clock.initByName("tree", tree, "rates", realParameter(FOUR_BRANCH_RATES), "normalize", true,
+                "meanRate", realParameter("3.0"), "indicator", indicator);
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final Node node = tree.getNode(i);
+            assertEquals(node.isRoot() ? 1.0 : 3.0, clock.getRateForBranch(node), EPS);
+        }
+
+        indicator.setValue(0, 0);
+        assertTrue(clock.requiresRecalculation());
+        assertEquals(3.0, timeWeightedMeanRate(tree, clock), 1.0e-8);
+        assertTrue(Math.abs(clock.getRateForBranch(nodeForRateIndex(tree, 0)) - 3.0) > 1.0e-6);
+    }
+
+    @Test
+    public void effectiveRatesFollowTreeChangesAfterRecalculation() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final SharedRatesClockModel clock = clock(tree, rates, true, realParameter("3.0"));
+
+        final Node leaf = tree.getNode(0);
+        leaf.setHeight(leaf.getHeight() + 0.5);
+        tree.setEverythingDirty(true);
+
+        assertTrue(clock.requiresRecalculation());
+        assertEquals(3.0, timeWeightedMeanRate(tree, clock), EPS);
+    }
+
+    @Test
+    public void incrementalNormalisationMatchesFreshClockThroughAcceptedAndRejectedMoves() {
+        Randomizer.setSeed(909L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final RealParameter meanRate = realParameter("3.0");
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates));
+        state.initialise();
+        final SharedRatesClockModel clock = clock(tree, rates, true, meanRate);
+
+        int internalNr = -1;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final Node node = tree.getNode(i);
+            if (!node.isLeaf() && !node.isRoot()) {
+                internalNr = node.getNr();
+            }
+        }
+
+        for (int step = 0; step < 40; step++) {
+            state.store(step);
+            clock.store();
+            if (Randomizer.nextBoolean()) {
+                rates.setValue(Randomizer.nextInt(rates.getDimension()), 0.2 + 3.0 * Randomizer.nextDouble());
+            } else {
+                // Tree.restore swaps node objects, so look the node up again every step
+                final Node internal = tree.getNode(internalNr);
+                final double low = Math.max(internal.getLeft().getHeight(), internal.getRight().getHeight());
+                final double high = internal.getParent().getHeight();
+                internal.setHeight(low + (high - low) * (0.05 + 0.9 * Randomizer.nextDouble()));
+            }
+            assertTrue(clock.requiresRecalculation());
+
+            if (Randomizer.nextBoolean()) {
+                state.restore();
+                clock.restore();
+            }
+            state.setEverythingDirty(false);
+
+            final SharedRatesClockModel fresh = clock(tree, realParameter(values(rates)), true, meanRate);
+            for (int i = 0; i < tree.getNodeCount(); i++) {
+                final Node node = tree.getNode(i);
+                assertEquals(fresh.getRateForBranch(node), clock.getRateForBranch(node), 1.0e-12);
+            }
+        }
+    }
+
+    @Test
+    public void rateSnapshotIsImmutableAndVersionedAcrossStoreRestore() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final SharedRatesClockModel clock = clock(tree, rates, true, realParameter("3.0"));
+
+        final RateSnapshot before = clock.getRateSnapshot();
+        assertSame(before, clock.getRateSnapshot());
+        final double[] beforeRates = new double[tree.getNodeCount()];
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final Node node = tree.getNode(i);
+            beforeRates[node.getNr()] = clock.getRateForBranch(node);
+            assertEquals(clock.getRateForBranch(node), before.getRate(node.getNr()), 0.0);
+        }
+
+        clock.store();
+        rates.setValue(0, 20.0);
+        assertTrue(clock.requiresRecalculation());
+
+        final RateSnapshot after = clock.getRateSnapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            final Node node = tree.getNode(i);
+            assertEquals(beforeRates[node.getNr()], before.getRate(node.getNr()), 0.0);
+            assertEquals(clock.getRateForBranch(node), after.getRate(node.getNr()), 0.0);
+        }
+
+        rates.restore();
+        clock.restore();
+
+        assertSame(before, clock.getRateSnapshot());
+    }
+
+    @Test
+    public void heldRateSnapshotSurvivesLaterStateChanges() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates));
+        state.initialise();
+        final SharedRatesClockModel clock = clock(tree, rates, false, realParameter("1.0"));
+
+        final RateSnapshot held = clock.getRateSnapshot();
+        final double[] heldRates = new double[tree.getNodeCount()];
+        for (int nr = 0; nr < heldRates.length; nr++) {
+            heldRates[nr] = held.getRate(nr);
+        }
+
+        // accepted and rejected changes alike; a reader still on the first state must not see any of them
+        for (int step = 0; step < 6; step++) {
+            state.store(step);
+            clock.store();
+            rates.setValue(step % rates.getDimension(), 2.0 + step);
+            assertTrue(clock.requiresRecalculation());
+            if (step % 3 == 2) {
+                state.restore();
+                clock.restore();
+            }
+            state.setEverythingDirty(false);
+            for (int nr = 0; nr < heldRates.length; nr++) {
+                assertEquals("step " + step, heldRates[nr], held.getRate(nr), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void flatTreeViewIsSharedUntilTheTreeChanges() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = realParameter(FOUR_BRANCH_RATES);
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates));
+        state.initialise();
+        final SharedRatesClockModel clock = clock(tree, rates, true, realParameter("3.0"));
+
+        final FlatTreeView before = FlatTreeView.of(tree);
+        assertSame(before, FlatTreeView.of(tree));
+        assertViewMatchesTree(before, tree);
+
+        state.store(0);
+        final Node internal = tree.getRoot().getLeft().isLeaf() ? tree.getRoot().getRight() : tree.getRoot().getLeft();
+        internal.setHeight(internal.getHeight() + 0.5);
+        // the clock reports the change, as every owner of a view does for a dirty tree
+        assertTrue(clock.requiresRecalculation());
+
+        final FlatTreeView edited = FlatTreeView.of(tree);
+        assertTrue(edited.getVersion() > before.getVersion());
+        assertEquals(before.getTopologyVersion(), edited.getTopologyVersion());
+        assertSame(before.getMapping(), edited.getMapping());
+        assertSame(edited, FlatTreeView.of(tree));
+        assertViewMatchesTree(edited, tree);
+
+        // a rejected proposal returns to the view held before it, without a rebuild
+        state.restore();
+        clock.restore();
+        final FlatTreeView restored = FlatTreeView.of(tree);
+        assertSame(before, restored);
+        assertViewMatchesTree(restored, tree);
+
+        // moving a tip to another parent is a topology change
+        state.store(1);
+        final Node root = tree.getRoot();
+        final Node cherry = root.getLeft().isLeaf() ? root.getRight() : root.getLeft();
+        final Node outer = root.getLeft().isLeaf() ? root.getLeft() : root.getRight();
+        final Node moved = cherry.getLeft();
+        cherry.removeChild(moved);
+        root.removeChild(outer);
+        cherry.addChild(outer);
+        root.addChild(moved);
+        assertTrue(clock.requiresRecalculation());
+
+        final FlatTreeView regrafted = FlatTreeView.of(tree);
+        assertNotEquals(restored.getTopologyVersion(), regrafted.getTopologyVersion());
+        assertViewMatchesTree(regrafted, tree);
+        state.restore();
+    }
+
+    @Test
+    public void flatTreeViewIsRebuiltOnlyWhenAChangeIsReported() {
+        final Tree tree = fixedTree();
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree));
+        state.initialise();
+
+        final FlatTreeView before = FlatTreeView.of(tree);
+        state.store(0);
+        tree.getRoot().setHeight(tree.getRoot().getHeight() + 1.0);
+        // within a State, the view follows the tree once an owner reports the change
+        assertSame(before, FlatTreeView.of(tree));
+        FlatTreeView.treeChanged(tree);
+        final FlatTreeView edited = FlatTreeView.of(tree);
+        assertNotSame(before, edited);
+        assertViewMatchesTree(edited, tree);
+
+        // a reported change that left the tree as it was keeps the view
+        FlatTreeView.treeChanged(tree);
+        assertSame(edited, FlatTreeView.of(tree));
+
+        // outside a State the tree is checked on every call, and a new view is built only after an edit
+        final Tree loose = fixedTree();
+        final FlatTreeView first = FlatTreeView.of(loose);
+        assertSame(first, FlatTreeView.of(loose));
+        loose.getRoot().setHeight(loose.getRoot().getHeight() + 1.0);
+        final FlatTreeView second = FlatTreeView.of(loose);
+        assertNotSame(first, second);
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(first.getTopologyVersion(), second.getTopologyVersion());
+        assertViewMatchesTree(second, loose);
+    }
+
+    @Test
+    public void preorderRateLayoutMakesEverySubtreeOneSliceOfTheRates() {
+        final Tree tree = new TreeParser("(((A:1.0,B:1.0):1.0,(C:0.5,D:0.5):1.5):1.0,E:3.0);", false, true, true, 1);
+        final RealParameter rates = realParameter("0.5 1.0 2.0 4.0 8.0 16.0 32.0 64.0");
+        final SharedRatesClockModel clock = new SharedRatesClockModel();
+        clock.initByName("tree", tree, "rates", rates, "rateLayout", "preorder");
+
+        final FlatTreeView view = FlatTreeView.of(tree);
+        final BranchRateIndexHelper.Mapping mapping = view.getMapping();
+        assertSame(BranchRateIndexHelper.Layout.PREORDER, mapping.getLayout());
+        for (int i = 1; i < tree.getNodeCount(); i++) {
+            final int nr = view.getPreorderNr(i);
+            assertEquals(i - 1, mapping.idxForNodeNr(nr));
+            assertEquals(i - 1, view.getRateSliceStart(nr));
+            assertEquals(rates.getValue(i - 1), clock.getRateForBranch(tree.getNode(nr)), EPS);
+        }
+        assertEquals(0, view.getRateSliceStart(tree.getRoot().getNr()));
+
+        // the node-nr layout leaves larger subtrees spread over the vector
+        final Tree other = new TreeParser("(((A:1.0,B:1.0):1.0,(C:0.5,D:0.5):1.5):1.0,E:3.0);", false, true, true, 1);
+        final FlatTreeView otherView = FlatTreeView.of(other);
+        boolean scattered = false;
+        for (int nr = 0; nr < other.getNodeCount(); nr++) {
+            scattered |= otherView.getRateSliceStart(nr) < 0;
+        }
+        assertTrue(scattered);
+    }
+
+    @Test
+    public void conflictingRateLayoutsOnOneTreeAreRejected() {
+        final Tree tree = fixedTree();
+        final SharedRatesClockModel clock = new SharedRatesClockModel();
+        clock.initByName("tree", tree, "rates", realParameter(FOUR_BRANCH_RATES), "rateLayout", "preorder");
+
+        final SharedRatesClockModel other = new SharedRatesClockModel();
+        final IllegalArgumentException conflict = assertThrows(IllegalArgumentException.class,
+                () -> other.initByName("tree", tree, "rates", realParameter(FOUR_BRANCH_RATES), "rateLayout", "nodeNr"));
+        assertTrue(conflict.getMessage().contains("rateLayout"));
+    }
+
+    private static void assertViewMatchesTree(final FlatTreeView view, final Tree tree) {
+        final int n = tree.getNodeCount();
+        assertEquals(n, view.getNodeCount());
+        assertEquals(tree.getRoot().getNr(), view.getRootNr());
+        assertEquals(tree.getRoot().getNr(), view.getPreorderNr(0));
+        assertEquals(tree.getRoot().getNr(), view.getPostorderNr(n - 1));
+        for (int nr = 0; nr < n; nr++) {
+            final Node node = tree.getNode(nr);
+            assertEquals(node.isRoot() ? -1 : node.getParent().getNr(), view.getParentNr(nr));
+            assertEquals(node.isRoot() ? 0.0 : node.getLength(), view.getBranchLength(nr), 0.0);
+            assertEquals(node.getChildCount(), view.getChildCount(nr));
+            assertEquals(node.getNodeCount(), view.getSubtreeSize(nr));
+            for (int c = 0; c < node.getChildCount(); c++) {
+                final int child = view.getChildNr(nr, c);
+                assertEquals(node.getChild(c).getNr(), child);
+                // preorder keeps subtrees contiguous, postorder puts children before their parent
+                assertTrue(view.getPreorderIndex(child) > view.getPreorderIndex(nr));
+                assertTrue(view.getPreorderIndex(child) < view.getPreorderIndex(nr) + view.getSubtreeSize(nr));
+            }
+            assertEquals(nr, view.getPreorderNr(view.getPreorderIndex(nr)));
+        }
+        int seen = 0;
+        final boolean[] done = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            final int nr = view.getPostorderNr(i);
+            for (int c = 0; c < view.getChildCount(nr); c++) {
+                assertTrue(done[view.getChildNr(nr, c)]);
+            }
+            done[nr] = true;
+            seen++;
+        }
+        assertEquals(n, seen);
+    }
+
     private static Tree fixedTree() {
         return new TreeParser(TREE_NEWICK, false, true, true, 1);
     }
 
+    private static String values(final RealParameter parameter) {
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < parameter.getDimension(); i++) {
+            b.append(parameter.getValue(i)).append(' ');
+        }
+        return b.toString().trim();
+    }
+
     private static RealParameter realParameter(final String value) {
         return new RealParameter(value);
     }
@@ -3,13 +3,19 @@ package mixture.beast.evolution.mixture;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.spec.domain.PositiveReal;
 import beast.base.spec.inference.parameter.RealScalarParam;
 import beast.base.spec.inference.parameter.RealVectorParam;
+import mixture.beast.evolution.util.RateSnapshot;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class SharedRatesClockModelSpecTest {
@@ -62,6 +68,87 @@ public class SharedRatesClockModelSpecTest {
         assertSameBranchRates(legacyTree, legacy, specTree, spec);
     }
 
+    @Test
+    public void rateSnapshotIsReplacedOnChangeAndRestoredWithState() {
+        final Tree tree = fixedTree();
+        final RealParameter rates = new RealParameter("0.5 1.0 2.0 4.0");
+        final SharedRatesClockModelSpec spec = new SharedRatesClockModelSpec();
+        spec.initByName("tree", tree,
+                "rates", rates,
+                "normalize", true,
+                "meanRate", new RealParameter("3.0"));
+
+        final RateSnapshot before = spec.getRateSnapshot();
+        final double[] beforeRates = new double[tree.getNodeCount()];
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            beforeRates[i] = before.getRate(i);
+            assertEquals(spec.getRateForBranch(tree.getNode(i)), beforeRates[i], 0.0);
+        }
+
+        spec.store();
+        rates.setValue(3, 8.0);
+        assertTrue(spec.requiresRecalculation());
+
+        final RateSnapshot after = spec.getRateSnapshot();
+        assertNotSame(before, after);
+        assertTrue(after.getVersion() > before.getVersion());
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            assertEquals(beforeRates[i], before.getRate(i), 0.0);
+            assertEquals(spec.getRateForBranch(tree.getNode(i)), after.getRate(i), 0.0);
+        }
+
+        rates.restore();
+        spec.restore();
+
+        assertSame(before, spec.getRateSnapshot());
+    }
+
+    @Test
+    public void changedRatesFollowAcceptedAndRejectedMovesLikeTheLegacyClock() {
+        final Tree legacyTree = fixedTree();
+        final Tree specTree = fixedTree();
+        final RealParameter legacyRates = new RealParameter("0.5 1.0 2.0 4.0");
+        final RealParameter specRates = new RealParameter("0.5 1.0 2.0 4.0");
+        final State state = new State();
+        state.initByName("stateNode", List.of(legacyRates, specRates));
+        state.initialise();
+        state.setEverythingDirty(false);
+
+        final SharedRatesClockModel legacy = new SharedRatesClockModel();
+        legacy.initByName("tree", legacyTree, "rates", legacyRates, "normalize", true,
+                "meanRate", new RealParameter("3.0"));
+        final SharedRatesClockModelSpec spec = new SharedRatesClockModelSpec();
+        spec.initByName("tree", specTree, "rates", specRates, "normalize", true,
+                "meanRate", new RealParameter("3.0"));
+
+        // {rate index, new value}; index -1 scales the whole vector, which sets no per-index flag
+        final double[][] moves = {{0, 2.0}, {3, 0.25}, {-1, 1.5}, {2, 5.0}, {-1, 0.5}, {1, 0.75}};
+        for (int step = 0; step < moves.length; step++) {
+            state.store(step);
+            legacy.store();
+            spec.store();
+            for (final RealParameter rates : List.of(legacyRates, specRates)) {
+                if (moves[step][0] < 0) {
+                    rates.startEditing(null);
+                    rates.scale(moves[step][1]);
+                } else {
+                    rates.setValue((int) moves[step][0], moves[step][1]);
+                }
+            }
+            assertTrue(legacy.requiresRecalculation());
+            assertTrue(spec.requiresRecalculation());
+            assertSameBranchRates(legacyTree, legacy, specTree, spec);
+
+            if (step % 2 == 1) {
+                state.restore();
+                legacy.restore();
+                spec.restore();
+                assertSameBranchRates(legacyTree, legacy, specTree, spec);
+            }
+            state.setEverythingDirty(false);
+        }
+    }
+
     private static Tree fixedTree() {
         return new TreeParser(TREE_NEWICK, false, true, true, 1);
     }
@@ -166,6 +166,49 @@ public class IndicatorGibbsOperatorCharacterizationTest {
         }
     }
 
+    @Test
+    public void initRejectsPStrictThatLeavesNoMassForUC() {
+        final IntegerParameter indicator = integerParameter("0");
+        final IndicatorGibbsOperator op = new IndicatorGibbsOperator();
+        op.indicatorInput.setValue(indicator, op);
+        op.priorInput.setValue(validPrior(indicator), op);
+        op.pOneInput.setValue(0.5, op);
+        op.pStrictInput.setValue(0.5, op);
+
+        assertThrows(IllegalArgumentException.class, op::initAndValidate);
+    }
+
+    @Test
+    public void threeStateProposalReturnsExpectedHastingsTermFromEveryState() {
+        Randomizer.setSeed(606L);
+
+        final double pOne = 0.3;
+        final double pStrict = 0.2;
+        for (int start = 0; start <= 2; start++) {
+            final IntegerParameter indicator = integerParameter(Integer.toString(start));
+            final RelaxedRatesPriorSVS prior = validPrior(indicator);
+            final IndicatorGibbsOperator op = operator(indicator, prior, pOne);
+            op.pStrictInput.setValue(pStrict, op);
+            op.initAndValidate();
+
+            final double logUC = prior.logPriorUCOnly();
+            final double[] logW = {
+                    Math.log(1.0 - pOne - pStrict) + logUC,
+                    Math.log(pOne) + prior.logPriorACOnly(),
+                    Math.log(pStrict) + logUC};
+            final double logDen = logSumExp(logSumExp(logW[0], logW[1]), logW[2]);
+
+            for (int i = 0; i < 20; i++) {
+                final int oldK = indicator.getValue(0);
+                final double hr = op.proposal();
+                final int newK = indicator.getValue(0);
+
+                assertTrue(newK >= 0 && newK <= 2);
+                assertEquals((logW[oldK] - logDen) - (logW[newK] - logDen), hr, EPS);
+            }
+        }
+    }
+
     private static void assertProposalMatchesExpected(final IntegerParameter indicator,
                                                       final RelaxedRatesPriorSVS prior,
                                                       final IndicatorGibbsOperator op,
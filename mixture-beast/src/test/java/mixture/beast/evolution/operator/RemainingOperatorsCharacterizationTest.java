@@ -3,17 +3,25 @@ package mixture.beast.evolution.operator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.mixture.JournaledRealParameter;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
+import mixture.beast.evolution.util.FlatTreeView;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 public class RemainingOperatorsCharacterizationTest {
 
@@ -134,6 +142,33 @@ public class RemainingOperatorsCharacterizationTest {
         assertEquals(0.25, sigma2.getValue(0), EPS);
     }
 
+    @Test
+    public void acSubtreeUIncrementOnlyPicksSubtreesWithinMaxSubtreeEdges() {
+        Randomizer.setSeed(1025L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = increasingLegacyRates(tree);
+        final IntegerParameter indicator = integerParameter(1);
+        final RealParameter sigma2 = realParameter(0.25);
+        final ACSubtreeUIncrementOperator op = legacyAcSubtree(tree, rates, indicator, sigma2, null, 0.25);
+        op.maxSubtreeEdgesInput.setValue(3, op);
+
+        // only the two cherries qualify: three edges each, never the four edges of a half with the root excluded
+        for (int i = 0; i < 50; i++) {
+            final double[] before = copyValues(rates);
+            assertTrue(Double.isFinite(op.proposal()));
+            final Set<Integer> changed = changedIndices(before, copyValues(rates));
+            assertEquals(3, changed.size());
+            assertChangedIndicesFormOneSubtree(tree, BranchRateIndexHelper.buildDeterministic(tree), changed);
+        }
+
+        // no internal node roots a subtree of one edge, so the move is rejected instead of falling back
+        op.maxSubtreeEdgesInput.setValue(1, op);
+        final double[] before = copyValues(rates);
+        assertEquals(Double.NEGATIVE_INFINITY, op.proposal(), 0.0);
+        assertArrayEquals(before, copyValues(rates), 0.0);
+    }
+
     @Test
     public void ucacBridgeRoundTripRestoresRatesIndicatorAndHastingsTermsCancel() {
         final Tree tree = fixedTree();
@@ -158,6 +193,119 @@ public class RemainingOperatorsCharacterizationTest {
         assertArrayEquals(before, copyValues(rates), EPS);
     }
 
+    @Test
+    public void ucacBridgeWithStrictSwitchesStatesAndKeepsRatesBetweenUCAndStrict() {
+        Randomizer.setSeed(707L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = increasingLegacyRates(tree);
+        final IntegerParameter indicator = integerParameter(2);
+        final UCACSwitchBridgeOperator op = legacyBridge(tree, rates, indicator, realParameter(0.5),
+                realParameter(0.25), realParameter(0.0));
+        op.includeStrictInput.setValue(true, op);
+        op.initAndValidate();
+
+        final boolean[] visited = new boolean[3];
+        for (int i = 0; i < 50; i++) {
+            final int oldK = indicator.getValue(0);
+            final double[] before = copyValues(rates);
+
+            final double hr = op.proposal();
+            final int newK = indicator.getValue(0);
+            visited[newK] = true;
+
+            assertTrue(newK != oldK);
+            assertTrue(Double.isFinite(hr));
+            if (oldK != 1 && newK != 1) {
+                assertEquals(0.0, hr, 0.0);
+                assertArrayEquals(before, copyValues(rates), 0.0);
+            }
+        }
+        assertTrue(visited[0] && visited[1] && visited[2]);
+    }
+
+    @Test
+    public void acMapsHandleDeepLadderTreeOnASmallThreadStack() throws Exception {
+        Randomizer.setSeed(1017L);
+
+        // BEAST builds and copies its node arrays recursively, so the tree and its State are set up on a large stack
+        final int nTips = 100000;
+        final Tree[] built = new Tree[1];
+        runOnStack(1L << 30, () -> {
+            built[0] = ladderTree(nTips);
+            final State state = new State();
+            state.initByName("stateNode", List.of(built[0]));
+            state.initialise();
+        });
+        final Tree tree = built[0];
+
+        final double[] ones = new double[tree.getNodeCount() - 1];
+        Arrays.fill(ones, 1.0);
+        final RealParameter rates = realParameter(ones);
+        final IntegerParameter indicator = integerParameter(0);
+        final RealParameter stdev = realParameter(0.5);
+        final RealParameter sigma2 = realParameter(1.0e-4);
+        final UCACSwitchBridgeOperator bridge = legacyBridge(tree, rates, indicator, stdev, sigma2, null);
+        final ACSigma2NonCenteredOperator acSigma = legacyAcSigma(tree, rates, indicator, sigma2, null, 0.15);
+        final ACSubtreeUIncrementOperator acSubtree = legacyAcSubtree(tree, rates, indicator, sigma2, null, 0.25);
+        acSubtree.allowRootInput.setValue(true, acSubtree);
+        acSubtree.maxSubtreeEdgesInput.setValue(0, acSubtree);
+
+        // a recursive walk over a 100000-deep ladder overflows a 256 KB stack; after the height move FlatTreeView
+        // checks and rebuilds the view on this stack, as it would for the owners of the tree
+        final double[] hr = new double[4];
+        runOnStack(256L << 10, () -> {
+            tree.getRoot().setHeight(tree.getRoot().getHeight() + 0.5);
+            FlatTreeView.treeChanged(tree);
+            hr[0] = bridge.proposal();
+            hr[1] = acSigma.proposal();
+            hr[2] = acSubtree.proposal();
+            hr[3] = bridge.proposal();
+        });
+
+        for (final double h : hr) {
+            assertTrue(Double.isFinite(h));
+        }
+        assertEquals(0, indicator.getValue(0).intValue());
+        assertAllPositive(copyValues(rates));
+    }
+
+    @Test
+    public void rateProposalsAllocateNoRateSizedScratch() {
+        final long probe = allocatedBytes();
+        assumeTrue("thread allocation counter not available", probe >= 0);
+        Randomizer.setSeed(1023L);
+
+        // 8192 tips; rate-sized scratch would be 8 bytes per branch and array, some 130 KB per proposal
+        final Tree tree = new Tree(balancedSubtree(13, new int[]{0, 1 << 13}));
+        final double[] ones = new double[tree.getNodeCount() - 1];
+        Arrays.fill(ones, 1.0);
+        final JournaledRealParameter rates = new JournaledRealParameter(join(ones));
+        final IntegerParameter indicator = integerParameter(0);
+        final RealParameter stdev = realParameter(0.5);
+        final RealParameter sigma2 = realParameter(0.1);
+        final State state = new State();
+        state.initByName("stateNode", List.of(tree, rates, indicator, stdev, sigma2));
+        state.initialise();
+
+        final UCLDStdevNonCenteredOperator ucld = legacyUcld(rates, indicator, stdev, 0.2);
+        assertAllocationBeyondBoxingIsSmall("UCLDStdevNonCenteredOperator", ucld, rates, 200);
+
+        final UCACSwitchBridgeOperator bridge = legacyBridge(tree, rates, indicator, stdev, sigma2, null);
+        assertAllocationBeyondBoxingIsSmall("UCACSwitchBridgeOperator", bridge, rates, 200);
+
+        indicator.setValue(0, 1);
+        final ACSigma2NonCenteredOperator acSigma = legacyAcSigma(tree, rates, indicator, sigma2, null, 0.15);
+        assertAllocationBeyondBoxingIsSmall("ACSigma2NonCenteredOperator", acSigma, rates, 200);
+
+        // only cherries qualify, so every move writes the three rates of a cherry
+        final ACSubtreeUIncrementOperator acSubtree = legacyAcSubtree(tree, rates, indicator, sigma2, null, 0.25);
+        acSubtree.maxSubtreeEdgesInput.setValue(3, acSubtree);
+        assertAllocationBeyondBoxingIsSmall("ACSubtreeUIncrementOperator", acSubtree, rates, 2000);
+
+        assertAllPositive(copyValues(rates));
+    }
+
     @Test
     public void alphaAnnealingMovesLinearlyToEndAndThenStops() {
         final RealParameter alpha = realParameter(1.0);
@@ -258,6 +406,107 @@ public class RemainingOperatorsCharacterizationTest {
         return op;
     }
 
+    /** Caterpillar tree: every internal node has one tip child, so its depth equals the number of tips. */
+    private static Tree ladderTree(final int nTips) {
+        Node spine = leaf(0, 0.0);
+        for (int i = 1; i < nTips; i++) {
+            final Node parent = new Node();
+            parent.setNr(nTips + i - 1);
+            parent.setHeight(i);
+            parent.addChild(spine);
+            parent.addChild(leaf(i, 0.0));
+            spine = parent;
+        }
+        return new Tree(spine);
+    }
+
+    /** Balanced tree of the given depth; next[0] and next[1] are the next free tip and internal node numbers. */
+    private static Node balancedSubtree(final int depth, final int[] next) {
+        if (depth == 0) {
+            return leaf(next[0]++, 0.0);
+        }
+        final Node node = new Node();
+        node.addChild(balancedSubtree(depth - 1, next));
+        node.addChild(balancedSubtree(depth - 1, next));
+        node.setNr(next[1]++);
+        node.setHeight(depth);
+        return node;
+    }
+
+    /**
+     * Bytes a proposal allocates beyond the Double boxes of the rates it writes must stay under a small constant,
+     * whatever the number of rates. The boxing is the parameter's own: it is measured by writing the rates directly
+     * and subtracted per written rate, as counted by the journal.
+     */
+    private static void assertAllocationBeyondBoxingIsSmall(final String name,
+                                                            final Operator op,
+                                                            final JournaledRealParameter rates,
+                                                            final int proposals) {
+        for (int i = 0; i < 20; i++) {
+            rates.setEverythingDirty(false);
+            assertTrue(name, Double.isFinite(op.proposal()));
+        }
+
+        final double[] current = copyValues(rates);
+        long before = allocatedBytes();
+        for (int r = 0; r < 10; r++) {
+            rates.setValues(0, current.length, current);
+        }
+        final double boxPerWrite = (allocatedBytes() - before) / (10.0 * current.length);
+
+        long writes = 0;
+        before = allocatedBytes();
+        for (int i = 0; i < proposals; i++) {
+            rates.setEverythingDirty(false);
+            op.proposal();
+            writes += rates.getChangedCount();
+        }
+        final double perProposal = (allocatedBytes() - before - boxPerWrite * writes) / proposals;
+        assertTrue(name + " allocated " + perProposal + " bytes per proposal beyond boxing", perProposal < 256.0);
+    }
+
+    /** Bytes allocated so far by the current thread, or -1 if the JVM does not report them. */
+    private static long allocatedBytes() {
+        try {
+            final Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            final Class<?> threadBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!threadBean.isInstance(bean)) {
+                return -1;
+            }
+            return (Long) threadBean.getMethod("getCurrentThreadAllocatedBytes").invoke(bean);
+        } catch (ReflectiveOperationException | RuntimeException unavailable) {
+            return -1;
+        }
+    }
+
+    private static Node leaf(final int nr, final double height) {
+        final Node node = new Node();
+        node.setNr(nr);
+        node.setID("t" + nr);
+        node.setHeight(height);
+        return node;
+    }
+
+    private static void runOnStack(final long stackSize, final Runnable task) throws Exception {
+        final Throwable[] failure = new Throwable[1];
+        final Thread thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", stackSize);
+        thread.start();
+        thread.join();
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (Exception) failure[0];
+        }
+    }
+
     private static Tree fixedTree() {
         return new TreeParser(TREE_NEWICK, false, true, true, 1);
     }
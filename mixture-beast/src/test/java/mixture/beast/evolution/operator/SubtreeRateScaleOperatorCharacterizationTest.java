@@ -3,13 +3,17 @@ package mixture.beast.evolution.operator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.util.Randomizer;
+import mixture.beast.evolution.mixture.RelaxedRatesPriorSVS;
 import mixture.beast.evolution.util.BranchRateIndexHelper;
 import org.junit.Test;
 
 import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -152,6 +156,113 @@ public class SubtreeRateScaleOperatorCharacterizationTest {
         }
     }
 
+    @Test
+    public void announcedSubtreeScaleKeepsPriorInStepThroughAcceptedAndRejectedMoves() {
+        Randomizer.setSeed(1015L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = increasingRates(tree);
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates));
+        state.initialise();
+        final RelaxedRatesPriorSVS prior = ratesPrior(tree, rates);
+        state.setPosterior(prior);
+        prior.calculateLogP();
+        prior.logPriorACOnly();
+
+        final SubtreeRateScaleOperator op = new SubtreeRateScaleOperator();
+        op.initByName("tree", tree, "rates", rates, "window", 0.4, "ratesPrior", prior, "weight", 1.0);
+
+        for (int step = 0; step < 60; step++) {
+            state.store(step);
+            assertTrue(Double.isFinite(op.proposal()));
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            assertTrue(prior.isDirtyCalculation());
+            prior.calculateLogP();
+
+            if (Randomizer.nextBoolean()) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+
+            final RelaxedRatesPriorSVS fresh = ratesPrior(tree, new RealParameter(joinValues(rates)));
+            assertEquals("step " + step, fresh.logPriorUCOnly(), prior.logPriorUCOnly(), EPS);
+            assertEquals("step " + step, fresh.logPriorACOnly(), prior.logPriorACOnly(), EPS);
+        }
+    }
+
+    @Test
+    public void rejectedSubtreeScaleRestoresPriorExactly() {
+        Randomizer.setSeed(1016L);
+
+        final Tree tree = fixedTree();
+        final RealParameter rates = increasingRates(tree);
+        final State state = new State();
+        state.initByName("stateNode", List.of(rates));
+        state.initialise();
+        final RelaxedRatesPriorSVS prior = ratesPrior(tree, rates);
+        state.setPosterior(prior);
+        prior.calculateLogP();
+        prior.logPriorACOnly();
+
+        final SubtreeRateScaleOperator op = new SubtreeRateScaleOperator();
+        op.initByName("tree", tree, "rates", rates, "window", 0.4, "ratesPrior", prior, "weight", 1.0);
+
+        for (int step = 0; step < 40; step++) {
+            final double uc = prior.logPriorUCOnly();
+            final double ac = prior.logPriorACOnly();
+
+            state.store(step);
+            assertTrue(Double.isFinite(op.proposal()));
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            prior.calculateLogP();
+            prior.logPriorACOnly();
+            state.restore();
+            state.restoreCalculationNodes();
+            state.setEverythingDirty(false);
+
+            assertEquals("step " + step, uc, prior.logPriorUCOnly(), 0.0);
+            assertEquals("step " + step, ac, prior.logPriorACOnly(), 0.0);
+        }
+    }
+
+    @Test
+    public void ratesPriorOnOtherRatesIsRejectedAtInit() {
+        final Tree tree = fixedTree();
+        final RelaxedRatesPriorSVS prior = ratesPrior(tree, increasingRates(tree));
+
+        final SubtreeRateScaleOperator op = new SubtreeRateScaleOperator();
+        op.treeInput.setValue(tree, op);
+        op.ratesInput.setValue(increasingRates(tree), op);
+        op.ratesPriorInput.setValue(prior, op);
+
+        assertThrows(IllegalArgumentException.class, op::initAndValidate);
+    }
+
+    private static RelaxedRatesPriorSVS ratesPrior(final Tree tree, final RealParameter rates) {
+        final RelaxedRatesPriorSVS prior = new RelaxedRatesPriorSVS();
+        prior.initByName("tree", tree,
+                "rates", rates,
+                "indicator", new IntegerParameter("0"),
+                "ucldStdev", new RealParameter("0.5"),
+                "rootLogRate", new RealParameter("0.1"),
+                "sigma2", new RealParameter("0.2"));
+        return prior;
+    }
+
+    private static String joinValues(final RealParameter rates) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rates.getDimension(); i++) {
+            sb.append(rates.getValue(i)).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
     private static SubtreeRateScaleOperator operator(final Tree tree,
                                                     final RealParameter rates,
                                                     final double window) {
@@ -45,6 +45,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
     public static final String WEIGHTS = "weights";
     public static final String INDEX   = "index";          // simulation only
     public static final String SYNC    = "syncComponents"; // optional, debug only
+    public static final String PARALLEL = "parallelComponents"; // optional, BEAST mapping only
 
     private Value<Alignment> comp1;
     private Value<Alignment> comp2;
@@ -52,6 +53,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
     private Value<Double[]>  weights;
     private Value<Integer>   index; // optional
     private Value<Boolean>   syncComponents; // optional
+    private Value<Boolean>   parallelComponents; // optional
 
     private AbstractPhyloCTMC[] gens;
     private final RandomGenerator rng = RandomUtils.getRandom();
@@ -71,7 +73,9 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
             @ParameterInfo(name = INDEX, description = "Optional component index (0 or 1) used for SIMULATION ONLY; ignored when mapping to BEAST.", optional = true)
             Value<Integer> index,
             @ParameterInfo(name = SYNC, description = "Debug only: try to write chosen Alignment back to the chosen component Value (best-effort).", optional = true)
-            Value<Boolean> syncComponents
+            Value<Boolean> syncComponents,
+            @ParameterInfo(name = PARALLEL, description = "Optional: evaluate the components over one shared pool of pattern blocks in BEAST when they share a fused likelihood (default false); ignored in simulation.", optional = true)
+            Value<Boolean> parallelComponents
     ) {
         this.comp1 = Objects.requireNonNull(comp1, "comp1 is required");
         this.comp2 = Objects.requireNonNull(comp2, "comp2 is required");
@@ -79,6 +83,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
         this.weights = Objects.requireNonNull(weights, "weights is required");
         this.index = index;
         this.syncComponents = syncComponents;
+        this.parallelComponents = parallelComponents;
         rebuildGensAndValidate();
     }
 
@@ -94,7 +99,9 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
             @ParameterInfo(name = INDEX, description = "Optional component index (0, 1 or 2) used for SIMULATION ONLY; ignored when mapping to BEAST.", optional = true)
             Value<Integer> index,
             @ParameterInfo(name = SYNC, description = "Debug only: try to write chosen Alignment back to the chosen component Value (best-effort).", optional = true)
-            Value<Boolean> syncComponents
+            Value<Boolean> syncComponents,
+            @ParameterInfo(name = PARALLEL, description = "Optional: evaluate the components over one shared pool of pattern blocks in BEAST when they share a fused likelihood (default false); ignored in simulation.", optional = true)
+            Value<Boolean> parallelComponents
     ) {
         this.comp1 = Objects.requireNonNull(comp1, "comp1 is required");
         this.comp2 = Objects.requireNonNull(comp2, "comp2 is required");
@@ -102,6 +109,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
         this.weights = Objects.requireNonNull(weights, "weights is required");
         this.index = index;
         this.syncComponents = syncComponents;
+        this.parallelComponents = parallelComponents;
         rebuildGensAndValidate();
     }
 
@@ -305,6 +313,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
         map.put(WEIGHTS, weights);
         if (index != null) map.put(INDEX, index);
         if (syncComponents != null) map.put(SYNC, syncComponents);
+        if (parallelComponents != null) map.put(PARALLEL, parallelComponents);
         return map;
     }
 
@@ -321,6 +330,7 @@ public final class MixturePhyloCTMC implements GenerativeDistribution<Alignment>
             case WEIGHTS -> { this.weights = (Value<Double[]>) value; }
             case INDEX   -> { this.index = (Value<Integer>) value; }
             case SYNC    -> { this.syncComponents = (Value<Boolean>) value; }
+            case PARALLEL -> { this.parallelComponents = (Value<Boolean>) value; }
             default      -> throw new RuntimeException("Unrecognised parameter name: " + name);
         }
     }
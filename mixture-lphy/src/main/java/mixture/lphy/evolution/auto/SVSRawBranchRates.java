@@ -147,16 +147,15 @@ public class SVSRawBranchRates extends ParametricDistribution<Double[]> {
             throw new IllegalArgumentException("sigma2 must be > 0");
         }
 
-        TimeTreeNode root = tree.value().getRoot();
-        double vRoot = rootLogRate.value();
-
-        // recurse from root, sampling log-rates and storing exp(log-rate) as branch rate on the child edge
-        sampleACRec(root, vRoot, r);
-    }
+        // walk allNodes in preorder, so every parent's log-rate is set before its children are sampled,
+        // and store exp(log-rate) as branch rate on the child edge
+        double[] v = new double[maxIndex + 1];
+        v[rootIndex] = rootLogRate.value();
+        for (TimeTreeNode child : allNodes) {
+            if (child.isRoot()) continue;
+            TimeTreeNode parent = child.getParent();
+            double vPar = v[parent.getIndex()];
 
-    private void sampleACRec(TimeTreeNode parent, double vPar, Double[] r) {
-        double s2 = sigma2.value();
-        for (TimeTreeNode child : parent.getChildren()) {
             double dt = parent.getAge() - child.getAge();
             if (dt < 0.0) dt = 0.0;
 
@@ -172,8 +171,8 @@ public class SVSRawBranchRates extends ParametricDistribution<Double[]> {
                 vChild = nd.sample();
             }
 
+            v[child.getIndex()] = vChild;
             r[child.getIndex()] = Math.exp(vChild);
-            sampleACRec(child, vChild, r);
         }
     }
 
@@ -221,17 +220,14 @@ public class SVSRawBranchRates extends ParametricDistribution<Double[]> {
         double s2 = sigma2.value();
         if (!(s2 > 0.0)) return Double.NEGATIVE_INFINITY;
 
-        TimeTreeNode root = tree.value().getRoot();
         double vRoot = rootLogRate.value();
-
-        return logDensityACRec(root, vRoot, x);
-    }
-
-    private double logDensityACRec(TimeTreeNode parent, double vPar, Double[] x) {
-        double s2 = sigma2.value();
         double lp = 0.0;
 
-        for (TimeTreeNode child : parent.getChildren()) {
+        for (TimeTreeNode child : allNodes) {
+            if (child.isRoot()) continue;
+            TimeTreeNode parent = child.getParent();
+            double vPar = parent.isRoot() ? vRoot : Math.log(x[parent.getIndex()]);
+
             double rChild = x[child.getIndex()];
             if (!(rChild > 0.0)) return Double.NEGATIVE_INFINITY;
 
@@ -251,17 +247,22 @@ public class SVSRawBranchRates extends ParametricDistribution<Double[]> {
 
             // Jacobian because RV is in rate-space but density is on log-rate increments
             lp += -vChild;
-
-            lp += logDensityACRec(child, vChild, x);
         }
 
         return lp;
     }
 
-    private void collectAllNodes(TimeTreeNode node, List<TimeTreeNode> out) {
-        out.add(node);
-        for (TimeTreeNode c : node.getChildren()) {
-            collectAllNodes(c, out);
+    /** Preorder with children in order, using an explicit stack so deep (ladder) trees do not overflow. */
+    private void collectAllNodes(TimeTreeNode root, List<TimeTreeNode> out) {
+        Deque<TimeTreeNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TimeTreeNode node = stack.pop();
+            out.add(node);
+            List<TimeTreeNode> children = node.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
         }
     }
 }
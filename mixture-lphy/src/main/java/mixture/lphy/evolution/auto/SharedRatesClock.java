@@ -104,10 +104,17 @@ public class SharedRatesClock extends DeterministicFunction<Double[]> {
         return new Value<>(out, this);
     }
 
-    private void collectAllNodes(TimeTreeNode node, List<TimeTreeNode> out) {
-        out.add(node);
-        for (TimeTreeNode c : node.getChildren()) {
-            collectAllNodes(c, out);
+    /** Preorder with children in order, using an explicit stack so deep (ladder) trees do not overflow. */
+    private void collectAllNodes(TimeTreeNode root, List<TimeTreeNode> out) {
+        Deque<TimeTreeNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TimeTreeNode node = stack.pop();
+            out.add(node);
+            List<TimeTreeNode> children = node.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
         }
     }
 }
@@ -2,16 +2,20 @@ package mixture.lphybeast.tobeast.generators;
 
 import beast.base.core.BEASTInterface;
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.inference.Distribution;
 import beast.base.spec.evolution.likelihood.ThreadedTreeLikelihood;
 import lphy.base.evolution.likelihood.AbstractPhyloCTMC;
 import mixture.lphy.evolution.auto.MixturePhyloCTMC;
 import lphy.base.evolution.likelihood.PhyloCTMC;
 import lphy.core.model.Generator;
+import lphy.core.model.RandomVariable;
 import lphy.core.model.Value;
 import lphybeast.BEASTContext;
 import lphybeast.GeneratorToBEAST;
 import lphybeast.tobeast.generators.PhyloCTMCToBEAST;
+import mixture.beast.evolution.mixture.FusedMixtureLikelihood;
 import mixture.beast.evolution.mixture.HierarchicalSVSLogger;
 import mixture.beast.evolution.mixture.MixtureLikelihoodLogger;
 import mixture.beast.evolution.mixture.MixtureTreeLikelihood;
@@ -24,6 +28,11 @@ import java.util.*;
 
 public class MixturePhyloCTMCToBEAST implements GeneratorToBEAST<MixturePhyloCTMC, MixtureTreeLikelihood> {
 
+    // PhyloCTMC parameters that make up a component's tree and clock
+    private static final String TREE = "tree";
+    private static final String MU = "mu";
+    private static final String BRANCH_RATES = "branchRates";
+
     @Override
     public MixtureTreeLikelihood generatorToBEAST(
             MixturePhyloCTMC mix,
@@ -63,60 +72,52 @@ public class MixturePhyloCTMCToBEAST implements GeneratorToBEAST<MixturePhyloCTM
         boolean observed = mixOutput != null && context.isObserved(mixOutput);
 
         final int K = compVals.size();
-        final List<Distribution> subTL = new ArrayList<>(K);
-
-        boolean addBranchOperatorsThisTime = true;
-
+        final List<PhyloCTMC> phylos = new ArrayList<>(K);
         RelaxedRatesPriorSVS svsPrior = null;
-        BEASTInterface mixtureTree = null;
-        BEASTInterface mixtureSiteModel = null;
-
-        for (int i = 0; i < K; i++) {
-            AbstractPhyloCTMC comp = (AbstractPhyloCTMC) compVals.get(i).getGenerator();
-            PhyloCTMC phylo = asPhyloCTMC(comp);
-
-            Distribution tl;
-            if (observed) {
-                tl = new ThreadedTreeLikelihood();
-                tl.setInputValue("useAmbiguities", true);
-            } else {
-                tl = new ThreadedTreeLikelihood();
-                tl.setInputValue("useAmbiguities", false);
-            }
-
-            tl.setInputValue("data", beastAlignment);
-
-            PhyloCTMCToBEAST.constructTreeAndBranchRate(
-                    phylo,
-                    tl,
-                    context,
-                    !addBranchOperatorsThisTime
-            );
-            addBranchOperatorsThisTime = false;
-
-            BEASTInterface siteModel = PhyloCTMCToBEAST.constructSiteModel(phylo, context);
-            tl.setInputValue("siteModel", siteModel);
-            if (mixtureTree == null) {
-                mixtureTree = context.getBEASTObject(phylo.getTree());
-                mixtureSiteModel = siteModel;
-            }
-
-            tl.initAndValidate();
-            tl.setID(beastAlignment.getID() + ".treeLikelihood.component" + i);
-
-            context.addExtraLoggable(tl);
-            subTL.add(tl);
-
+        for (Value<lphy.base.evolution.alignment.Alignment> compVal : compVals) {
+            AbstractPhyloCTMC comp = (AbstractPhyloCTMC) compVal.getGenerator();
+            phylos.add(asPhyloCTMC(comp));
             if (svsPrior == null) {
                 svsPrior = tryFindSVSPrior(comp, context);
             }
         }
 
+        BEASTInterface mixtureTree = context.getBEASTObject(phylos.get(0).getTree());
+        BEASTInterface mixtureSiteModel;
+        FusedMixtureLikelihood fused = null;
+        List<Distribution> subTL = null;
+
+        // one fused likelihood if the components differ only in their clock, otherwise one likelihood each
+        final boolean fusedComponents = differOnlyInClock(phylos, context);
+        if (fusedComponents) {
+            final List<BranchRateModel> clocks = componentClocks(phylos, context);
+
+            mixtureSiteModel = PhyloCTMCToBEAST.constructSiteModel(phylos.get(0), context);
+
+            fused = new FusedMixtureLikelihood();
+            fused.setInputValue("data", beastAlignment);
+            fused.setInputValue("tree", mixtureTree);
+            fused.setInputValue("siteModel", mixtureSiteModel);
+            fused.setInputValue("branchRateModel", clocks);
+            fused.setInputValue("useAmbiguities", observed);
+            fused.initAndValidate();
+            fused.setID(beastAlignment.getID() + ".fusedLikelihood");
+        } else {
+            subTL = componentLikelihoods(phylos, beastAlignment, observed, context);
+            mixtureSiteModel = (BEASTInterface) subTL.get(0).getInput("siteModel").get();
+        }
+
         MixtureTreeLikelihood beastMix = new MixtureTreeLikelihood();
         beastMix.setInputValue("data", beastAlignment);
         beastMix.setInputValue("tree", mixtureTree);
         beastMix.setInputValue("siteModel", mixtureSiteModel);
-        beastMix.setInputValue("subLikelihood", subTL);
+        if (fusedComponents) {
+            beastMix.setInputValue("fusedLikelihood", fused);
+        } else {
+            beastMix.setInputValue("subLikelihood", subTL);
+        }
+        // only the fused likelihood evaluates on the mixture's pool; per-component likelihoods bring their own threads
+        beastMix.setInputValue("parallelComponents", fusedComponents && parallelComponents(mix));
 
         @SuppressWarnings("unchecked")
         Value<Double[]> wVal = (Value<Double[]>) mix.getParams().get(MixturePhyloCTMC.WEIGHTS);
@@ -157,7 +158,6 @@ public class MixturePhyloCTMCToBEAST implements GeneratorToBEAST<MixturePhyloCTM
         allocLogger.setInputValue("mixture", beastMix);
         allocLogger.setInputValue("printResp", true);
 
-
         allocLogger.initAndValidate();
         allocLogger.setID(beastAlignment.getID() + ".mixtureAlloc");
         context.addExtraLoggable(allocLogger);
@@ -179,6 +179,120 @@ public class MixturePhyloCTMCToBEAST implements GeneratorToBEAST<MixturePhyloCTM
         return beastMix;
     }
 
+    /** One ThreadedTreeLikelihood per component, each with its own site model, as the core PhyloCTMC mapper builds them. */
+    private static List<Distribution> componentLikelihoods(List<PhyloCTMC> phylos,
+                                                           Alignment beastAlignment,
+                                                           boolean observed,
+                                                           BEASTContext context) {
+        final List<Distribution> subTL = new ArrayList<>(phylos.size());
+        for (int i = 0; i < phylos.size(); i++) {
+            PhyloCTMC phylo = phylos.get(i);
+
+            ThreadedTreeLikelihood tl = new ThreadedTreeLikelihood();
+            tl.setInputValue("useAmbiguities", observed);
+            tl.setInputValue("data", beastAlignment);
+            // branch operators are added once, with the first component
+            PhyloCTMCToBEAST.constructTreeAndBranchRate(phylo, tl, context, i > 0);
+            tl.setInputValue("siteModel", PhyloCTMCToBEAST.constructSiteModel(phylo, context));
+
+            tl.initAndValidate();
+            tl.setID(beastAlignment.getID() + ".treeLikelihood.component" + i);
+
+            context.addExtraLoggable(tl);
+            subTL.add(tl);
+        }
+        return subTL;
+    }
+
+    /**
+     * True if the components can share one tree, site model and alignment: the same tree, and every other parameter
+     * apart from the clock (mu, branchRates) the same value or an equal constant one, so Q, siteRates, L and the data
+     * type all agree.
+     */
+    private static boolean differOnlyInClock(List<PhyloCTMC> phylos, BEASTContext context) {
+        final PhyloCTMC first = phylos.get(0);
+        final BEASTInterface tree = context.getBEASTObject(first.getTree());
+        for (PhyloCTMC phylo : phylos.subList(1, phylos.size())) {
+            if (context.getBEASTObject(phylo.getTree()) != tree) {
+                return false;
+            }
+            Set<String> names = new HashSet<>(first.getParams().keySet());
+            names.addAll(phylo.getParams().keySet());
+            for (String name : names) {
+                if (name.equals(TREE) || name.equals(MU) || name.equals(BRANCH_RATES)) {
+                    continue;
+                }
+                if (!sameValue(first.getParams().get(name), phylo.getParams().get(name))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Values that are the same random variable, or that always agree: equal constants, or outputs of generators of
+     * the same class whose parameters are again the same, such as two calls to jukesCantor().
+     */
+    private static boolean sameValue(Value<?> a, Value<?> b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a instanceof RandomVariable || b instanceof RandomVariable) {
+            return false;
+        }
+        Generator ga = a.getGenerator();
+        Generator gb = b.getGenerator();
+        if (ga == null || gb == null) {
+            return ga == gb && Objects.deepEquals(a.value(), b.value());
+        }
+        if (ga.getClass() != gb.getClass()) {
+            return false;
+        }
+        Map<String, Value<?>> pa = ga.getParams();
+        Map<String, Value<?>> pb = gb.getParams();
+        if (!pa.keySet().equals(pb.keySet())) {
+            return false;
+        }
+        for (String name : pa.keySet()) {
+            if (!sameValue(pa.get(name), pb.get(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The clock of every component, set up by the core mapper exactly as for per-component likelihoods, the first
+     * component also adding the tree and branch operators. PhyloCTMCToBEAST only hands the clock over through a
+     * likelihood's inputs, so each call fills a ThreadedTreeLikelihood that is read and dropped without being
+     * initialised. A component left without a branch rate model gets a strict clock at rate 1.
+     */
+    private static List<BranchRateModel> componentClocks(List<PhyloCTMC> phylos, BEASTContext context) {
+        final List<BranchRateModel> clocks = new ArrayList<>(phylos.size());
+        for (int i = 0; i < phylos.size(); i++) {
+            ThreadedTreeLikelihood inputs = new ThreadedTreeLikelihood();
+            // branch operators are added once, with the first component
+            PhyloCTMCToBEAST.constructTreeAndBranchRate(phylos.get(i), inputs, context, i > 0);
+
+            BranchRateModel clock = (BranchRateModel) inputs.getInput("branchRateModel").get();
+            if (clock == null) {
+                StrictClockModel strict = new StrictClockModel();
+                strict.initAndValidate();
+                clock = strict;
+            }
+            clocks.add(clock);
+        }
+        return clocks;
+    }
+
+    /** The mixture's parallelComponents value, false if it is not given, as for MixtureTreeLikelihood. */
+    private static boolean parallelComponents(MixturePhyloCTMC mix) {
+        @SuppressWarnings("unchecked")
+        Value<Boolean> parallel = (Value<Boolean>) mix.getParams().get(MixturePhyloCTMC.PARALLEL);
+        return parallel != null && Boolean.TRUE.equals(parallel.value());
+    }
+
     private static PhyloCTMC asPhyloCTMC(AbstractPhyloCTMC ctmc) {
         if (ctmc instanceof PhyloCTMC) return (PhyloCTMC) ctmc;
         throw new IllegalArgumentException(